@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares resolution of event ids returned by a group read (PERF_FORMAT_GROUP | PERF_FORMAT_ID)
+ * to slots: linear scan over group members vs IdSlotTable
+ * Kernel buffer is simulated to isolate resolution cost from read syscall
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupReadBenchmark {
+    @Param({"2", "4", "8", "12", "16"})
+    int groupSize;
+
+    long[] ids;
+    long[] buffer;
+    long[] values;
+    IdSlotTable idSlots;
+
+    @Setup
+    public void setup() {
+        ids = new long[groupSize];
+        idSlots = new IdSlotTable(groupSize);
+        // kernel assigns increasing ids, returns values in group order
+        for (int i = 0; i < groupSize; i++) {
+            ids[i] = 4242 + i;
+            idSlots.put(ids[i], i);
+        }
+        // nr, time_enabled, time_running, (value, id)*
+        buffer = new long[PerfEvent.READ_HEADER_SIZE + groupSize * 2];
+        buffer[PerfEvent.NR_IDX] = groupSize;
+        for (int i = 0; i < groupSize; i++) {
+            buffer[PerfEvent.READ_HEADER_SIZE + i * 2] = i * 1000;
+            buffer[PerfEvent.READ_HEADER_SIZE + i * 2 + 1] = ids[i];
+        }
+        values = new long[groupSize];
+    }
+
+    @Benchmark
+    public long[] linearScan() {
+        int max = buffer.length;
+        int idx = PerfEvent.READ_HEADER_SIZE;
+        while (idx < max) {
+            long value = buffer[idx++];
+            long id = buffer[idx++];
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    values[i] = value;
+                }
+            }
+        }
+        return values;
+    }
+
+    @Benchmark
+    public long[] idSlotTable() {
+        int max = buffer.length;
+        int idx = PerfEvent.READ_HEADER_SIZE;
+        while (idx < max) {
+            long value = buffer[idx++];
+            long id = buffer[idx++];
+            values[idSlots.get(id)] = value;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares native backends on read & ioctl calls
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NativeBackendBenchmark {
+    @Param({NativeBackends.JNA, NativeBackends.JNA_DIRECT})
+    String backend;
+
+    PerfEvent event;
+    PerfGroupEvent group;
+    long[] values;
+
+    @Setup
+    public void setup() {
+        PerfEvent.installBackend(NativeBackends.create(backend));
+        // software events: available on any machine
+        event = new PerfEvent("task-clock");
+        event.start();
+        group = new PerfGroupEvent("task-clock,page-faults,context-switches");
+        group.start();
+        values = new long[group.size()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        event.shutdown();
+        group.shutdown();
+    }
+
+    @Benchmark
+    public long read() {
+        return event.read();
+    }
+
+    @Benchmark
+    public long[] groupRead() {
+        group.read(values);
+        return values;
+    }
+
+    @Benchmark
+    public void reset() {
+        event.reset();
+    }
+}
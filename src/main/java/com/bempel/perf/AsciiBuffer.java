@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reusable byte buffer formatting ASCII text without allocation (no String.format, no charset encoder)
+ * and written to a channel when full or flushed
+ */
+final class AsciiBuffer {
+    private static final long[] POWERS_OF_10 = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    // digits of a long, written backwards
+    private final byte[] digits = new byte[20];
+
+    AsciiBuffer(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    AsciiBuffer put(char c) {
+        ensure(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    /**
+     * Non ASCII chars are replaced by '?'
+     */
+    AsciiBuffer put(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            put(c < 0x80 ? c : '?');
+        }
+        return this;
+    }
+
+    AsciiBuffer put(long value) {
+        if (value == Long.MIN_VALUE) {
+            return put("-9223372036854775808");
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensure(digits.length - pos);
+        buffer.put(digits, pos, digits.length - pos);
+        return this;
+    }
+
+    /**
+     * Writes a fixed point decimal: value / 10^decimals with exactly decimals digits after the dot
+     */
+    AsciiBuffer putDecimal(long value, int decimals) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        long divisor = POWERS_OF_10[decimals];
+        put(value / divisor);
+        if (decimals == 0) {
+            return this;
+        }
+        put('.');
+        long fraction = value % divisor;
+        for (int i = decimals - 1; i >= 0; i--) {
+            put((char) ('0' + (fraction / POWERS_OF_10[i]) % 10));
+        }
+        return this;
+    }
+
+    /**
+     * Writes a JSON string: quoted and escaped
+     */
+    AsciiBuffer putJsonString(CharSequence s) {
+        put('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                put('\\').put(c);
+            } else if (c < 0x20 || c >= 0x80) {
+                put("\\u");
+                for (int shift = 12; shift >= 0; shift -= 4) {
+                    put((char) HEX[(c >> shift) & 0xF]);
+                }
+            } else {
+                put(c);
+            }
+        }
+        return put('"');
+    }
+
+    /**
+     * Writes buffered bytes to the channel
+     */
+    void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+}
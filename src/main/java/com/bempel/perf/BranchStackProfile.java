@@ -0,0 +1,325 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Aggregates branch stacks (PERF_SAMPLE_BRANCH_STACK, LBR) of samples into hot branch edges (from -> to)
+ * with their mispredictions and cycles, and into hot ranges: the straight-line code executed between
+ * two consecutive branches (target of the older one to source of the newer one), like basic blocks
+ * Ranges require all the taken branches in the stack: they are only built with PERF_SAMPLE_BRANCH_ANY
+ * (or no branch type filter), not with filtered branches (e.g. ANY_CALL, COND) nor PERF_SAMPLE_BRANCH_CALL_STACK
+ * Works on JIT compiled code without instrumentation, the symbolizer maps addresses for the report (e.g. perf map)
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfSampler sampler = new PerfSampler("cycles").period(100_000)
+ *              .branchStack(PerfEventConsts.PERF_SAMPLE_BRANCH_USER | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY);
+ *      BranchStackProfile profile = new BranchStackProfile(ip -> symbols.resolve(ip));
+ *      sampler.start();
+ *      // some code we want to profile
+ *      sampler.poll(profile::accept);
+ *      System.out.println(profile.report(20));
+ *  </pre>
+ */
+public class BranchStackProfile {
+    // longer ranges are unrelated branches (e.g. interrupted, filtered branches), not a basic block
+    public static final long DEFAULT_MAX_RANGE_SIZE = 4096;
+    // branch_sample_type bits selecting the branches recorded, none means any branch
+    static final long BRANCH_FILTERS = PerfEventConsts.PERF_SAMPLE_BRANCH_ANY | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY_CALL
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY_RETURN | PerfEventConsts.PERF_SAMPLE_BRANCH_IND_CALL
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_ABORT_TX | PerfEventConsts.PERF_SAMPLE_BRANCH_IN_TX
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_NO_TX | PerfEventConsts.PERF_SAMPLE_BRANCH_COND
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_CALL_STACK | PerfEventConsts.PERF_SAMPLE_BRANCH_IND_JUMP
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_CALL;
+
+    private final LongFunction<String> symbolizer;
+    private final long maxRangeSize;
+    private final Map<Edge, Edge> edges = new HashMap<>();
+    private final Map<Range, Range> ranges = new HashMap<>();
+    // lookup keys, avoid allocation for already known edges & ranges
+    private final Edge edgeKey = new Edge(0, 0);
+    private final Range rangeKey = new Range(0, 0);
+    private long samples;
+    private long branches;
+
+    /**
+     * Reports addresses as hexadecimal
+     */
+    public BranchStackProfile() {
+        this(ip -> String.format("0x%x", ip));
+    }
+
+    public BranchStackProfile(LongFunction<String> symbolizer) {
+        this(symbolizer, DEFAULT_MAX_RANGE_SIZE);
+    }
+
+    /**
+     * @param symbolizer resolves an address to a symbol for the report
+     * @param maxRangeSize maximum size (bytes) of a range between 2 branches
+     */
+    public BranchStackProfile(LongFunction<String> symbolizer, long maxRangeSize) {
+        this.symbolizer = symbolizer;
+        this.maxRangeSize = maxRangeSize;
+    }
+
+    /**
+     * Accounts the branch stack of a sample, requires PERF_SAMPLE_BRANCH_STACK
+     */
+    public void accept(SampleRecord sample) {
+        int size = sample.getBranchStackSize();
+        boolean consecutive = hasConsecutiveBranches(sample.getBranchSampleType());
+        samples++;
+        for (int i = 0; i < size; i++) {
+            long from = sample.getBranchFrom(i);
+            long to = sample.getBranchTo(i);
+            long flags = sample.getBranchFlags(i);
+            branches++;
+            edgeKey.set(from, to);
+            Edge edge = edges.get(edgeKey);
+            if (edge == null) {
+                edge = new Edge(from, to);
+                edges.put(edge, edge);
+            }
+            edge.record(flags);
+            // entry 0 is the most recent: code from target of entry i + 1 to source of entry i ran without branch
+            if (consecutive && i + 1 < size) {
+                long start = sample.getBranchTo(i + 1);
+                if (from >= start && from - start < maxRangeSize) {
+                    rangeKey.set(start, from);
+                    Range range = ranges.get(rangeKey);
+                    if (range == null) {
+                        range = new Range(start, from);
+                        ranges.put(range, range);
+                    }
+                    range.record(SampleRecord.getBranchCycles(flags));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if consecutive entries of the branch stack are consecutive taken branches:
+     * any branch recorded, not a call stack (entries are calls of the stack, not the last branches)
+     */
+    static boolean hasConsecutiveBranches(long branchSampleType) {
+        long filters = branchSampleType & BRANCH_FILTERS;
+        return filters == 0 || filters == PerfEventConsts.PERF_SAMPLE_BRANCH_ANY;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return number of branch entries accounted
+     */
+    public long getBranches() {
+        return branches;
+    }
+
+    /**
+     * @return branch edges, most taken first
+     */
+    public List<Edge> getEdges() {
+        return sorted(edges.values(), Comparator.comparingLong((Edge e) -> e.count).reversed());
+    }
+
+    /**
+     * @return branch edges with mispredictions, most mispredicted first
+     */
+    public List<Edge> getMispredictedEdges() {
+        List<Edge> mispredicted = new ArrayList<>();
+        for (Edge edge : edges.values()) {
+            if (edge.mispredicted > 0) {
+                mispredicted.add(edge);
+            }
+        }
+        return sorted(mispredicted, Comparator.comparingLong((Edge e) -> e.mispredicted).reversed());
+    }
+
+    /**
+     * @return ranges of straight-line code, most executed first
+     */
+    public List<Range> getRanges() {
+        return sorted(ranges.values(), Comparator.comparingLong((Range r) -> r.count).reversed());
+    }
+
+    private static <T extends Span> List<T> sorted(Iterable<T> values, Comparator<T> comparator) {
+        List<T> list = new ArrayList<>();
+        values.forEach(list::add);
+        // ties by address for a stable report
+        list.sort(comparator.thenComparingLong(s -> s.start).thenComparingLong(s -> s.end));
+        return list;
+    }
+
+    public void clear() {
+        edges.clear();
+        ranges.clear();
+        samples = 0;
+        branches = 0;
+    }
+
+    /**
+     * @param max maximum number of entries reported per section
+     * @return hot edges, mispredicted edges and hot ranges
+     */
+    public String report(int max) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%,d samples, %,d branches%n", samples, branches));
+        sb.append(String.format("%nHot branches:%n"));
+        List<Edge> hot = getEdges();
+        for (int i = 0; i < Math.min(max, hot.size()); i++) {
+            appendEdge(sb, hot.get(i));
+        }
+        sb.append(String.format("%nMispredicted branches:%n"));
+        List<Edge> mispredicted = getMispredictedEdges();
+        for (int i = 0; i < Math.min(max, mispredicted.size()); i++) {
+            appendEdge(sb, mispredicted.get(i));
+        }
+        sb.append(String.format("%nHot ranges:%n"));
+        List<Range> hotRanges = getRanges();
+        for (int i = 0; i < Math.min(max, hotRanges.size()); i++) {
+            Range range = hotRanges.get(i);
+            sb.append(String.format("  %,10d  avg cycles %6.1f  %s .. %s (%d bytes)%n", range.count, range.getAverageCycles(),
+                    symbolizer.apply(range.start), symbolizer.apply(range.end), range.end - range.start));
+        }
+        return sb.toString();
+    }
+
+    private void appendEdge(StringBuilder sb, Edge edge) {
+        sb.append(String.format("  %,10d  mispredicted %5.1f%%  avg cycles %6.1f  %s -> %s%n", edge.count,
+                edge.getMispredictedRatio() * 100, edge.getAverageCycles(), symbolizer.apply(edge.start), symbolizer.apply(edge.end)));
+    }
+
+    abstract static class Span {
+        long start;
+        long end;
+        long count;
+        long cycles;
+        // entries with cycles reported
+        long cycleCount;
+
+        Span(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void set(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void recordCycles(int entryCycles) {
+            count++;
+            if (entryCycles > 0) {
+                cycles += entryCycles;
+                cycleCount++;
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return average core cycles, NaN if not reported by the hardware
+         */
+        public double getAverageCycles() {
+            return cycleCount > 0 ? (double) cycles / cycleCount : Double.NaN;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Span span = (Span) o;
+            return start == span.start && end == span.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(start) * 31 + Long.hashCode(end);
+        }
+    }
+
+    /**
+     * Taken branch from source to target address
+     */
+    public static class Edge extends Span {
+        long mispredicted;
+
+        Edge(long from, long to) {
+            super(from, to);
+        }
+
+        void record(long flags) {
+            recordCycles(SampleRecord.getBranchCycles(flags));
+            if ((flags & SampleRecord.BRANCH_MISPRED) != 0) {
+                mispredicted++;
+            }
+        }
+
+        public long getFrom() {
+            return start;
+        }
+
+        public long getTo() {
+            return end;
+        }
+
+        public long getMispredicted() {
+            return mispredicted;
+        }
+
+        public double getMispredictedRatio() {
+            return count > 0 ? (double) mispredicted / count : 0;
+        }
+    }
+
+    /**
+     * Straight-line code from a branch target to the next branch source, cycles are the cycles to execute it
+     */
+    public static class Range extends Span {
+        Range(long start, long end) {
+            super(start, end);
+        }
+
+        void record(int entryCycles) {
+            recordCycles(entryCycles);
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.LongFunction;
+
+/**
+ * Cache line contention analysis, like perf c2c: load & store samples with data address and data source
+ * from all threads are bucketed by cache line. Lines accessed from several cpus with loads hitting a line
+ * modified in another core cache (HITM) are contended; several offsets accessed by different threads
+ * on a contended line hint at false sharing
+ * Lines are ranked by contention cost: sum of the latencies (weights) of HITM loads
+ * <br>
+ * Usage:
+ *  <pre>
+ *      CacheLineContention c2c = new CacheLineContention(ip -> symbols.resolve(ip));
+ *      for (int cpu : OnlineCpus.open().getCpus()) {
+ *          c2c.open(-1, cpu); // all threads
+ *      }
+ *      c2c.reset();
+ *      c2c.enable();
+ *      // ... c2c.poll() periodically
+ *      c2c.shutdown();
+ *      System.out.println(c2c.report(10));
+ *  </pre>
+ */
+public class CacheLineContention {
+    public static final int CACHE_LINE_SIZE = 64;
+    // MEM_TRANS_RETIRED.LOAD_LATENCY with ldlat (PerfSampler.DEFAULT_LOAD_LATENCY) & MEM_INST_RETIRED.ALL_STORES
+    public static final String DEFAULT_LOAD_EVENT = "r01cd";
+    public static final String DEFAULT_STORE_EVENT = "r82d0";
+    public static final long DEFAULT_PERIOD = 1000;
+
+    private final String loadEvent;
+    private final String storeEvent;
+    private final long period;
+    private final LongFunction<String> symbolizer;
+    private final List<PerfSampler> samplers = new ArrayList<>();
+    private final Map<Long, Line> lines = new HashMap<>();
+    private final PerfSampler.SampleConsumer consumer = this::accept;
+
+    /**
+     * Default load & store events, one sample every 1000 events, ip aggregated as hexadecimal
+     */
+    public CacheLineContention() {
+        this(ip -> String.format("0x%x", ip));
+    }
+
+    /**
+     * Default load & store events, one sample every 1000 events
+     * @param symbolizer resolves an instruction pointer to the code location reported for an offset
+     */
+    public CacheLineContention(LongFunction<String> symbolizer) {
+        this(DEFAULT_LOAD_EVENT, DEFAULT_STORE_EVENT, DEFAULT_PERIOD, symbolizer);
+    }
+
+    /**
+     * @param loadEvent precise load event, e.g. MEM_TRANS_RETIRED.LOAD_LATENCY_GT_32
+     * @param storeEvent precise store event, e.g. MEM_INST_RETIRED.ALL_STORES, null to sample only loads
+     */
+    public CacheLineContention(String loadEvent, String storeEvent, long period, LongFunction<String> symbolizer) {
+        this.loadEvent = loadEvent;
+        this.storeEvent = storeEvent;
+        this.period = period;
+        this.symbolizer = symbolizer;
+    }
+
+    /**
+     * Opens load & store samplers. Called once per cpu with pid -1 for all threads (requires privileges)
+     * @param pid pid of the process to analyze, -1 for all processes
+     * @param cpu specific cpu, -1 for all cpus
+     */
+    public void open(int pid, int cpu) {
+        PerfSampler loads = PerfSampler.memory(loadEvent).period(period);
+        loads.open(pid, cpu);
+        samplers.add(loads);
+        if (storeEvent != null) {
+            PerfSampler stores = PerfSampler.memory(storeEvent).period(period);
+            try {
+                stores.open(pid, cpu);
+            } catch (UnsupportedOperationException e) {
+                samplers.remove(loads);
+                loads.close();
+                throw e;
+            }
+            samplers.add(stores);
+        }
+    }
+
+    public void enable() {
+        samplers.forEach(PerfSampler::enable);
+    }
+
+    public void reset() {
+        samplers.forEach(PerfSampler::reset);
+    }
+
+    public void disable() {
+        samplers.forEach(PerfSampler::disable);
+    }
+
+    /**
+     * Consumes the samples of all samplers, to be called before ring buffers are full
+     * @return number of samples consumed
+     */
+    public int poll() {
+        int count = 0;
+        for (int i = 0; i < samplers.size(); i++) {
+            count += samplers.get(i).poll(consumer);
+        }
+        return count;
+    }
+
+    /**
+     * @return records lost by all samplers because ring buffers were full
+     */
+    public long getLostRecords() {
+        long lost = 0;
+        for (PerfSampler sampler : samplers) {
+            lost += sampler.getLostRecords();
+        }
+        return lost;
+    }
+
+    public void close() {
+        samplers.forEach(PerfSampler::close);
+        samplers.clear();
+    }
+
+    /**
+     * Polls remaining samples, disables and closes the samplers
+     */
+    public void shutdown() {
+        disable();
+        poll();
+        close();
+    }
+
+    /**
+     * Accounts a sample, requires PERF_SAMPLE_IP, TID, CPU, ADDR, WEIGHT & DATA_SRC (PerfSampler.MEMORY_SAMPLE_TYPE)
+     */
+    public void accept(SampleRecord sample) {
+        accept(sample.getIp(), sample.getTid(), sample.getCpu(), sample.getAddr(), sample.getWeight(), sample.getDataSrc());
+    }
+
+    void accept(long ip, int tid, int cpu, long addr, long weight, long dataSrc) {
+        if (addr == 0) {
+            // no data address
+            return;
+        }
+        long lineAddress = addr & ~(CACHE_LINE_SIZE - 1L);
+        Line line = lines.computeIfAbsent(lineAddress, Line::new);
+        Offset offset = line.offsets.computeIfAbsent((int) (addr - lineAddress), Offset::new);
+        boolean store = DataSource.isStore(dataSrc);
+        boolean hitm = !store && DataSource.isHitm(dataSrc);
+        line.record(tid, cpu, store, hitm, weight, isRemote(dataSrc));
+        offset.record(tid, cpu, store, hitm, symbolizer.apply(ip));
+    }
+
+    private static boolean isRemote(long dataSrc) {
+        return DataSource.getLevel(dataSrc) == DataSource.Level.REMOTE_CACHE;
+    }
+
+    /**
+     * @return cache lines with HITM loads from several cpus, highest contention cost first
+     */
+    public List<Line> getContendedLines() {
+        List<Line> contended = new ArrayList<>();
+        for (Line line : lines.values()) {
+            if (line.isContended()) {
+                contended.add(line);
+            }
+        }
+        contended.sort((a, b) -> {
+            int cmp = Long.compare(b.hitmWeight, a.hitmWeight);
+            if (cmp == 0) {
+                cmp = Long.compare(b.hitm, a.hitm);
+            }
+            return cmp != 0 ? cmp : Long.compareUnsigned(a.address, b.address);
+        });
+        return contended;
+    }
+
+    /**
+     * @return cache line of the address, null if not sampled
+     */
+    public Line getLine(long addr) {
+        return lines.get(addr & ~(CACHE_LINE_SIZE - 1L));
+    }
+
+    /**
+     * @return number of sampled cache lines
+     */
+    public int getLineCount() {
+        return lines.size();
+    }
+
+    public void clear() {
+        lines.clear();
+    }
+
+    /**
+     * @param maxLines maximum number of contended lines reported
+     * @return contended lines with their offsets and code locations, highest cost first
+     */
+    public String report(int maxLines) {
+        StringBuilder sb = new StringBuilder();
+        List<Line> contended = getContendedLines();
+        sb.append(String.format("%d contended cache line(s) out of %d sampled%n", contended.size(), lines.size()));
+        for (int i = 0; i < Math.min(maxLines, contended.size()); i++) {
+            Line line = contended.get(i);
+            sb.append(String.format("%n#%d 0x%x cost %,d HITM %d (remote %d) loads %d stores %d cpus %s threads %d%s%n",
+                    i + 1, line.address, line.hitmWeight, line.hitm, line.remoteHitm, line.loads, line.stores,
+                    line.cpus, line.tids.size(), line.isFalseSharing() ? " FALSE SHARING" : ""));
+            for (Offset offset : line.offsets.values()) {
+                sb.append(String.format("    offset 0x%02x loads %d stores %d HITM %d cpus %s threads %s %s%n",
+                        offset.offset, offset.loads, offset.stores, offset.hitm, offset.cpus, offset.tids, offset.codeLocations));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Samples of a cache line
+     */
+    public static class Line {
+        private final long address;
+        private final BitSet cpus = new BitSet();
+        private final Set<Integer> tids = new HashSet<>();
+        private final Map<Integer, Offset> offsets = new TreeMap<>();
+        private long loads;
+        private long stores;
+        private long hitm;
+        private long remoteHitm;
+        private long hitmWeight;
+
+        Line(long address) {
+            this.address = address;
+        }
+
+        void record(int tid, int cpu, boolean store, boolean hitm, long weight, boolean remote) {
+            tids.add(tid);
+            cpus.set(cpu);
+            if (store) {
+                stores++;
+                return;
+            }
+            loads++;
+            if (hitm) {
+                this.hitm++;
+                hitmWeight += weight;
+                if (remote) {
+                    remoteHitm++;
+                }
+            }
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public long getLoads() {
+            return loads;
+        }
+
+        public long getStores() {
+            return stores;
+        }
+
+        public long getHitm() {
+            return hitm;
+        }
+
+        public long getRemoteHitm() {
+            return remoteHitm;
+        }
+
+        /**
+         * @return sum of the latencies (cycles) of HITM loads
+         */
+        public long getCost() {
+            return hitmWeight;
+        }
+
+        public BitSet getCpus() {
+            return (BitSet) cpus.clone();
+        }
+
+        public int getThreadCount() {
+            return tids.size();
+        }
+
+        /**
+         * @return accessed offsets in the line, in offset order
+         */
+        public List<Offset> getOffsets() {
+            return new ArrayList<>(offsets.values());
+        }
+
+        /**
+         * @return HITM loads and accesses from several cpus
+         */
+        public boolean isContended() {
+            return hitm > 0 && cpus.cardinality() > 1;
+        }
+
+        /**
+         * @return contended with different offsets accessed by disjoint sets of threads: threads do not share data
+         * but the line, padding or separating the fields removes the contention
+         */
+        public boolean isFalseSharing() {
+            if (!isContended() || offsets.size() < 2 || tids.size() < 2) {
+                return false;
+            }
+            // a thread accessing several offsets shares data through them, separating them would not help
+            Set<Integer> seen = new HashSet<>();
+            for (Offset offset : offsets.values()) {
+                for (Integer tid : offset.tids) {
+                    if (!seen.add(tid)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Samples of an offset within a cache line
+     */
+    public static class Offset {
+        private final int offset;
+        private final BitSet cpus = new BitSet();
+        private final Set<Integer> tids = new TreeSet<>();
+        // code location -> samples
+        private final Map<String, Long> codeLocations = new TreeMap<>();
+        private long loads;
+        private long stores;
+        private long hitm;
+
+        Offset(int offset) {
+            this.offset = offset;
+        }
+
+        void record(int tid, int cpu, boolean store, boolean hitm, String codeLocation) {
+            tids.add(tid);
+            cpus.set(cpu);
+            if (store) {
+                stores++;
+            } else {
+                loads++;
+            }
+            if (hitm) {
+                this.hitm++;
+            }
+            codeLocations.merge(codeLocation, 1L, Long::sum);
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public long getLoads() {
+            return loads;
+        }
+
+        public long getStores() {
+            return stores;
+        }
+
+        public long getHitm() {
+            return hitm;
+        }
+
+        public BitSet getCpus() {
+            return (BitSet) cpus.clone();
+        }
+
+        /**
+         * @return thread ids accessing the offset, ascending
+         */
+        public Set<Integer> getThreadIds() {
+            return new TreeSet<>(tids);
+        }
+
+        /**
+         * @return code locations accessing the offset with their number of samples
+         */
+        public Map<String, Long> getCodeLocations() {
+            return new TreeMap<>(codeLocations);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.Arrays;
+
+/**
+ * Counts events for the tasks of a cgroup, with one group per cpu summed on read
+ * Number of fds does not depend on the number of threads/processes in the cgroup
+ * Cpus are the online cpus within the cpuset of the process (see OnlineCpus) at construction
+ * <br>
+ * Usage:
+ *  <pre>
+ *      CgroupCounters counters = new CgroupCounters("system.slice/docker-1234.scope", "cycles,instructions");
+ *      CounterSnapshot total = new CounterSnapshot(counters.size());
+ *      counters.start();
+ *      // ...
+ *      counters.read(total);
+ *      counters.shutdown();
+ *  </pre>
+ */
+public class CgroupCounters {
+    private final String cgroupName;
+    private final int[] cpus;
+    private final PerfGroupEvent[] groups;
+    private final CounterSnapshot[] cpuValues;
+
+    /**
+     * @param cgroupName cgroup path, see PerfCgroup.open
+     * @param eventName perf event name, supports group of events with comma-separated event name list
+     */
+    public CgroupCounters(String cgroupName, String eventName) {
+        this(cgroupName, eventName, onlineCpus());
+    }
+
+    CgroupCounters(String cgroupName, String eventName, int[] cpus) {
+        this.cgroupName = cgroupName;
+        this.cpus = cpus;
+        groups = new PerfGroupEvent[cpus.length];
+        cpuValues = new CounterSnapshot[cpus.length];
+        for (int i = 0; i < cpus.length; i++) {
+            groups[i] = new PerfGroupEvent(eventName);
+            cpuValues[i] = new CounterSnapshot(groups[i].size());
+        }
+    }
+
+    private static int[] onlineCpus() {
+        OnlineCpus onlineCpus = OnlineCpus.open();
+        try {
+            return onlineCpus.getCpus();
+        } finally {
+            onlineCpus.close();
+        }
+    }
+
+    /**
+     * @return cpu numbers counted, ascending
+     */
+    public int[] getCpus() {
+        return cpus;
+    }
+
+    /**
+     * @return number of events per cpu
+     */
+    public int size() {
+        return groups[0].size();
+    }
+
+    public String getEventName(int index) {
+        return groups[0].getEventName(index);
+    }
+
+    /**
+     * Opens the groups of events on each cpu. The cgroup directory fd is only needed during open
+     * If a cpu cannot be opened, groups already opened are closed
+     */
+    public void open() {
+        PerfCgroup cgroup = PerfCgroup.open(cgroupName);
+        try {
+            for (int i = 0; i < groups.length; i++) {
+                try {
+                    groups[i].open(cgroup, cpus[i]);
+                } catch (UnsupportedOperationException e) {
+                    for (int j = 0; j < i; j++) {
+                        groups[j].close();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            cgroup.close();
+        }
+    }
+
+    public void enable() {
+        for (PerfGroupEvent group : groups) {
+            group.enable();
+        }
+    }
+
+    public void disable() {
+        for (PerfGroupEvent group : groups) {
+            group.disable();
+        }
+    }
+
+    public void reset() {
+        for (PerfGroupEvent group : groups) {
+            group.reset();
+        }
+    }
+
+    /**
+     * Reads all cpus and sums their values, without allocation
+     * Values are scaled per cpu before being summed. Time enabled/running are the sums over cpus
+     * @param total receives the aggregated values
+     */
+    public void read(CounterSnapshot total) {
+        total.clear();
+        for (int i = 0; i < groups.length; i++) {
+            groups[i].read(cpuValues[i]);
+            total.accumulate(cpuValues[i]);
+        }
+    }
+
+    /**
+     * @param cpu cpu number, one of getCpus()
+     * @return values of a cpu as of last read
+     */
+    public CounterSnapshot getCpuValues(int cpu) {
+        int index = Arrays.binarySearch(cpus, cpu);
+        if (index < 0) {
+            throw new IllegalArgumentException("Cpu not counted: " + cpu);
+        }
+        return cpuValues[index];
+    }
+
+    public void close() {
+        for (PerfGroupEvent group : groups) {
+            group.close();
+        }
+    }
+
+    /**
+     * Starts counting performing open/reset/enable operations
+     */
+    public void start() {
+        open();
+        reset();
+        enable();
+    }
+
+    /**
+     * Stops counting performing disable/close operations
+     */
+    public void shutdown() {
+        disable();
+        close();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+/**
+ * Preallocated snapshot of counter values with their time enabled/running
+ * Used to compute deltas between two reads without reset and to accumulate them
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfGroupEvent events = new PerfGroupEvent("cycles,instructions");
+ *      CounterSnapshot prev = new CounterSnapshot(events.size());
+ *      CounterSnapshot cur = new CounterSnapshot(events.size());
+ *      CounterSnapshot delta = new CounterSnapshot(events.size());
+ *      CounterSnapshot total = new CounterSnapshot(events.size());
+ *      events.start();
+ *      events.read(prev);
+ *      while (running) {
+ *          // ...
+ *          events.read(cur);
+ *          CounterSnapshot.delta(prev, cur, delta);
+ *          total.accumulate(delta);
+ *          prev.copyFrom(cur);
+ *      }
+ *  </pre>
+ */
+public class CounterSnapshot {
+    final long[] values;
+    final long[] timeEnabled;
+    final long[] timeRunning;
+    final long[] scaledValues;
+
+    /**
+     * @param size number of counters
+     */
+    public CounterSnapshot(int size) {
+        values = new long[size];
+        timeEnabled = new long[size];
+        timeRunning = new long[size];
+        scaledValues = new long[size];
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return raw value of the counter
+     */
+    public long getValue(int index) {
+        return values[index];
+    }
+
+    public long getTimeEnabled(int index) {
+        return timeEnabled[index];
+    }
+
+    public long getTimeRunning(int index) {
+        return timeRunning[index];
+    }
+
+    /**
+     * @return value scaled to compensate multiplexing
+     */
+    public long getScaledValue(int index) {
+        return scaledValues[index];
+    }
+
+    /**
+     * @return percentage of enabled time the counter was actually counting
+     */
+    public double getCountedPercentage(int index) {
+        return PerfEvent.countedPercentage(timeEnabled[index], timeRunning[index]);
+    }
+
+    /**
+     * Sets a counter, scaled value is computed from time enabled/running
+     */
+    public void set(int index, long value, long enabled, long running) {
+        values[index] = value;
+        timeEnabled[index] = enabled;
+        timeRunning[index] = running;
+        scaledValues[index] = PerfEvent.scale(value, enabled, running);
+    }
+
+    public void copyFrom(CounterSnapshot other) {
+        checkSize(other);
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        System.arraycopy(other.timeEnabled, 0, timeEnabled, 0, timeEnabled.length);
+        System.arraycopy(other.timeRunning, 0, timeRunning, 0, timeRunning.length);
+        System.arraycopy(other.scaledValues, 0, scaledValues, 0, scaledValues.length);
+    }
+
+    public void clear() {
+        for (int i = 0; i < values.length; i++) {
+            set(i, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Computes the difference between 2 snapshots of the same counters, without allocation
+     * Kernel counters are 64 bits and do not wrap in practice: a value going backwards means the counter
+     * was reset (PERF_EVENT_IOC_RESET zeroes the count but not the times), current value is then taken as delta.
+     * If time enabled went backwards (counter reopened), current values and times are taken as delta.
+     * Scaled delta is computed from time enabled/running deltas
+     * @param prev previous snapshot
+     * @param cur current snapshot
+     * @param out receives cur - prev, can be the same instance as prev or cur
+     */
+    public static void delta(CounterSnapshot prev, CounterSnapshot cur, CounterSnapshot out) {
+        prev.checkSize(cur);
+        out.checkSize(cur);
+        for (int i = 0; i < cur.values.length; i++) {
+            long value;
+            long enabled;
+            long running;
+            if (Long.compareUnsigned(cur.timeEnabled[i], prev.timeEnabled[i]) < 0) {
+                value = cur.values[i];
+                enabled = cur.timeEnabled[i];
+                running = cur.timeRunning[i];
+            } else {
+                value = Long.compareUnsigned(cur.values[i], prev.values[i]) < 0
+                        ? cur.values[i]
+                        : cur.values[i] - prev.values[i];
+                enabled = cur.timeEnabled[i] - prev.timeEnabled[i];
+                running = cur.timeRunning[i] - prev.timeRunning[i];
+            }
+            out.set(i, value, enabled, running);
+        }
+    }
+
+    /**
+     * Accumulates a delta into this snapshot used as totals
+     * Additions saturate at Long.MAX_VALUE instead of overflowing
+     */
+    public void accumulate(CounterSnapshot delta) {
+        checkSize(delta);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = saturatedAdd(values[i], delta.values[i]);
+            timeEnabled[i] = saturatedAdd(timeEnabled[i], delta.timeEnabled[i]);
+            timeRunning[i] = saturatedAdd(timeRunning[i], delta.timeRunning[i]);
+            scaledValues[i] = saturatedAdd(scaledValues[i], delta.scaledValues[i]);
+        }
+    }
+
+    static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        // overflow iff both operands have the same sign, different from the result
+        if (((a ^ r) & (b ^ r)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return r;
+    }
+
+    private void checkSize(CounterSnapshot other) {
+        if (other.values.length != values.length) {
+            throw new IllegalArgumentException(String.format("Snapshot size mismatch [%d] vs [%d]", values.length, other.values.length));
+        }
+    }
+}
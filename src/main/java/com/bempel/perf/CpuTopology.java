@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cpu topology read from sysfs: socket (physical package), die, core and NUMA node of each cpu
+ * Read once and cached, indexed by cpu number. -1 when unknown (e.g. offline cpu)
+ */
+public class CpuTopology {
+    static final String CPU_DIR = "/sys/devices/system/cpu";
+    static final String NODE_DIR = "/sys/devices/system/node";
+    static final int UNKNOWN = -1;
+
+    private static volatile CpuTopology instance;
+
+    private final int[] sockets;
+    private final int[] dies;
+    private final int[] cores;
+    private final int[] nodes;
+
+    private CpuTopology(int cpuCount) {
+        sockets = newUnknownArray(cpuCount);
+        dies = newUnknownArray(cpuCount);
+        cores = newUnknownArray(cpuCount);
+        nodes = newUnknownArray(cpuCount);
+    }
+
+    /**
+     * @return topology of the machine, read on first call
+     */
+    public static CpuTopology get() {
+        CpuTopology topology = instance;
+        if (topology == null) {
+            topology = read(CPU_DIR, NODE_DIR);
+            instance = topology;
+        }
+        return topology;
+    }
+
+    static CpuTopology read(String cpuDir, String nodeDir) {
+        String[] entries = new File(cpuDir).list((dir, name) -> name.matches("cpu\\d+"));
+        if (entries == null) {
+            throw new UnsupportedOperationException("Cannot list " + cpuDir);
+        }
+        int maxCpu = -1;
+        for (String entry : entries) {
+            maxCpu = Math.max(maxCpu, Integer.parseInt(entry.substring(3)));
+        }
+        CpuTopology topology = new CpuTopology(maxCpu + 1);
+        for (String entry : entries) {
+            int cpu = Integer.parseInt(entry.substring(3));
+            String topologyDir = cpuDir + "/" + entry + "/topology/";
+            topology.sockets[cpu] = readInt(topologyDir + "physical_package_id");
+            topology.dies[cpu] = readInt(topologyDir + "die_id");
+            topology.cores[cpu] = readInt(topologyDir + "core_id");
+        }
+        String[] nodeEntries = new File(nodeDir).list((dir, name) -> name.matches("node\\d+"));
+        if (nodeEntries != null) {
+            for (String nodeEntry : nodeEntries) {
+                int node = Integer.parseInt(nodeEntry.substring(4));
+                String cpuList = readLine(nodeDir + "/" + nodeEntry + "/cpulist");
+                if (cpuList == null) {
+                    continue;
+                }
+                for (int cpu : parseCpuList(cpuList)) {
+                    if (cpu < topology.nodes.length) {
+                        topology.nodes[cpu] = node;
+                    }
+                }
+            }
+        }
+        return topology;
+    }
+
+    /**
+     * @return number of cpu slots: highest cpu number + 1
+     */
+    public int getCpuCount() {
+        return sockets.length;
+    }
+
+    public int getSocket(int cpu) {
+        return get(sockets, cpu);
+    }
+
+    public int getDie(int cpu) {
+        return get(dies, cpu);
+    }
+
+    /**
+     * @return core id, unique within a die only
+     */
+    public int getCore(int cpu) {
+        return get(cores, cpu);
+    }
+
+    public int getNode(int cpu) {
+        return get(nodes, cpu);
+    }
+
+    /**
+     * Parses a cpu list like "0-3,8,10-11" (sysfs/cgroup format)
+     * @return cpu numbers, ascending
+     */
+    public static int[] parseCpuList(String cpuList) {
+        String list = cpuList.trim();
+        if (list.isEmpty()) {
+            return new int[0];
+        }
+        int count = 0;
+        int[] cpus = new int[16];
+        for (String range : list.split(",")) {
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int cpu = first; cpu <= last; cpu++) {
+                if (count == cpus.length) {
+                    cpus = Arrays.copyOf(cpus, count * 2);
+                }
+                cpus[count++] = cpu;
+            }
+        }
+        int[] result = Arrays.copyOf(cpus, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int get(int[] values, int cpu) {
+        return cpu >= 0 && cpu < values.length ? values[cpu] : UNKNOWN;
+    }
+
+    private static int[] newUnknownArray(int size) {
+        int[] values = new int[size];
+        Arrays.fill(values, UNKNOWN);
+        return values;
+    }
+
+    private static int readInt(String path) {
+        String line = readLine(path);
+        return line != null ? Integer.parseInt(line) : UNKNOWN;
+    }
+
+    static String readLine(String path) {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file.toPath());
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+/**
+ * Decodes union perf_mem_data_src (PERF_SAMPLE_DATA_SRC, from linux/perf_event.h):
+ * memory operation, level of the memory hierarchy serving the access, snoop result, TLB & lock
+ */
+public final class DataSource {
+    // bit fields of perf_mem_data_src
+    static final int OP_SHIFT = 0;
+    static final int LVL_SHIFT = 5;
+    static final int SNOOP_SHIFT = 19;
+    static final int LOCK_SHIFT = 24;
+    static final int DTLB_SHIFT = 26;
+    static final int LVL_NUM_SHIFT = 33;
+    static final int REMOTE_SHIFT = 37;
+    static final int SNOOPX_SHIFT = 38;
+
+    // mem_op
+    public static final int OP_NA = 0x01;
+    public static final int OP_LOAD = 0x02;
+    public static final int OP_STORE = 0x04;
+    public static final int OP_PFETCH = 0x08;
+    public static final int OP_EXEC = 0x10;
+    // mem_lvl
+    public static final int LVL_NA = 0x01;
+    public static final int LVL_HIT = 0x02;
+    public static final int LVL_MISS = 0x04;
+    public static final int LVL_L1 = 0x08;
+    public static final int LVL_LFB = 0x10;
+    public static final int LVL_L2 = 0x20;
+    public static final int LVL_L3 = 0x40;
+    public static final int LVL_LOC_RAM = 0x80;
+    public static final int LVL_REM_RAM1 = 0x100;
+    public static final int LVL_REM_RAM2 = 0x200;
+    public static final int LVL_REM_CCE1 = 0x400;
+    public static final int LVL_REM_CCE2 = 0x800;
+    public static final int LVL_IO = 0x1000;
+    public static final int LVL_UNC = 0x2000;
+    // mem_lvl_num
+    public static final int LVL_NUM_L1 = 0x01;
+    public static final int LVL_NUM_L2 = 0x02;
+    public static final int LVL_NUM_L3 = 0x03;
+    public static final int LVL_NUM_L4 = 0x04;
+    public static final int LVL_NUM_ANY_CACHE = 0x0b;
+    public static final int LVL_NUM_LFB = 0x0c;
+    public static final int LVL_NUM_RAM = 0x0d;
+    public static final int LVL_NUM_PMEM = 0x0e;
+    public static final int LVL_NUM_NA = 0x0f;
+    // mem_snoop
+    public static final int SNOOP_NA = 0x01;
+    public static final int SNOOP_NONE = 0x02;
+    public static final int SNOOP_HIT = 0x04;
+    public static final int SNOOP_MISS = 0x08;
+    public static final int SNOOP_HITM = 0x10;
+    // mem_snoopx
+    public static final int SNOOPX_FWD = 0x01;
+    // mem_lock
+    public static final int LOCK_LOCKED = 0x02;
+    // mem_dtlb
+    public static final int TLB_HIT = 0x02;
+    public static final int TLB_MISS = 0x04;
+
+    /**
+     * Level serving the access, from the closest to the farthest
+     */
+    public enum Level {
+        L1,
+        LFB,
+        L2,
+        L3,
+        LOCAL_DRAM,
+        REMOTE_CACHE,
+        REMOTE_DRAM,
+        IO,
+        UNCACHED,
+        UNKNOWN
+    }
+
+    private DataSource() {
+    }
+
+    public static int getOp(long dataSrc) {
+        return (int) (dataSrc >>> OP_SHIFT) & 0x1f;
+    }
+
+    public static int getLvl(long dataSrc) {
+        return (int) (dataSrc >>> LVL_SHIFT) & 0x3fff;
+    }
+
+    public static int getSnoop(long dataSrc) {
+        return (int) (dataSrc >>> SNOOP_SHIFT) & 0x1f;
+    }
+
+    public static int getLock(long dataSrc) {
+        return (int) (dataSrc >>> LOCK_SHIFT) & 0x3;
+    }
+
+    public static int getDtlb(long dataSrc) {
+        return (int) (dataSrc >>> DTLB_SHIFT) & 0x7f;
+    }
+
+    public static int getLvlNum(long dataSrc) {
+        return (int) (dataSrc >>> LVL_NUM_SHIFT) & 0xf;
+    }
+
+    public static boolean isRemote(long dataSrc) {
+        return ((dataSrc >>> REMOTE_SHIFT) & 0x1) != 0;
+    }
+
+    public static int getSnoopX(long dataSrc) {
+        return (int) (dataSrc >>> SNOOPX_SHIFT) & 0x3;
+    }
+
+    public static boolean isLoad(long dataSrc) {
+        return (getOp(dataSrc) & OP_LOAD) != 0;
+    }
+
+    public static boolean isStore(long dataSrc) {
+        return (getOp(dataSrc) & OP_STORE) != 0;
+    }
+
+    /**
+     * @return true if the access hit a modified line in another core cache (snoop HITM)
+     */
+    public static boolean isHitm(long dataSrc) {
+        return (getSnoop(dataSrc) & SNOOP_HITM) != 0;
+    }
+
+    public static boolean isTlbMiss(long dataSrc) {
+        return (getDtlb(dataSrc) & TLB_MISS) != 0;
+    }
+
+    public static boolean isLocked(long dataSrc) {
+        return (getLock(dataSrc) & LOCK_LOCKED) != 0;
+    }
+
+    /**
+     * @return level serving the access, from mem_lvl_num when reported by the kernel, mem_lvl otherwise.
+     * UNKNOWN when the level is reported as missed (e.g. store missing L1): the level serving it is not reported
+     */
+    public static Level getLevel(long dataSrc) {
+        int lvl = getLvl(dataSrc);
+        boolean hit = (lvl & LVL_HIT) != 0;
+        if (!hit && (lvl & LVL_MISS) != 0) {
+            return Level.UNKNOWN;
+        }
+        int lvlNum = getLvlNum(dataSrc);
+        boolean remote = isRemote(dataSrc);
+        switch (lvlNum) {
+            case LVL_NUM_L1:
+                return Level.L1;
+            case LVL_NUM_L2:
+                return remote ? Level.REMOTE_CACHE : Level.L2;
+            case LVL_NUM_L3:
+            case LVL_NUM_L4:
+            case LVL_NUM_ANY_CACHE:
+                return remote ? Level.REMOTE_CACHE : Level.L3;
+            case LVL_NUM_LFB:
+                return Level.LFB;
+            case LVL_NUM_RAM:
+            case LVL_NUM_PMEM:
+                return remote ? Level.REMOTE_DRAM : Level.LOCAL_DRAM;
+            default:
+                break;
+        }
+        if ((lvl & LVL_L1) != 0 && hit) {
+            return Level.L1;
+        }
+        if ((lvl & LVL_LFB) != 0) {
+            return Level.LFB;
+        }
+        if ((lvl & LVL_L2) != 0) {
+            return Level.L2;
+        }
+        if ((lvl & LVL_L3) != 0) {
+            return Level.L3;
+        }
+        if ((lvl & LVL_LOC_RAM) != 0) {
+            return Level.LOCAL_DRAM;
+        }
+        if ((lvl & (LVL_REM_CCE1 | LVL_REM_CCE2)) != 0) {
+            return Level.REMOTE_CACHE;
+        }
+        if ((lvl & (LVL_REM_RAM1 | LVL_REM_RAM2)) != 0) {
+            return Level.REMOTE_DRAM;
+        }
+        if ((lvl & LVL_IO) != 0) {
+            return Level.IO;
+        }
+        if ((lvl & LVL_UNC) != 0) {
+            return Level.UNCACHED;
+        }
+        return Level.UNKNOWN;
+    }
+
+    /**
+     * @return perf-like description, e.g. "LOAD L3 hit snoop HITM"
+     */
+    public static String toString(long dataSrc) {
+        StringBuilder sb = new StringBuilder();
+        int op = getOp(dataSrc);
+        sb.append((op & OP_LOAD) != 0 ? "LOAD" : (op & OP_STORE) != 0 ? "STORE" : (op & OP_PFETCH) != 0 ? "PFETCH" : (op & OP_EXEC) != 0 ? "EXEC" : "N/A");
+        sb.append(' ').append(getLevel(dataSrc));
+        int lvl = getLvl(dataSrc);
+        if ((lvl & LVL_HIT) != 0) {
+            sb.append(" hit");
+        } else if ((lvl & LVL_MISS) != 0) {
+            sb.append(" miss");
+        }
+        int snoop = getSnoop(dataSrc);
+        if ((snoop & SNOOP_HITM) != 0) {
+            sb.append(" snoop HITM");
+        } else if ((snoop & SNOOP_HIT) != 0) {
+            sb.append(" snoop hit");
+        } else if ((getSnoopX(dataSrc) & SNOOPX_FWD) != 0) {
+            sb.append(" snoop FWD");
+        }
+        if (isTlbMiss(dataSrc)) {
+            sb.append(" TLB miss");
+        }
+        if (isLocked(dataSrc)) {
+            sb.append(" locked");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.pmuevents.PMUEvent;
+import com.bempel.perf.pmuevents.PMUEventMap;
+import com.bempel.perf.pmuevents.PMUEvents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a list of events into groups the PMU can schedule: each group fits in the general purpose (GP)
+ * and fixed counters, honoring the counter constraints of PMU events (Counter, or CounterHTOff when SMT is off).
+ * Fixed counters (Intel): 0 instructions, 1 cycles, 2 ref-cycles. Software events and tracepoints
+ * need no counter and join the first group.
+ * <br>
+ * Events are placed most constrained first, each in the first group where a counter assignment exists
+ * (bipartite matching), so groups usually reach the lower bound of GP events / GP counters.
+ * <br>
+ * Usage:
+ *  <pre>
+ *      GroupPlanner.Plan plan = new GroupPlanner().plan("cycles,instructions,L1D.REPLACEMENT,...");
+ *      System.out.println(plan); // groups and expected coverage
+ *      List&lt;PerfGroupEvent&gt; groups = plan.createGroups();
+ *  </pre>
+ */
+public class GroupPlanner {
+    static final int DEFAULT_GP_COUNTERS = 4;
+    static final int FIXED_COUNTERS = 3;
+    static final int FIXED_INSTRUCTIONS = 0;
+    static final int FIXED_CYCLES = 1;
+    static final int FIXED_REF_CYCLES = 2;
+    static final String FIXED_COUNTER_PREFIX = "Fixed counter ";
+    static final String NMI_WATCHDOG = "/proc/sys/kernel/nmi_watchdog";
+
+    private final PMUEventMap eventMap;
+    private final boolean smtOn;
+    private final int gpCounters;
+    private final int fixedCounters;
+    // counters available to user events: all GP, fixed ones not used by the NMI watchdog
+    private final long availableCounters;
+
+    /**
+     * Counters of the current cpu model: GP counter count is the highest counter of the PMU event map + 1,
+     * fixed counters are used only when a PMU event map is known (Intel), fixed cycles is left to the NMI watchdog
+     */
+    public GroupPlanner() {
+        this(PMUEvents.getPMUEventMap(), "1".equals(CpuTopology.readLine(MetricSet.SMT_ACTIVE)),
+                "1".equals(CpuTopology.readLine(NMI_WATCHDOG)));
+    }
+
+    GroupPlanner(PMUEventMap eventMap, boolean smtOn, boolean nmiWatchdog) {
+        this(eventMap, smtOn, countGpCounters(eventMap, smtOn), eventMap != null ? FIXED_COUNTERS : 0, nmiWatchdog);
+    }
+
+    /**
+     * @param eventMap PMU events for counter constraints, null if unknown
+     * @param nmiWatchdog NMI watchdog enabled: pinned cycles event holds fixed counter 1
+     */
+    public GroupPlanner(PMUEventMap eventMap, boolean smtOn, int gpCounters, int fixedCounters, boolean nmiWatchdog) {
+        if (gpCounters <= 0 || gpCounters + fixedCounters > Long.SIZE) {
+            throw new IllegalArgumentException(String.format("Invalid counters: gp[%d] fixed[%d]", gpCounters, fixedCounters));
+        }
+        this.eventMap = eventMap;
+        this.smtOn = smtOn;
+        this.gpCounters = gpCounters;
+        this.fixedCounters = fixedCounters;
+        long available = gpMask();
+        for (int fixed = 0; fixed < fixedCounters; fixed++) {
+            if (!(nmiWatchdog && fixed == FIXED_CYCLES)) {
+                available |= fixedBit(fixed);
+            }
+        }
+        this.availableCounters = available;
+    }
+
+    private static int countGpCounters(PMUEventMap eventMap, boolean smtOn) {
+        if (eventMap == null) {
+            return DEFAULT_GP_COUNTERS;
+        }
+        int[] max = {-1};
+        eventMap.forEach(pmuEvent -> {
+            String counter = smtOn ? pmuEvent.counter : pmuEvent.counterHTOff;
+            if (counter != null && !counter.startsWith(FIXED_COUNTER_PREFIX)) {
+                for (String index : counter.split(",")) {
+                    max[0] = Math.max(max[0], Integer.parseInt(index.trim()));
+                }
+            }
+        });
+        return max[0] >= 0 ? max[0] + 1 : DEFAULT_GP_COUNTERS;
+    }
+
+    public int getGpCounters() {
+        return gpCounters;
+    }
+
+    public int getFixedCounters() {
+        return fixedCounters;
+    }
+
+    /**
+     * @param eventNames comma-separated event names
+     */
+    public Plan plan(String eventNames) {
+        return plan(Arrays.asList(eventNames.split(",")));
+    }
+
+    /**
+     * @throws IllegalArgumentException if an event cannot be scheduled on any available counter
+     */
+    public Plan plan(List<String> eventNames) {
+        int count = eventNames.size();
+        long[] masks = new long[count];
+        List<Integer> hardware = new ArrayList<>();
+        List<Integer> others = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = eventNames.get(i);
+            Long mask = counterMask(name);
+            if (mask == null) {
+                others.add(i);
+                continue;
+            }
+            masks[i] = mask & availableCounters;
+            if (masks[i] == 0) {
+                throw new IllegalArgumentException("No counter available for event: " + name);
+            }
+            hardware.add(i);
+        }
+        // most constrained first, request order otherwise
+        hardware.sort((a, b) -> Integer.compare(Long.bitCount(masks[a]), Long.bitCount(masks[b])));
+        List<List<Integer>> groups = new ArrayList<>();
+        for (int event : hardware) {
+            boolean placed = false;
+            for (List<Integer> group : groups) {
+                group.add(event);
+                if (isSchedulable(group, masks)) {
+                    placed = true;
+                    break;
+                }
+                group.remove(group.size() - 1);
+            }
+            if (!placed) {
+                List<Integer> group = new ArrayList<>();
+                group.add(event);
+                groups.add(group);
+            }
+        }
+        int hardwareGroups = groups.size();
+        if (groups.isEmpty() && !others.isEmpty()) {
+            groups.add(new ArrayList<>());
+        }
+        if (!others.isEmpty()) {
+            groups.get(0).addAll(others);
+        }
+        // request order within groups and between groups
+        for (List<Integer> group : groups) {
+            Collections.sort(group);
+        }
+        groups.sort((a, b) -> Integer.compare(a.get(0), b.get(0)));
+        List<List<String>> result = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups) {
+            List<String> names = new ArrayList<>(group.size());
+            for (int event : group) {
+                names.add(eventNames.get(event));
+            }
+            result.add(Collections.unmodifiableList(names));
+        }
+        return new Plan(Collections.unmodifiableList(result), hardwareGroups, lowerBound(hardware, masks));
+    }
+
+    /**
+     * Counter count bounds, the highest one applies: all events over all available counters, GP-only events
+     * over GP counters, and events restricted to one fixed counter need one group each
+     */
+    private int lowerBound(List<Integer> hardware, long[] masks) {
+        long gp = gpMask();
+        int gpOnly = 0;
+        int[] fixedOnly = new int[fixedCounters];
+        for (int event : hardware) {
+            if ((masks[event] & ~gp) == 0) {
+                gpOnly++;
+            } else if ((masks[event] & gp) == 0 && Long.bitCount(masks[event]) == 1) {
+                fixedOnly[Long.numberOfTrailingZeros(masks[event]) - gpCounters]++;
+            }
+        }
+        int capacity = Long.bitCount(availableCounters);
+        int bound = Math.max((hardware.size() + capacity - 1) / capacity, (gpOnly + gpCounters - 1) / gpCounters);
+        for (int count : fixedOnly) {
+            bound = Math.max(bound, count);
+        }
+        return bound;
+    }
+
+    /**
+     * @return bit mask of counters able to count the event (GP counters first, then fixed), null if no counter is needed
+     */
+    Long counterMask(String name) {
+        PerfEventConsts.PerfEventInfo info = PerfEventConsts.getPerfEvent(name);
+        if (info != null) {
+            if (info.getType() == PerfEventConsts.PERF_TYPE_HARDWARE) {
+                if (info.getValue() == PerfEventConsts.PerfHwId.PERF_COUNT_HW_INSTRUCTIONS.getValue()) {
+                    return gpMask() | fixedBit(FIXED_INSTRUCTIONS);
+                }
+                if (info.getValue() == PerfEventConsts.PerfHwId.PERF_COUNT_HW_CPU_CYCLES.getValue()) {
+                    return gpMask() | fixedBit(FIXED_CYCLES);
+                }
+                if (info.getValue() == PerfEventConsts.PerfHwId.PERF_COUNT_HW_REF_CPU_CYCLES.getValue() && fixedCounters > FIXED_REF_CYCLES) {
+                    return fixedBit(FIXED_REF_CYCLES);
+                }
+                return gpMask();
+            }
+            return info.getType() == PerfEventConsts.PERF_TYPE_HW_CACHE ? gpMask() : null;
+        }
+        if (name.matches("r[0-9a-fA-F]{1,16}")) {
+            return gpMask();
+        }
+        PMUEvent pmuEvent = eventMap != null ? eventMap.get(name) : null;
+        if (pmuEvent == null) {
+            // tracepoints
+            return null;
+        }
+        String counter = smtOn || pmuEvent.counterHTOff == null ? pmuEvent.counter : pmuEvent.counterHTOff;
+        if (counter == null) {
+            return gpMask();
+        }
+        if (counter.startsWith(FIXED_COUNTER_PREFIX)) {
+            int fixed = Integer.parseInt(counter.substring(FIXED_COUNTER_PREFIX.length()).trim());
+            return fixed < fixedCounters ? fixedBit(fixed) : 0L;
+        }
+        long mask = 0;
+        for (String index : counter.split(",")) {
+            int gp = Integer.parseInt(index.trim());
+            if (gp < gpCounters) {
+                mask |= 1L << gp;
+            }
+        }
+        return mask;
+    }
+
+    private long gpMask() {
+        return gpCounters == Long.SIZE ? -1L : (1L << gpCounters) - 1;
+    }
+
+    private long fixedBit(int fixed) {
+        return 1L << (gpCounters + fixed);
+    }
+
+    /**
+     * Bipartite matching of the events of the group to counters (augmenting paths)
+     */
+    static boolean isSchedulable(List<Integer> group, long[] masks) {
+        int[] eventOfCounter = new int[Long.SIZE];
+        Arrays.fill(eventOfCounter, -1);
+        for (int event : group) {
+            if (!assign(event, masks, eventOfCounter, new boolean[Long.SIZE])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean assign(int event, long[] masks, int[] eventOfCounter, boolean[] visited) {
+        long mask = masks[event];
+        while (mask != 0) {
+            int counter = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            if (visited[counter]) {
+                continue;
+            }
+            visited[counter] = true;
+            if (eventOfCounter[counter] < 0 || assign(eventOfCounter[counter], masks, eventOfCounter, visited)) {
+                eventOfCounter[counter] = event;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Groups of events, each schedulable on its own
+     */
+    public static class Plan {
+        private final List<List<String>> groups;
+        private final int hardwareGroups;
+        private final int lowerBound;
+
+        Plan(List<List<String>> groups, int hardwareGroups, int lowerBound) {
+            this.groups = groups;
+            this.hardwareGroups = hardwareGroups;
+            this.lowerBound = lowerBound;
+        }
+
+        public List<List<String>> getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return comma-separated event names of a group, as expected by PerfGroupEvent
+         */
+        public String getGroupEventNames(int group) {
+            return String.join(",", groups.get(group));
+        }
+
+        /**
+         * @return number of groups needing PMU counters, rotated by the kernel if more than 1
+         */
+        public int getHardwareGroups() {
+            return hardwareGroups;
+        }
+
+        /**
+         * @return minimal number of hardware groups from counter counts only (GP and fixed counters bounded
+         * separately), plan is optimal when equal
+         */
+        public int getLowerBound() {
+            return lowerBound;
+        }
+
+        /**
+         * @return expected fraction of time each group is counted (time running / time enabled)
+         * when the kernel rotates hardware groups, 1 without multiplexing
+         */
+        public double getExpectedCoverage() {
+            return hardwareGroups <= 1 ? 1 : 1.0 / hardwareGroups;
+        }
+
+        /**
+         * Creates one PerfGroupEvent per group, not opened
+         */
+        public List<PerfGroupEvent> createGroups() {
+            List<PerfGroupEvent> result = new ArrayList<>(groups.size());
+            for (int i = 0; i < groups.size(); i++) {
+                result.add(new PerfGroupEvent(getGroupEventNames(i)));
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d group(s), expected coverage %.0f%%", groups.size(), getExpectedCoverage() * 100));
+            for (int i = 0; i < groups.size(); i++) {
+                sb.append(String.format("%n  {%s}", getGroupEventNames(i)));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Aggregates group values of leader samples (PERF_SAMPLE_READ) per code location
+ * Values in a sample are counters since enable: the delta with the previous sample of the same thread
+ * is attributed to the symbol of the sampled ip, giving per symbol counts of each event of the group
+ * to compute ratios like IPC, branch-miss or LLC-miss ratios
+ * Deltas are per thread: counters must be per thread too (sampler opened with a pid, not per cpu)
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfSampler sampler = new PerfSampler("cycles,instructions,branch-misses").period(1_000_000);
+ *      GroupSampleProfile profile = new GroupSampleProfile(sampler.size(), ip -> symbols.resolve(ip));
+ *      sampler.start();
+ *      // some code we want to profile
+ *      sampler.poll(profile::accept);
+ *      profile.getRatio(symbol, 0, 1); // CPI
+ *  </pre>
+ */
+public class GroupSampleProfile {
+    private final int size;
+    private final LongFunction<String> symbolizer;
+    // last values read per tid
+    private final Map<Integer, long[]> lastValues = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long samples;
+
+    /**
+     * Aggregates per instruction pointer (0x-prefixed hexadecimal)
+     * @param size number of events of the group
+     */
+    public GroupSampleProfile(int size) {
+        this(size, ip -> String.format("0x%x", ip));
+    }
+
+    /**
+     * @param size number of events of the group
+     * @param symbolizer resolves an instruction pointer to the symbol values are aggregated to
+     */
+    public GroupSampleProfile(int size, LongFunction<String> symbolizer) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid group size: " + size);
+        }
+        this.size = size;
+        this.symbolizer = symbolizer;
+    }
+
+    /**
+     * Accounts a sample, requires PERF_SAMPLE_IP, PERF_SAMPLE_TID & PERF_SAMPLE_READ
+     */
+    public void accept(SampleRecord sample) {
+        if (sample.getReadSize() != size) {
+            throw new IllegalArgumentException(String.format("Sample with %d values, expected %d", sample.getReadSize(), size));
+        }
+        long[] last = lastValues.computeIfAbsent(sample.getTid(), tid -> new long[size]);
+        Entry entry = entries.computeIfAbsent(symbolizer.apply(sample.getIp()), symbol -> new Entry(size));
+        for (int i = 0; i < size; i++) {
+            long value = sample.getReadValue(i);
+            // counters only grow: a lower value is a reset, counted from 0
+            long delta = value >= last[i] ? value - last[i] : value;
+            last[i] = value;
+            entry.values[i] += delta;
+        }
+        entry.samples++;
+        samples++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return total number of samples accounted
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return symbols with at least one sample, most sampled first, then by name
+     */
+    public List<String> getSymbols() {
+        List<String> symbols = new ArrayList<>(entries.keySet());
+        symbols.sort((a, b) -> {
+            int cmp = Long.compare(entries.get(b).samples, entries.get(a).samples);
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
+        return symbols;
+    }
+
+    /**
+     * @return number of samples of the symbol
+     */
+    public long getSamples(String symbol) {
+        Entry entry = entries.get(symbol);
+        return entry != null ? entry.samples : 0;
+    }
+
+    /**
+     * @param index index of the event in the group, leader first
+     * @return count of the event attributed to the symbol
+     */
+    public long getValue(String symbol, int index) {
+        Entry entry = entries.get(symbol);
+        return entry != null ? entry.values[index] : 0;
+    }
+
+    /**
+     * @return ratio of the counts of 2 events attributed to the symbol (e.g. cycles / instructions for CPI),
+     * NaN if the denominator is 0
+     */
+    public double getRatio(String symbol, int numerator, int denominator) {
+        long value = getValue(symbol, denominator);
+        return value != 0 ? (double) getValue(symbol, numerator) / value : Double.NaN;
+    }
+
+    /**
+     * Forgets aggregated values, keeps last values per thread for the next deltas
+     */
+    public void clear() {
+        entries.clear();
+        samples = 0;
+    }
+
+    private static class Entry {
+        final long[] values;
+        long samples;
+
+        Entry(int size) {
+            values = new long[size];
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * User space multiplexing of groups of events: only one group is enabled at a time, for a fixed quantum,
+ * groups are rotated in order. Unlike kernel multiplexing (rotation on scheduler tick), rotation order is
+ * deterministic and every group gets the same number of time slices (at most one more than the others).
+ * <br>
+ * At the end of each time slice, the enabled group is read: counts and running time are accumulated per group,
+ * with per slice rates to estimate the error of the scaled value (value * total time / group running time).
+ * Total time is the sum of the time_enabled deltas of the slices, not wall clock time: events of a thread
+ * only advance while the thread is on cpu, so a sleeping thread does not inflate the estimates. As a consequence,
+ * the share of a group follows the on-cpu time of the thread during its slices, not the slice count: a group
+ * whose slices fall while the thread is mostly off cpu gets a lower coverage (see {@link #getCoverage(int)}).
+ * <br>
+ * Usage:
+ *  <pre>
+ *      List&lt;PerfGroupEvent&gt; groups = new GroupPlanner().plan(events).createGroups();
+ *      groups.forEach(PerfGroupEvent::open);
+ *      GroupScheduler scheduler = new GroupScheduler(groups, TimeUnit.MILLISECONDS.toNanos(10));
+ *      scheduler.start();
+ *      // some code we want to measure
+ *      scheduler.stop();
+ *      scheduler.getEstimate(group, index); scheduler.getErrorBound(group, index);
+ *  </pre>
+ * Rotation is performed by a daemon thread, or by calling {@link #rotate()} directly (e.g. between benchmark iterations)
+ */
+public class GroupScheduler {
+    // ~95% confidence interval for the mean of the slice rates
+    static final double Z_95 = 1.96;
+
+    private final List<PerfGroupEvent> groups;
+    private final long quantumNanos;
+    private final Slot[] slots;
+    private int current = -1;
+    private long totalTime;
+    private long rotations;
+    private Thread rotationThread;
+    private volatile boolean rotating;
+
+    /**
+     * @param groups opened groups of events, scheduled in list order
+     * @param quantumNanos duration of a time slice (ns)
+     */
+    public GroupScheduler(List<PerfGroupEvent> groups, long quantumNanos) {
+        if (groups.isEmpty()) {
+            throw new IllegalArgumentException("No group to schedule");
+        }
+        if (quantumNanos <= 0) {
+            throw new IllegalArgumentException("Invalid quantum: " + quantumNanos);
+        }
+        this.groups = new ArrayList<>(groups);
+        this.quantumNanos = quantumNanos;
+        this.slots = new Slot[groups.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(groups.get(i).size());
+        }
+    }
+
+    public int size() {
+        return groups.size();
+    }
+
+    public PerfGroupEvent getGroup(int group) {
+        return groups.get(group);
+    }
+
+    public long getQuantumNanos() {
+        return quantumNanos;
+    }
+
+    /**
+     * Resets accounting, disables all groups and enables the first one, without rotation thread
+     */
+    public synchronized void begin() {
+        for (PerfGroupEvent group : groups) {
+            group.disable();
+            group.reset();
+        }
+        for (Slot slot : slots) {
+            slot.clear();
+        }
+        totalTime = 0;
+        rotations = 0;
+        current = 0;
+        groups.get(0).enable();
+    }
+
+    /**
+     * Ends the time slice of the enabled group and enables the next one
+     */
+    public synchronized void rotate() {
+        if (current < 0) {
+            throw new IllegalStateException("Scheduler not started");
+        }
+        endSlice();
+        current = (current + 1) % groups.size();
+        rotations++;
+        groups.get(current).enable();
+    }
+
+    /**
+     * Ends the time slice of the enabled group, all groups are disabled
+     */
+    public synchronized void end() {
+        if (current < 0) {
+            return;
+        }
+        endSlice();
+        current = -1;
+    }
+
+    /**
+     * Begins scheduling and rotates groups every quantum from a daemon thread
+     */
+    public void start() {
+        begin();
+        rotating = true;
+        rotationThread = new Thread(this::rotationLoop, "jperf-group-scheduler");
+        rotationThread.setDaemon(true);
+        rotationThread.start();
+    }
+
+    /**
+     * Stops the rotation thread and ends scheduling
+     */
+    public void stop() {
+        rotating = false;
+        if (rotationThread != null) {
+            LockSupport.unpark(rotationThread);
+            try {
+                rotationThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rotationThread = null;
+        }
+        end();
+    }
+
+    private void rotationLoop() {
+        long deadline = System.nanoTime() + quantumNanos;
+        while (rotating) {
+            long now;
+            while ((now = System.nanoTime()) < deadline && rotating) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            if (!rotating) {
+                return;
+            }
+            rotate();
+            // fixed cadence, not drifting with rotation cost
+            deadline += quantumNanos;
+        }
+    }
+
+    private void endSlice() {
+        PerfGroupEvent group = groups.get(current);
+        group.disable();
+        Slot slot = slots[current];
+        group.read(slot.values);
+        totalTime += slot.account(group.getTimeEnabled(), group.getTimeRunning());
+    }
+
+    /**
+     * @return number of rotations since begin
+     */
+    public synchronized long getRotations() {
+        return rotations;
+    }
+
+    /**
+     * @return time (ns) the groups were enabled during their completed time slices
+     * (for events of a thread: time the thread was on cpu)
+     */
+    public synchronized long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return time (ns) the group was counting on the pmu during its completed time slices
+     */
+    public synchronized long getRunningTime(int group) {
+        return slots[group].running;
+    }
+
+    /**
+     * @return number of completed time slices of the group
+     */
+    public synchronized int getSlices(int group) {
+        return slots[group].slices;
+    }
+
+    /**
+     * @return fraction of total time the group was counting
+     */
+    public synchronized double getCoverage(int group) {
+        return totalTime > 0 ? (double) slots[group].running / totalTime : 0;
+    }
+
+    /**
+     * @return raw count of the event during completed time slices
+     */
+    public synchronized long getValue(int group, int index) {
+        return slots[group].counts[index];
+    }
+
+    /**
+     * @return estimated count of the event over the total time: count * total time / running time
+     */
+    public synchronized double getEstimate(int group, int index) {
+        Slot slot = slots[group];
+        if (slot.running <= 0) {
+            return Double.NaN;
+        }
+        return (double) slot.counts[index] * totalTime / slot.running;
+    }
+
+    /**
+     * @return half width of the ~95% confidence interval of the estimate, from the dispersion of per slice rates.
+     * 0 when the group counted the whole time, NaN with less than 2 time slices
+     */
+    public synchronized double getErrorBound(int group, int index) {
+        Slot slot = slots[group];
+        if (slot.running > 0 && slot.running >= totalTime) {
+            return 0;
+        }
+        return errorBound(slot.slices, slot.sumRates[index], slot.sumSquaredRates[index], totalTime);
+    }
+
+    /**
+     * Standard error of the mean rate (count/ns) over n slices, extrapolated to total time
+     */
+    static double errorBound(int slices, double sumRates, double sumSquaredRates, long totalTime) {
+        if (slices < 2) {
+            return Double.NaN;
+        }
+        double mean = sumRates / slices;
+        double variance = Math.max(0, (sumSquaredRates - slices * mean * mean) / (slices - 1));
+        return Z_95 * Math.sqrt(variance / slices) * totalTime;
+    }
+
+    private static class Slot {
+        final long[] values;
+        final long[] previous;
+        final long[] counts;
+        final double[] sumRates;
+        final double[] sumSquaredRates;
+        long previousEnabled;
+        long previousRunning;
+        long running;
+        int slices;
+
+        Slot(int size) {
+            values = new long[size];
+            previous = new long[size];
+            counts = new long[size];
+            sumRates = new double[size];
+            sumSquaredRates = new double[size];
+        }
+
+        void clear() {
+            for (int i = 0; i < values.length; i++) {
+                previous[i] = 0;
+                counts[i] = 0;
+                sumRates[i] = 0;
+                sumSquaredRates[i] = 0;
+            }
+            previousEnabled = 0;
+            previousRunning = 0;
+            running = 0;
+            slices = 0;
+        }
+
+        // values hold the group counts (cumulative since reset) at the end of the slice
+        // returns time enabled during the slice
+        long account(long groupEnabled, long groupRunning) {
+            long sliceEnabled = groupEnabled - previousEnabled;
+            previousEnabled = groupEnabled;
+            long sliceRunning = groupRunning - previousRunning;
+            previousRunning = groupRunning;
+            if (sliceRunning <= 0) {
+                // not scheduled on the pmu during the slice (e.g. group does not fit)
+                System.arraycopy(values, 0, previous, 0, values.length);
+                return sliceEnabled;
+            }
+            for (int i = 0; i < values.length; i++) {
+                long delta = values[i] - previous[i];
+                previous[i] = values[i];
+                counts[i] += delta;
+                double rate = (double) delta / sliceRunning;
+                sumRates[i] += rate;
+                sumSquaredRates[i] += rate * rate;
+            }
+            running += sliceRunning;
+            slices++;
+            return sliceEnabled;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table mapping perf event ids (PERF_EVENT_IOC_ID) to slots (index in group)
+ * Primitive only, built once at open time, lookups do not allocate
+ */
+class IdSlotTable {
+    private static final long EMPTY = -1;
+    private final long[] keys;
+    private final int[] slots;
+    private final int mask;
+
+    IdSlotTable(int expectedSize) {
+        // load factor <= 0.5
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 1) * 2 - 1) << 1;
+        keys = new long[capacity];
+        slots = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    void put(long id, int slot) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Invalid id: " + id);
+        }
+        int idx = hash(id) & mask;
+        while (keys[idx] != EMPTY && keys[idx] != id) {
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = id;
+        slots[idx] = slot;
+    }
+
+    /**
+     * @return slot associated to the id, -1 if not found
+     */
+    int get(long id) {
+        int idx = hash(id) & mask;
+        long key;
+        while ((key = keys[idx]) != EMPTY) {
+            if (key == id) {
+                return slots[idx];
+            }
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
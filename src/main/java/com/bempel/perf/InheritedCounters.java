@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventAttr;
+import com.bempel.perf.jna.PerfEventConsts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group of events inherited by the threads created after open (attr.inherit)
+ * Opened on a bootstrap thread, counts cover this thread and all the threads it spawns afterwards,
+ * recursively, with one fd per event whatever the number of threads. Counts of exited threads
+ * are folded into the parent event by the kernel
+ * Some kernels reject PERF_FORMAT_GROUP for inherited events: open falls back to one read per event
+ * <br>
+ * Usage:
+ *  <pre>
+ *      InheritedCounters counters = new InheritedCounters("cycles,instructions");
+ *      CounterSnapshot snapshot = new CounterSnapshot(counters.size());
+ *      counters.start(); // from the thread creating the pool
+ *      ExecutorService pool = Executors.newFixedThreadPool(100);
+ *      // ...
+ *      counters.read(snapshot);
+ *  </pre>
+ */
+public class InheritedCounters {
+    static final long GROUP_READ_FORMAT = PerfEventConsts.PERF_FORMAT_GROUP | PerfEventConsts.PERF_FORMAT_ID
+            | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_ENABLED | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING;
+    static final long SINGLE_READ_FORMAT = PerfEventConsts.PERF_FORMAT_ID
+            | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_ENABLED | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING;
+
+    private final List<PerfEvent.EventInfo> eventInfos = new ArrayList<>();
+    private final long[] groupBuffer;
+    private final long[] singleBuffer = new long[PerfEvent.SINGLE_READ_SIZE];
+    private IdSlotTable idSlots;
+    private boolean groupRead;
+
+    /**
+     * @param eventName perf event name, supports group of events with comma-separated event name list
+     */
+    public InheritedCounters(String eventName) {
+        for (String name : eventName.split(",")) {
+            PerfEvent.EventInfo ei = new PerfEvent.EventInfo(name);
+            ei.attr.flags |= PerfEventAttr.INHERIT;
+            eventInfos.add(ei);
+        }
+        groupBuffer = new long[PerfEvent.READ_HEADER_SIZE + eventInfos.size() * 2];
+    }
+
+    /**
+     * @return number of events
+     */
+    public int size() {
+        return eventInfos.size();
+    }
+
+    public String getEventName(int index) {
+        return eventInfos.get(index).eventName;
+    }
+
+    /**
+     * @return true if the group is read with a single read (PERF_FORMAT_GROUP), false if read per event
+     */
+    public boolean isGroupRead() {
+        return groupRead;
+    }
+
+    /**
+     * Opens the events on the calling thread, inherited by threads it creates afterwards
+     */
+    public void open() {
+        open(0, -1);
+    }
+
+    /**
+     * Opens the events, inherited by threads created afterwards by the target
+     * @param pid indicates the pid/tid of the bootstrap thread. 0 for calling thread
+     * @param cpu indicates the specific cpu we want to measure. -1 for all cpus
+     */
+    public void open(int pid, int cpu) {
+        try {
+            openGroup(pid, cpu, GROUP_READ_FORMAT);
+        } catch (UnsupportedOperationException e) {
+            // PERF_FORMAT_GROUP not supported with inherit by this kernel
+            openGroup(pid, cpu, SINGLE_READ_FORMAT);
+        }
+    }
+
+    void openGroup(int pid, int cpu, long readFormat) {
+        int groupfd = -1;
+        IdSlotTable slots = new IdSlotTable(eventInfos.size());
+        for (int i = 0; i < eventInfos.size(); i++) {
+            PerfEvent.EventInfo ei = eventInfos.get(i);
+            ei.attr.read_format = readFormat;
+            try {
+                ei.fd = PerfEvent.openEvent(ei.attr, pid, cpu, groupfd, 0);
+            } catch (UnsupportedOperationException e) {
+                for (int j = 0; j < i; j++) {
+                    PerfEvent.close(eventInfos.get(j));
+                }
+                throw e;
+            }
+            if (groupfd == -1) {
+                groupfd = ei.fd;
+            }
+            ei.groupId = PerfEvent.getGroupId(ei);
+            slots.put(ei.groupId, i);
+        }
+        idSlots = slots;
+        groupRead = (readFormat & PerfEventConsts.PERF_FORMAT_GROUP) != 0;
+    }
+
+    /**
+     * Enables the events, including inherited ones, with one ioctl on the leader
+     */
+    public void enable() {
+        PerfEvent.ioctl(eventInfos.get(0), PerfEventConsts.PERF_EVENT_IOC_ENABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    /**
+     * Resets the events, including inherited ones, with one ioctl on the leader
+     */
+    public void reset() {
+        PerfEvent.ioctl(eventInfos.get(0), PerfEventConsts.PERF_EVENT_IOC_RESET, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    /**
+     * Disables the events, including inherited ones, with one ioctl on the leader
+     */
+    public void disable() {
+        PerfEvent.ioctl(eventInfos.get(0), PerfEventConsts.PERF_EVENT_IOC_DISABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    /**
+     * Reads the events, summed over the bootstrap thread and its descendants, without allocation
+     * @param snapshot receives values, time enabled & time running, should be large enough to read all events
+     */
+    public void read(CounterSnapshot snapshot) {
+        if (snapshot.size() < eventInfos.size()) {
+            throw new IllegalArgumentException("snapshot is not large enough. should be at least " + eventInfos.size());
+        }
+        if (groupRead) {
+            int max = PerfEvent.readBuffer(eventInfos.get(0).fd, groupBuffer, groupBuffer.length);
+            long enabled = groupBuffer[PerfEvent.TIME_ENABLED_IDX];
+            long running = groupBuffer[PerfEvent.TIME_RUNNING_IDX];
+            for (int idx = PerfEvent.READ_HEADER_SIZE; idx + 1 < max; idx += 2) {
+                int slot = idSlots.get(groupBuffer[idx + 1]);
+                if (slot < 0) {
+                    throw new IllegalStateException(String.format("Unknown event id[%d] in group read", groupBuffer[idx + 1]));
+                }
+                snapshot.set(slot, groupBuffer[idx], enabled, running);
+            }
+            return;
+        }
+        for (int i = 0; i < eventInfos.size(); i++) {
+            PerfEvent.readSingle(eventInfos.get(i).fd, singleBuffer);
+            snapshot.set(i, singleBuffer[PerfEvent.SINGLE_VALUE_IDX],
+                    singleBuffer[PerfEvent.SINGLE_TIME_ENABLED_IDX], singleBuffer[PerfEvent.SINGLE_TIME_RUNNING_IDX]);
+        }
+    }
+
+    /**
+     * Closes the events
+     */
+    public void close() {
+        for (PerfEvent.EventInfo ei : eventInfos) {
+            PerfEvent.close(ei);
+        }
+    }
+
+    /**
+     * Starts the events by performing open/reset/enable operations on the calling thread
+     * Threads must be created after start to be counted
+     */
+    public void start() {
+        open();
+        reset();
+        enable();
+    }
+
+    /**
+     * Shutdown the events by performing disable/close operations
+     */
+    public void shutdown() {
+        disable();
+        close();
+    }
+}
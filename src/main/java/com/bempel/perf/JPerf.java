@@ -20,11 +20,12 @@ import com.bempel.perf.jna.Tracepoint;
 import com.bempel.perf.pmuevents.PMUEventMap;
 import com.bempel.perf.pmuevents.PMUEvents;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 public class JPerf {
@@ -38,6 +39,7 @@ public class JPerf {
         //PerfEvent.installLogger(msg -> System.out.print(msg.get()));
         actions.put("list", JPerf::list);
         actions.put("stat", JPerf::stat);
+        actions.put("plan", JPerf::plan);
         if (args.length == 0 || "help".equals(args[0])) {
             printHelp();
             return;
@@ -53,6 +55,11 @@ public class JPerf {
     private static void printHelp() {
         System.out.println("JPerf: Java wrapper of perf tool.");
         System.out.println("java " + JPerf.class.getName() + " <action>");
+        System.out.println("actions:");
+        System.out.println("\tlist");
+        System.out.println("\tstat [-e <event>[,<event>...]] [-G <cgroup>] [-I <ms> [--interval-count <n>]] [-A | --per-core | --per-socket | --per-node] [-x <sep> | --json]");
+        System.out.println("\tstat --topdown [--td-level <1|2>] [-G <cgroup>]");
+        System.out.println("\tplan -e <event>[,<event>...]");
     }
 
     private static void list(String[] args) {
@@ -86,44 +93,173 @@ public class JPerf {
         });
     }
 
+    private static void plan(String[] args) {
+        if (args.length != 3 || !"-e".equals(args[1])) {
+            throw new IllegalArgumentException("Usage: plan -e <event>[,<event>...]");
+        }
+        GroupPlanner planner = new GroupPlanner();
+        System.out.printf("GP counters: %d, fixed counters: %d%n", planner.getGpCounters(), planner.getFixedCounters());
+        System.out.println(planner.plan(args[2]));
+    }
+
     private static void stat(String[] args) {
-        List<PerfEvent[]> perfEvents = new ArrayList<>();
-        int nbCpu = Runtime.getRuntime().availableProcessors();
-        if (args.length == 1) { // no additional args => default
-            initPerfEvent(perfEvents, nbCpu, "cpu-clock");
-            initPerfEvent(perfEvents, nbCpu,"context-switches");
-            initPerfEvent(perfEvents, nbCpu,"cpu-migrations");
-            initPerfEvent(perfEvents, nbCpu,"page-faults");
-            initPerfEvent(perfEvents, nbCpu,"cycles");
-            initPerfEvent(perfEvents, nbCpu,"instructions");
-            initPerfEvent(perfEvents, nbCpu,"branches");
-            initPerfEvent(perfEvents, nbCpu,"branch-misses");
-        } else if (args.length >= 3 && args[1].equals("-e")) {
-            String eventName = args[2];
-            initPerfEvent(perfEvents, nbCpu, eventName);
-        } else
-            throw new UnsupportedOperationException("invalid argument");
-        perfEvents.forEach(perfEventPerCpu -> {
-            for (int i = 0; i < perfEventPerCpu.length; i++) {
-                perfEventPerCpu[i].start(-1, i);
+        StatOptions options = StatOptions.parse(args);
+        if (options.topdownLevel > 0) {
+            statTopdown(options);
+            return;
+        }
+        // online cpus within the cpuset of the process, rather than availableProcessors (wrong with holes or cpusets)
+        OnlineCpus onlineCpus = OnlineCpus.open();
+        StatCounters counters = new StatCounters(options.events, onlineCpus.getSlotCount());
+        // cgroup directory fd is kept open to open events on hotplugged cpus
+        PerfCgroup cgroup = options.cgroup != null ? PerfCgroup.open(options.cgroup) : null;
+        try {
+            counters.open(cgroup, onlineCpus.getCpus());
+        } catch (UnsupportedOperationException e) {
+            close(cgroup, onlineCpus);
+            throw e;
+        }
+        StatAggregation aggregation = createAggregation(options, counters.getCpus());
+        // start & stop all events together for a consistent measurement window
+        StatPrinter printer = StatPrinter.create(options);
+        counters.reset();
+        counters.enable();
+        if (options.intervalMs > 0) {
+            statInterval(counters, onlineCpus, options, aggregation, printer);
+        } else {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
-        });
+            counters.disable();
+            counters.read();
+            for (int e = 0; e < counters.size(); e++) {
+                printCounters(printer, StatPrinter.NO_TIMESTAMP, counters.getEventName(e), counters.getValues(e), aggregation);
+            }
+            printer.flush();
+        }
+        counters.close();
+        close(cgroup, onlineCpus);
+    }
 
+    /**
+     * Topdown analysis of all cpus during 2s: fraction of pipeline slots per level-1 metric, broken down at level 2
+     */
+    private static void statTopdown(StatOptions options) {
+        Topdown topdown = new Topdown(options.topdownLevel);
+        OnlineCpus onlineCpus = OnlineCpus.open();
+        PerfCgroup cgroup = options.cgroup != null ? PerfCgroup.open(options.cgroup) : null;
         try {
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            for (int cpu : onlineCpus.getCpus()) {
+                if (cgroup != null) {
+                    topdown.open(cgroup, cpu);
+                } else {
+                    topdown.open(-1, cpu);
+                }
+            }
+            topdown.reset();
+            topdown.enable();
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            topdown.disable();
+            topdown.read();
+            for (Topdown.Metric metric : topdown.getMetrics()) {
+                String indent = metric.level == 1 ? "  " : "      ";
+                System.out.printf("%s%-" + (28 - indent.length()) + "s %6.1f %%%n", indent, metric.label, topdown.get(metric) * 100);
+            }
+        } finally {
+            topdown.close();
+            close(cgroup, onlineCpus);
         }
-        perfEvents.forEach(perfEventPerCpu -> {
-            long res = Arrays.stream(perfEventPerCpu).mapToLong(PerfEvent::read).sum();
-            System.out.printf("%s: %,d\n", perfEventPerCpu[0].getEventName(), res);
+    }
+
+    private static StatAggregation createAggregation(StatOptions options, int[] cpus) {
+        boolean needsTopology = options.aggregation != StatAggregation.Mode.GLOBAL && options.aggregation != StatAggregation.Mode.CPU;
+        return StatAggregation.create(options.aggregation, cpus, needsTopology ? CpuTopology.get() : null);
+    }
+
+    private static void close(PerfCgroup cgroup, OnlineCpus onlineCpus) {
+        if (cgroup != null) {
+            cgroup.close();
+        }
+        onlineCpus.close();
+    }
+
+    /**
+     * Prints deltas every interval until interval count is reached or Ctrl-C
+     * A single thread sleeps until the next deadline, reads all events (without allocation) and prints.
+     * Read latency, lag behind the deadline and missed intervals are reported for each interval.
+     * Online cpus are checked after each interval: events follow cpu hotplug
+     */
+    private static void statInterval(StatCounters counters, OnlineCpus onlineCpus, StatOptions options,
+                                     StatAggregation aggregation, StatPrinter printer) {
+        long intervalNs = TimeUnit.MILLISECONDS.toNanos(options.intervalMs);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread loopThread = Thread.currentThread();
+        Thread shutdownHook = new Thread(() -> {
+            // Ctrl-C: print last partial interval before exiting
+            running.set(false);
+            LockSupport.unpark(loopThread);
+            try {
+                stopped.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        long start = System.nanoTime();
+        counters.read();
+        long deadline = start + intervalNs;
+        try {
+            for (int count = 0; options.intervalCount == 0 || count < options.intervalCount; count++) {
+                long now;
+                while ((now = System.nanoTime()) < deadline && running.get()) {
+                    LockSupport.parkNanos(deadline - now);
+                }
+                long readStart = System.nanoTime();
+                counters.read();
+                long readEnd = System.nanoTime();
+                long timestamp = readStart - start;
+                for (int e = 0; e < counters.size(); e++) {
+                    printCounters(printer, timestamp, counters.getEventName(e), counters.getDeltas(e), aggregation);
+                }
+                long lag = Math.max(0, readStart - deadline);
+                // falling behind: skip missed deadlines instead of bursting
+                int missed = 0;
+                deadline += intervalNs;
+                while (deadline <= readEnd) {
+                    deadline += intervalNs;
+                    missed++;
+                }
+                printer.printReadStats(timestamp, readEnd - readStart, lag, missed);
+                printer.flush();
+                if (onlineCpus.refresh() && counters.setCpus(onlineCpus.getCpus())) {
+                    aggregation = createAggregation(options, counters.getCpus());
+                }
+                if (!running.get()) {
+                    break;
+                }
+            }
+            counters.disable();
+        } finally {
+            stopped.countDown();
+        }
+        if (running.get()) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
     }
 
-    private static void initPerfEvent(List<PerfEvent[]> perfEvents, int nbCpu, String eventName) {
-        PerfEvent[] perfEventPerCpu = new PerfEvent[nbCpu];
-        for (int i = 0; i < perfEventPerCpu.length; i++)
-            perfEventPerCpu[i] = new PerfEvent(eventName);
-        perfEvents.add(perfEventPerCpu);
+    private static void printCounters(StatPrinter printer, long timestamp, String eventName, CounterSnapshot perCpu, StatAggregation aggregation) {
+        aggregation.aggregate(perCpu);
+        for (int unit = 0; unit < aggregation.getUnitCount(); unit++) {
+            printer.printCounter(timestamp, aggregation.getLabel(unit), aggregation.getCpuCount(unit), eventName,
+                    aggregation.get(unit, StatAggregation.VALUE), aggregation.get(unit, StatAggregation.SCALED_VALUE),
+                    aggregation.get(unit, StatAggregation.TIME_ENABLED), aggregation.get(unit, StatAggregation.TIME_RUNNING));
+        }
     }
 }
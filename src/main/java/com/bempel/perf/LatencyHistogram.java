@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+/**
+ * Histogram of latencies (e.g. sample weights in core cycles) with power of 2 buckets:
+ * bucket 0 holds 0, bucket n holds [2^(n-1), 2^n - 1]
+ * <br>
+ * Latencies are unsigned (sample weight is a u64): values above Long.MAX_VALUE go to bucket 64,
+ * max and sum are capped to Long.MAX_VALUE
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 65;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long latency) {
+        counts[bucketOf(latency)]++;
+        long capped = latency < 0 ? Long.MAX_VALUE : latency;
+        count++;
+        sum = saturatedAdd(sum, capped);
+        max = Math.max(max, capped);
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long result = a + b;
+        // both positive: overflow wraps to negative
+        return result < 0 ? Long.MAX_VALUE : result;
+    }
+
+    static int bucketOf(long latency) {
+        return Long.SIZE - Long.numberOfLeadingZeros(latency);
+    }
+
+    /**
+     * @return lowest latency of the bucket
+     */
+    public static long getLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * @return highest latency of the bucket
+     */
+    public static long getUpperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket == Long.SIZE ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket reaching the percentile, capped by the max recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        long threshold = (long) Math.ceil(count * percentile / 100);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulated += counts[i];
+            if (cumulated >= threshold && cumulated > 0) {
+                return Math.min(getUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum = saturatedAdd(sum, other.sum);
+        max = Math.max(max, other.max);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                sb.append(String.format("%10d - %-10d %,12d%n", getLowerBound(i), getUpperBound(i), counts[i]));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Aggregates memory access samples (precise ip, data address, weight & data source) into latency histograms
+ * and counts per level of the memory hierarchy, per code location and per data address range
+ * Address ranges are named ranges registered with {@link #addRange(String, long, long)} (e.g. off-heap structures),
+ * other addresses are bucketed by aligned blocks of 2^rangeShift bytes
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfSampler sampler = PerfSampler.memory("MEM_TRANS_RETIRED.LOAD_LATENCY_GT_32").period(1000);
+ *      MemoryAccessProfile profile = new MemoryAccessProfile(12, ip -> symbols.resolve(ip))
+ *              .addRange("orderBook", address, size);
+ *      sampler.start();
+ *      // some code we want to profile
+ *      sampler.poll(profile::accept);
+ *      profile.getRange("orderBook").getCount(DataSource.Level.LOCAL_DRAM);
+ *  </pre>
+ */
+public class MemoryAccessProfile {
+    private final int rangeShift;
+    private final LongFunction<String> symbolizer;
+    private final List<NamedRange> namedRanges = new ArrayList<>();
+    private final Map<String, Entry> symbols = new HashMap<>();
+    private final Map<String, Entry> ranges = new HashMap<>();
+    private final Entry total = new Entry();
+
+    /**
+     * Aggregates per instruction pointer (0x-prefixed hexadecimal)
+     * @param rangeShift log2 of the size of address blocks outside named ranges (12 for pages)
+     */
+    public MemoryAccessProfile(int rangeShift) {
+        this(rangeShift, ip -> String.format("0x%x", ip));
+    }
+
+    /**
+     * @param rangeShift log2 of the size of address blocks outside named ranges (12 for pages)
+     * @param symbolizer resolves an instruction pointer to the symbol samples are aggregated to
+     */
+    public MemoryAccessProfile(int rangeShift, LongFunction<String> symbolizer) {
+        if (rangeShift < 0 || rangeShift >= Long.SIZE) {
+            throw new IllegalArgumentException("Invalid range shift: " + rangeShift);
+        }
+        this.rangeShift = rangeShift;
+        this.symbolizer = symbolizer;
+    }
+
+    /**
+     * Registers a named address range, taking precedence over address blocks
+     */
+    public MemoryAccessProfile addRange(String name, long start, long length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Invalid range length: " + length);
+        }
+        namedRanges.add(new NamedRange(name, start, length));
+        return this;
+    }
+
+    /**
+     * Accounts a sample, requires PERF_SAMPLE_IP, PERF_SAMPLE_ADDR, PERF_SAMPLE_WEIGHT & PERF_SAMPLE_DATA_SRC
+     */
+    public void accept(SampleRecord sample) {
+        accept(sample.getIp(), sample.getAddr(), sample.getWeight(), sample.getDataSrc());
+    }
+
+    void accept(long ip, long addr, long weight, long dataSrc) {
+        DataSource.Level level = DataSource.getLevel(dataSrc);
+        total.record(weight, level);
+        symbols.computeIfAbsent(symbolizer.apply(ip), symbol -> new Entry()).record(weight, level);
+        ranges.computeIfAbsent(rangeOf(addr), range -> new Entry()).record(weight, level);
+    }
+
+    String rangeOf(long addr) {
+        for (int i = 0; i < namedRanges.size(); i++) {
+            NamedRange range = namedRanges.get(i);
+            // unsigned: user space addresses fit in 47 bits but kernel ones are negative
+            if (Long.compareUnsigned(addr - range.start, range.length) < 0) {
+                return range.name;
+            }
+        }
+        return String.format("0x%x", (addr >>> rangeShift) << rangeShift);
+    }
+
+    public Entry getTotal() {
+        return total;
+    }
+
+    /**
+     * @return symbols, most sampled first
+     */
+    public List<String> getSymbols() {
+        return sorted(symbols);
+    }
+
+    /**
+     * @return entry of the symbol, null if not sampled
+     */
+    public Entry getSymbol(String symbol) {
+        return symbols.get(symbol);
+    }
+
+    /**
+     * @return named ranges and address blocks, most sampled first
+     */
+    public List<String> getRanges() {
+        return sorted(ranges);
+    }
+
+    /**
+     * @return entry of the named range or address block (0x-prefixed start address), null if not sampled
+     */
+    public Entry getRange(String range) {
+        return ranges.get(range);
+    }
+
+    private static List<String> sorted(Map<String, Entry> entries) {
+        List<String> keys = new ArrayList<>(entries.keySet());
+        keys.sort((a, b) -> {
+            int cmp = Long.compare(entries.get(b).latency.getCount(), entries.get(a).latency.getCount());
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
+        return keys;
+    }
+
+    public void clear() {
+        symbols.clear();
+        ranges.clear();
+        total.clear();
+    }
+
+    /**
+     * Latency histogram & count per level of samples of a symbol or range
+     */
+    public static class Entry {
+        private LatencyHistogram latency = new LatencyHistogram();
+        private final long[] levels = new long[DataSource.Level.values().length];
+
+        void record(long weight, DataSource.Level level) {
+            latency.record(weight);
+            levels[level.ordinal()]++;
+        }
+
+        void clear() {
+            latency = new LatencyHistogram();
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = 0;
+            }
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getCount(DataSource.Level level) {
+            return levels[level.ordinal()];
+        }
+    }
+
+    private static class NamedRange {
+        final String name;
+        final long start;
+        final long length;
+
+        NamedRange(String name, long start, long length) {
+            this.name = name;
+            this.start = start;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metric formula in perf metric JSON syntax (e.g. "INST_RETIRED.ANY / CPU_CLK_UNHALTED.THREAD"), compiled once
+ * to a tree of primitive lambdas. Evaluation does not allocate nor parse anything.
+ * <br>
+ * Supported: numbers, variables (event names, cpu@EVENT\,cmask\=1@ terms, duration_time, #SMT_on),
+ * + - * / unary -, &lt; &gt;, "a if condition else b", min(a, b), max(a, b) and parentheses.
+ * Like perf, - in names needs to be escaped: page\-faults.
+ * Divisions follow IEEE 754: x / 0 is infinite or NaN
+ */
+public final class MetricExpression {
+    @FunctionalInterface
+    interface Node {
+        double eval(double[] values);
+    }
+
+    private final String expression;
+    private final List<String> variables;
+    private final Node root;
+
+    private MetricExpression(String expression, List<String> variables, Node root) {
+        this.expression = expression;
+        this.variables = Collections.unmodifiableList(variables);
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression cannot be parsed
+     */
+    public static MetricExpression compile(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.parseExpression();
+        if (parser.token != Parser.END) {
+            throw parser.error("unexpected " + parser.describeToken());
+        }
+        return new MetricExpression(expression, parser.variables, root);
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return variable names in order of first appearance, indexes of the values passed to evaluate
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @param values value of each variable, indexed like getVariables
+     */
+    public double evaluate(double[] values) {
+        return root.eval(values);
+    }
+
+    /**
+     * Recursive descent parser, lowest precedence first: conditional, comparison, additive, multiplicative, unary
+     */
+    private static class Parser {
+        static final int END = 0;
+        static final int NUMBER = 1;
+        static final int IDENTIFIER = 2;
+        // operators are their own char
+
+        private final String input;
+        private int pos;
+        final List<String> variables = new ArrayList<>();
+        int token;
+        double number;
+        String identifier;
+
+        Parser(String input) {
+            this.input = input;
+            next();
+        }
+
+        Node parseExpression() {
+            Node value = parseComparison();
+            if (isKeyword("if")) {
+                next();
+                Node condition = parseComparison();
+                if (!isKeyword("else")) {
+                    throw error("expected else instead of " + describeToken());
+                }
+                next();
+                Node otherwise = parseExpression();
+                Node then = value;
+                return values -> condition.eval(values) != 0 ? then.eval(values) : otherwise.eval(values);
+            }
+            return value;
+        }
+
+        private Node parseComparison() {
+            Node left = parseAdditive();
+            if (token == '<' || token == '>') {
+                int op = token;
+                next();
+                Node right = parseAdditive();
+                return fold(op == '<'
+                        ? values -> left.eval(values) < right.eval(values) ? 1 : 0
+                        : values -> left.eval(values) > right.eval(values) ? 1 : 0, left, right);
+            }
+            return left;
+        }
+
+        private Node parseAdditive() {
+            Node node = parseMultiplicative();
+            while (token == '+' || token == '-') {
+                int op = token;
+                next();
+                Node left = node;
+                Node right = parseMultiplicative();
+                node = fold(op == '+'
+                        ? values -> left.eval(values) + right.eval(values)
+                        : values -> left.eval(values) - right.eval(values), left, right);
+            }
+            return node;
+        }
+
+        private Node parseMultiplicative() {
+            Node node = parseUnary();
+            while (token == '*' || token == '/') {
+                int op = token;
+                next();
+                Node left = node;
+                Node right = parseUnary();
+                node = fold(op == '*'
+                        ? values -> left.eval(values) * right.eval(values)
+                        : values -> left.eval(values) / right.eval(values), left, right);
+            }
+            return node;
+        }
+
+        private Node parseUnary() {
+            if (token == '-') {
+                next();
+                Node operand = parseUnary();
+                return fold(values -> -operand.eval(values), operand, operand);
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() {
+            switch (token) {
+                case NUMBER: {
+                    double value = number;
+                    next();
+                    return new Constant(value);
+                }
+                case '(': {
+                    next();
+                    Node node = parseExpression();
+                    expect(')');
+                    return node;
+                }
+                case IDENTIFIER: {
+                    String name = identifier;
+                    next();
+                    if (("min".equals(name) || "max".equals(name)) && token == '(') {
+                        next();
+                        Node left = parseExpression();
+                        expect(',');
+                        Node right = parseExpression();
+                        expect(')');
+                        return fold("min".equals(name)
+                                ? values -> Math.min(left.eval(values), right.eval(values))
+                                : values -> Math.max(left.eval(values), right.eval(values)), left, right);
+                    }
+                    int index = variables.indexOf(name);
+                    if (index < 0) {
+                        index = variables.size();
+                        variables.add(name);
+                    }
+                    int variable = index;
+                    return values -> values[variable];
+                }
+                default:
+                    throw error("unexpected " + describeToken());
+            }
+        }
+
+        /**
+         * Evaluates once operations on constants
+         */
+        private static Node fold(Node node, Node left, Node right) {
+            if (left instanceof Constant && right instanceof Constant) {
+                return new Constant(node.eval(null));
+            }
+            return node;
+        }
+
+        private void expect(int expected) {
+            if (token != expected) {
+                throw error("expected " + (char) expected + " instead of " + describeToken());
+            }
+            next();
+        }
+
+        private boolean isKeyword(String keyword) {
+            return token == IDENTIFIER && keyword.equals(identifier);
+        }
+
+        private void next() {
+            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= input.length()) {
+                token = END;
+                return;
+            }
+            char c = input.charAt(pos);
+            if (Character.isDigit(c) || (c == '.' && pos + 1 < input.length() && Character.isDigit(input.charAt(pos + 1)))) {
+                int start = pos;
+                while (pos < input.length() && (Character.isDigit(input.charAt(pos)) || input.charAt(pos) == '.')) {
+                    pos++;
+                }
+                if (pos < input.length() && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+                    pos++;
+                    if (pos < input.length() && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) {
+                        pos++;
+                    }
+                    while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
+                        pos++;
+                    }
+                }
+                try {
+                    number = Double.parseDouble(input.substring(start, pos));
+                } catch (NumberFormatException e) {
+                    throw error("invalid number " + input.substring(start, pos));
+                }
+                token = NUMBER;
+                return;
+            }
+            if (isIdentifierChar(c) || c == '\\') {
+                StringBuilder sb = new StringBuilder();
+                while (pos < input.length()) {
+                    c = input.charAt(pos);
+                    if (c == '\\' && pos + 1 < input.length()) {
+                        // escaped char, e.g. cpu@EVENT\,cmask\=1@
+                        sb.append(input.charAt(pos + 1));
+                        pos += 2;
+                    } else if (isIdentifierChar(c)) {
+                        sb.append(c);
+                        pos++;
+                    } else {
+                        break;
+                    }
+                }
+                identifier = sb.toString();
+                token = IDENTIFIER;
+                return;
+            }
+            if ("+-*/()<>,".indexOf(c) < 0) {
+                throw error("unexpected char " + c);
+            }
+            pos++;
+            token = c;
+        }
+
+        private static boolean isIdentifierChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '@' || c == '#' || c == ':';
+        }
+
+        String describeToken() {
+            switch (token) {
+                case END:
+                    return "end of expression";
+                case NUMBER:
+                    return "number " + number;
+                case IDENTIFIER:
+                    return identifier;
+                default:
+                    return String.valueOf((char) token);
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("Cannot compile metric expression [%s] at %d: %s", input, pos, message));
+        }
+    }
+
+    private static final class Constant implements Node {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(double[] values) {
+            return value;
+        }
+    }
+}
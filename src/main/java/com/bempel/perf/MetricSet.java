@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.pmuevents.PMUEvent;
+import com.bempel.perf.pmuevents.PMUEventMap;
+import com.bempel.perf.pmuevents.PMUEvents;
+import com.bempel.perf.pmuevents.PMUMetric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Metrics evaluated over a snapshot of the group of events they need
+ * Expressions are compiled once when added, evaluate does not allocate
+ * <br>
+ * Usage:
+ *  <pre>
+ *      MetricSet metrics = new MetricSet()
+ *              .add("faults per ms", "page\\-faults / task\\-clock * 1e6")
+ *              .add("IPC", "instructions / cycles");
+ *      PerfGroupEvent group = new PerfGroupEvent(metrics.getEventNames());
+ *      CounterSnapshot snapshot = new CounterSnapshot(group.size());
+ *      group.start();
+ *      // some code we want to measure
+ *      group.read(snapshot);
+ *      metrics.evaluate(snapshot);
+ *      System.out.printf("%s: %.2f%n", metrics.getName(0), metrics.getValue(0));
+ *      group.shutdown();
+ *  </pre>
+ */
+public class MetricSet {
+    static final String DURATION_TIME = "duration_time";
+    static final String SMT_ON = "#SMT_on";
+    static final String SMT_ACTIVE = CpuTopology.CPU_DIR + "/smt/active";
+    // variable sources other than an event index
+    private static final int SOURCE_DURATION = -1;
+    private static final int SOURCE_SMT = -2;
+
+    private final List<String> eventNames = new ArrayList<>();
+    private final double smtOn;
+    private String[] names = new String[0];
+    private String[] units = new String[0];
+    private double[] scales = new double[0];
+    private MetricExpression[] expressions = new MetricExpression[0];
+    // [metric][variable]: event index in snapshots or SOURCE_*
+    private int[][] sources = new int[0][];
+    private double[][] variableValues = new double[0][];
+    private double[] values = new double[0];
+
+    public MetricSet() {
+        this("1".equals(CpuTopology.readLine(SMT_ACTIVE)));
+    }
+
+    MetricSet(boolean smtOn) {
+        this.smtOn = smtOn ? 1 : 0;
+    }
+
+    /**
+     * @param expression perf metric syntax, see MetricExpression
+     * @throws IllegalArgumentException if the expression cannot be compiled or uses an unsupported constant
+     */
+    public MetricSet add(String name, String expression) {
+        return add(name, expression, 1, null);
+    }
+
+    /**
+     * Adds a metric from perf -metrics JSON, scaled by ScaleUnit (e.g. 100% for percentages)
+     */
+    public MetricSet add(PMUMetric metric) {
+        if (metric == null) {
+            throw new IllegalArgumentException("metric not found (pmumetrics resources generated by PMUEventsGenerator?)");
+        }
+        double scale = 1;
+        String unit = null;
+        if (metric.scaleUnit != null) {
+            int i = 0;
+            while (i < metric.scaleUnit.length() && (Character.isDigit(metric.scaleUnit.charAt(i)) || metric.scaleUnit.charAt(i) == '.')) {
+                i++;
+            }
+            scale = i > 0 ? Double.parseDouble(metric.scaleUnit.substring(0, i)) : 1;
+            unit = metric.scaleUnit.substring(i);
+        }
+        return add(metric.metricName, metric.metricExpr, scale, unit);
+    }
+
+    private MetricSet add(String name, String expression, double scale, String unit) {
+        MetricExpression compiled = MetricExpression.compile(expression);
+        List<String> variables = compiled.getVariables();
+        int[] variableSources = new int[variables.size()];
+        for (int i = 0; i < variableSources.length; i++) {
+            variableSources[i] = resolve(variables.get(i));
+        }
+        int index = names.length;
+        names = Arrays.copyOf(names, index + 1);
+        names[index] = name;
+        units = Arrays.copyOf(units, index + 1);
+        units[index] = unit;
+        scales = Arrays.copyOf(scales, index + 1);
+        scales[index] = scale;
+        expressions = Arrays.copyOf(expressions, index + 1);
+        expressions[index] = compiled;
+        sources = Arrays.copyOf(sources, index + 1);
+        sources[index] = variableSources;
+        variableValues = Arrays.copyOf(variableValues, index + 1);
+        variableValues[index] = new double[variableSources.length];
+        values = Arrays.copyOf(values, index + 1);
+        values[index] = Double.NaN;
+        return this;
+    }
+
+    private int resolve(String variable) {
+        if (DURATION_TIME.equals(variable)) {
+            return SOURCE_DURATION;
+        }
+        if (SMT_ON.equals(variable)) {
+            return SOURCE_SMT;
+        }
+        if (variable.startsWith("#")) {
+            throw new IllegalArgumentException("Unsupported metric constant: " + variable);
+        }
+        String eventName = toEventName(variable);
+        int index = eventNames.indexOf(eventName);
+        if (index < 0) {
+            index = eventNames.size();
+            eventNames.add(eventName);
+        }
+        return index;
+    }
+
+    /**
+     * Converts cpu@EVENT,cmask=1,inv,edge,any@ terms of perf metrics into raw events (r&lt;config&gt;)
+     * as PMU event maps do not keep these modifiers
+     */
+    static String toEventName(String variable) {
+        if (!variable.startsWith("cpu@") || !variable.endsWith("@") || variable.length() < 6) {
+            return variable;
+        }
+        String[] terms = variable.substring(4, variable.length() - 1).split(",");
+        if (terms.length == 1) {
+            return terms[0];
+        }
+        PMUEventMap eventMap = PMUEvents.getPMUEventMap();
+        PMUEvent pmuEvent = eventMap != null ? eventMap.get(terms[0]) : null;
+        if (pmuEvent == null) {
+            throw new IllegalArgumentException("Cannot find PMU event: " + terms[0]);
+        }
+        long config = Integer.decode(pmuEvent.eventCode) | (long) Integer.decode(pmuEvent.umask) << 8;
+        for (int i = 1; i < terms.length; i++) {
+            String[] keyValue = terms[i].split("=", 2);
+            long value = keyValue.length == 2 ? Long.decode(keyValue[1].trim()) : 1;
+            switch (keyValue[0].trim()) {
+                case "edge":
+                    config |= (value & 1) << 18;
+                    break;
+                case "any":
+                    config |= (value & 1) << 21;
+                    break;
+                case "inv":
+                    config |= (value & 1) << 23;
+                    break;
+                case "cmask":
+                    config |= (value & 0xFF) << 24;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported event term: " + terms[i]);
+            }
+        }
+        return "r" + Long.toHexString(config);
+    }
+
+    /**
+     * @return comma-separated event names to create the PerfGroupEvent read into evaluated snapshots
+     */
+    public String getEventNames() {
+        return String.join(",", eventNames);
+    }
+
+    /**
+     * @return number of events in the snapshots
+     */
+    public int getEventCount() {
+        return eventNames.size();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int metric) {
+        return names[metric];
+    }
+
+    /**
+     * @return unit from ScaleUnit (e.g. "%"), null if none
+     */
+    public String getUnit(int metric) {
+        return units[metric];
+    }
+
+    /**
+     * Evaluates all metrics, without allocation. duration_time is the time enabled in seconds
+     * @param snapshot scaled values indexed like getEventNames, e.g. read from the group or a delta between 2 reads
+     */
+    public void evaluate(CounterSnapshot snapshot) {
+        double duration = eventNames.isEmpty() ? 0 : snapshot.getTimeEnabled(0) / 1e9;
+        for (int m = 0; m < expressions.length; m++) {
+            int[] metricSources = sources[m];
+            double[] metricValues = variableValues[m];
+            for (int v = 0; v < metricSources.length; v++) {
+                int source = metricSources[v];
+                if (source >= 0) {
+                    metricValues[v] = snapshot.getScaledValue(source);
+                } else if (source == SOURCE_DURATION) {
+                    metricValues[v] = duration;
+                } else {
+                    metricValues[v] = smtOn;
+                }
+            }
+            values[m] = scales[m] * expressions[m].evaluate(metricValues);
+        }
+    }
+
+    /**
+     * @return value of the metric as of last evaluate, NaN before
+     */
+    public double getValue(int metric) {
+        return values[metric];
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.JnaBackend;
+import com.bempel.perf.jna.JnaDirectBackend;
+import com.bempel.perf.jna.NativeBackend;
+
+/**
+ * Selects the native backend at runtime
+ * System property jperf.backend forces the backend: jna or jna-direct
+ * By default, JNA backend is selected
+ */
+public class NativeBackends {
+    public static final String BACKEND_PROPERTY = "jperf.backend";
+    public static final String JNA = "jna";
+    public static final String JNA_DIRECT = "jna-direct";
+
+    public static NativeBackend select() {
+        String name = System.getProperty(BACKEND_PROPERTY);
+        if (name != null) {
+            return create(name);
+        }
+        return new JnaBackend();
+    }
+
+    /**
+     * @param name backend name: jna or jna-direct
+     */
+    public static NativeBackend create(String name) {
+        switch (name) {
+            case JNA:
+                return new JnaBackend();
+            case JNA_DIRECT:
+                return new JnaDirectBackend();
+            default:
+                throw new IllegalArgumentException("Unknown native backend: " + name);
+        }
+    }
+}
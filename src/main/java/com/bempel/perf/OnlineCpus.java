@@ -0,0 +1,293 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cpus usable for system-wide counting: online cpus restricted to the effective cpuset of the process cgroup
+ * (container or systemd slice limits). Online list and effective cpuset files are resolved once, kept open
+ * and re-read from offset 0 (sysfs and cgroupfs regenerate them) to detect cpu hotplug and cpuset updates.
+ * Lists are only parsed when the file content changed, so refresh does not allocate in steady state
+ */
+public class OnlineCpus {
+    static final String ONLINE = CpuTopology.CPU_DIR + "/online";
+    static final String POSSIBLE = CpuTopology.CPU_DIR + "/possible";
+    static final String PROC_CGROUP = "/proc/self/cgroup";
+    static final String PROC_STATUS = "/proc/self/status";
+    static final String CPUS_ALLOWED = "Cpus_allowed_list:";
+
+    private final RandomAccessFile online;
+    private final RandomAccessFile cpuset;
+    private final int slotCount;
+    private final byte[] buffer = new byte[4096];
+    private byte[] lastOnline = new byte[0];
+    private byte[] lastCpuset = new byte[0];
+    private int[] onlineCpus = new int[0];
+    private int[] cpusetCpus;
+    private int[] cpus = new int[0];
+
+    /**
+     * @param cpusetPath effective cpuset file, null if none: allowedCpus is used instead
+     * @param allowedCpus fixed cpu restriction when there is no cpuset file, null if none
+     */
+    OnlineCpus(String onlinePath, String possiblePath, String cpusetPath, int[] allowedCpus) {
+        String possible = CpuTopology.readLine(possiblePath);
+        int[] possibleCpus = possible != null ? CpuTopology.parseCpuList(possible) : new int[0];
+        online = openFile(onlinePath);
+        try {
+            cpuset = cpusetPath != null ? openFile(cpusetPath) : null;
+        } catch (UnsupportedOperationException e) {
+            close(online);
+            throw e;
+        }
+        cpusetCpus = cpusetPath != null ? null : allowedCpus;
+        refresh();
+        int maxCpu = possibleCpus.length > 0 ? possibleCpus[possibleCpus.length - 1] : -1;
+        for (int cpu : cpus) {
+            maxCpu = Math.max(maxCpu, cpu);
+        }
+        slotCount = maxCpu + 1;
+    }
+
+    /**
+     * Reads online cpus and cpuset of the current process. Without cpuset controller, the cpu affinity
+     * (Cpus_allowed_list) at open is used
+     */
+    public static OnlineCpus open() {
+        String cpusetPath = findCpusetFile();
+        return new OnlineCpus(ONLINE, POSSIBLE, cpusetPath, cpusetPath == null ? readCpusAllowed() : null);
+    }
+
+    /**
+     * @return cpu numbers, ascending, as of last refresh
+     */
+    public int[] getCpus() {
+        return cpus;
+    }
+
+    /**
+     * @return number of cpu slots: highest possible cpu number + 1, hotplugged cpus are always lower
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Re-reads the online list and the cpuset: the cpuset of the cgroup can be changed at any time
+     * (container cpu update) without hotplug. Lists are only parsed and intersected when a file changed
+     * @return true if the cpus changed
+     */
+    public boolean refresh() {
+        boolean changed = false;
+        int length = read(online);
+        if (!equals(buffer, lastOnline, length)) {
+            lastOnline = Arrays.copyOf(buffer, length);
+            onlineCpus = CpuTopology.parseCpuList(new String(lastOnline, StandardCharsets.US_ASCII));
+            changed = true;
+        }
+        if (cpuset != null) {
+            length = read(cpuset);
+            if (!equals(buffer, lastCpuset, length)) {
+                lastCpuset = Arrays.copyOf(buffer, length);
+                cpusetCpus = CpuTopology.parseCpuList(new String(lastCpuset, StandardCharsets.US_ASCII));
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+        // empty cpuset: not configured
+        int[] newCpus = cpusetCpus != null && cpusetCpus.length > 0 ? intersect(onlineCpus, cpusetCpus) : onlineCpus;
+        changed = !Arrays.equals(newCpus, cpus);
+        cpus = newCpus;
+        return changed;
+    }
+
+    public void close() {
+        close(online);
+        if (cpuset != null) {
+            close(cpuset);
+        }
+    }
+
+    private static RandomAccessFile openFile(String path) {
+        try {
+            return new RandomAccessFile(path, "r");
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Cannot open " + path, e);
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing to do, read only
+        }
+    }
+
+    private int read(RandomAccessFile file) {
+        try {
+            file.seek(0);
+            int length = 0;
+            int n;
+            while (length < buffer.length && (n = file.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+            return length;
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Cannot read cpu list", e);
+        }
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        if (b.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param a ascending cpu numbers
+     * @param b ascending cpu numbers
+     * @return cpus in both lists, ascending
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return effective cpuset of the cgroup of the current process, falling back to the cpu affinity
+     * (Cpus_allowed_list) if the cpuset controller is not available. null if unknown
+     */
+    public static int[] readCpuset() {
+        String cpusetPath = findCpusetFile();
+        if (cpusetPath != null) {
+            String cpuset = CpuTopology.readLine(cpusetPath);
+            if (cpuset != null) {
+                return CpuTopology.parseCpuList(cpuset);
+            }
+        }
+        return readCpusAllowed();
+    }
+
+    private static String findCpusetFile() {
+        try {
+            return findEffectiveCpuset(readLines(PROC_CGROUP), PerfCgroup.readMounts());
+        } catch (UnsupportedOperationException e) {
+            // not in a cgroup, no procfs: no restriction
+            return null;
+        }
+    }
+
+    private static int[] readCpusAllowed() {
+        try {
+            for (String line : readLines(PROC_STATUS)) {
+                if (line.startsWith(CPUS_ALLOWED)) {
+                    return CpuTopology.parseCpuList(line.substring(CPUS_ALLOWED.length()));
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            // no procfs: no restriction
+        }
+        return null;
+    }
+
+    /**
+     * cgroup v1 cpuset controller if mounted, cgroup2 otherwise. With cgroup2, cpuset.cpus.effective
+     * only exists where the controller is enabled: walks up to the closest ancestor having it
+     * @param cgroups lines of /proc/self/cgroup: hierarchy-id:controllers:path
+     * @param mounts lines of /proc/mounts
+     * @return path of the effective cpuset file, null if not found
+     */
+    static String findEffectiveCpuset(List<String> cgroups, List<String> mounts) {
+        String v1Path = null;
+        String v2Path = null;
+        for (String line : cgroups) {
+            String[] fields = line.split(":", 3);
+            if (fields.length < 3) {
+                continue;
+            }
+            if (Arrays.asList(fields[1].split(",")).contains("cpuset")) {
+                v1Path = fields[2];
+            } else if ("0".equals(fields[0]) && fields[1].isEmpty()) {
+                v2Path = fields[2];
+            }
+        }
+        String v1Mount = PerfCgroup.findMountPoint(mounts, "cpuset");
+        if (v1Path != null && v1Mount != null) {
+            String cpuset = cgroupFile(v1Mount, v1Path, "cpuset.effective_cpus");
+            if (new File(cpuset).isFile()) {
+                return cpuset;
+            }
+        }
+        String v2Mount = PerfCgroup.findMountPoint(mounts, null);
+        if (v2Path == null || v2Mount == null) {
+            return null;
+        }
+        String path = v2Path;
+        while (true) {
+            String cpuset = cgroupFile(v2Mount, path, "cpuset.cpus.effective");
+            if (new File(cpuset).isFile()) {
+                return cpuset;
+            }
+            int slash = path.lastIndexOf('/');
+            if (slash < 0 || path.equals("/")) {
+                return null;
+            }
+            path = slash == 0 ? "/" : path.substring(0, slash);
+        }
+    }
+
+    private static String cgroupFile(String mountPoint, String path, String file) {
+        return mountPoint + (path.endsWith("/") ? path : path + "/") + file;
+    }
+
+    private static List<String> readLines(String path) {
+        try {
+            return Files.readAllLines(new File(path).toPath());
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Cannot read " + path, e);
+        }
+    }
+}
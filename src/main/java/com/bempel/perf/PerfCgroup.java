@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.CLibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Directory fd of a cgroup, used to open events counting only the tasks of this cgroup
+ * (PERF_FLAG_PID_CGROUP). Cgroup events are per cpu: open one event per cpu and sum them
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfCgroup cgroup = PerfCgroup.open("system.slice/docker-1234.scope");
+ *      PerfEvent cycles = new PerfEvent("cycles");
+ *      cycles.open(cgroup, 0);
+ *  </pre>
+ */
+public class PerfCgroup {
+    static final String MOUNTS = "/proc/mounts";
+
+    private final String path;
+    private final int fd;
+
+    private PerfCgroup(String path, int fd) {
+        this.path = path;
+        this.fd = fd;
+    }
+
+    /**
+     * Opens a cgroup directory
+     * @param name path of the cgroup directory, absolute or relative to the cgroup mount point
+     *             (perf_event controller for cgroup v1, cgroup2 otherwise)
+     */
+    public static PerfCgroup open(String name) {
+        String path = resolve(name);
+        int fd = PerfEvent.backend.open(path, CLibrary.O_RDONLY | CLibrary.O_DIRECTORY | CLibrary.O_CLOEXEC);
+        if (fd < 0) {
+            int errno = PerfEvent.backend.lastError();
+            String msg = String.format("Cannot open cgroup[%s]: %s", path, PerfEvent.backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+        return new PerfCgroup(path, fd);
+    }
+
+    static String resolve(String name) {
+        String mountPoint = findMountPoint(readMounts());
+        if (mountPoint == null) {
+            throw new UnsupportedOperationException("Cannot find cgroup2 or perf_event cgroup mount point");
+        }
+        if (name.startsWith(mountPoint + "/") || name.equals(mountPoint)) {
+            return name;
+        }
+        String relative = name.startsWith("/") ? name.substring(1) : name;
+        return relative.isEmpty() ? mountPoint : mountPoint + "/" + relative;
+    }
+
+    static List<String> readMounts() {
+        try {
+            return Files.readAllLines(new File(MOUNTS).toPath());
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Cannot read " + MOUNTS, e);
+        }
+    }
+
+    /**
+     * Like perf: perf_event controller (cgroup v1) if mounted, cgroup2 otherwise
+     * @param mounts lines of /proc/mounts: device mountpoint type options ...
+     */
+    static String findMountPoint(List<String> mounts) {
+        String perfEvent = findMountPoint(mounts, "perf_event");
+        return perfEvent != null ? perfEvent : findMountPoint(mounts, null);
+    }
+
+    /**
+     * @param controller cgroup v1 controller, null for cgroup2
+     * @return first mount point of the controller hierarchy, null if not mounted
+     */
+    static String findMountPoint(List<String> mounts, String controller) {
+        for (String line : mounts) {
+            String[] fields = line.split(" ");
+            if (fields.length < 4) {
+                continue;
+            }
+            if (controller == null) {
+                if ("cgroup2".equals(fields[2])) {
+                    return fields[1];
+                }
+            } else if ("cgroup".equals(fields[2]) && Arrays.asList(fields[3].split(",")).contains(controller)) {
+                return fields[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return cgroup directory fd, passed as pid to perf_event_open with PERF_FLAG_PID_CGROUP
+     */
+    public int getFd() {
+        return fd;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Closes the cgroup directory fd. Events already opened keep counting
+     */
+    public void close() {
+        int ret = PerfEvent.backend.close(fd);
+        if (ret < 0) {
+            int errno = PerfEvent.backend.lastError();
+            String msg = String.format("Cannot perform close on cgroup fd[%d]: %s", fd, PerfEvent.backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+    }
+}
@@ -15,16 +15,18 @@
  */
 package com.bempel.perf;
 
-import com.bempel.perf.jna.CLibrary;
+import com.bempel.perf.jna.NativeBackend;
 import com.bempel.perf.jna.PerfEventConsts;
 import com.bempel.perf.jna.PerfEventAttr;
+import com.bempel.perf.jna.PerfEventMmapPage;
 import com.bempel.perf.jna.Tracepoint;
 import com.bempel.perf.pmuevents.PMUEvent;
+import com.bempel.perf.pmuevents.PMUEventMap;
 import com.bempel.perf.pmuevents.PMUEvents;
-import com.sun.jna.Native;
-import com.sun.jna.ptr.LongByReference;
 
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Wraps a perf event
@@ -43,6 +45,16 @@ import java.util.function.Supplier;
  */
 public class PerfEvent {
     static final int LONG_SIZE = 8;
+    // struct read_format header with PERF_FORMAT_GROUP | PERF_FORMAT_TOTAL_TIME_ENABLED | PERF_FORMAT_TOTAL_TIME_RUNNING
+    static final int NR_IDX = 0;
+    static final int TIME_ENABLED_IDX = 1;
+    static final int TIME_RUNNING_IDX = 2;
+    static final int READ_HEADER_SIZE = 3;
+    // struct read_format without PERF_FORMAT_GROUP: value + time_enabled + time_running + id
+    static final int SINGLE_VALUE_IDX = 0;
+    static final int SINGLE_TIME_ENABLED_IDX = 1;
+    static final int SINGLE_TIME_RUNNING_IDX = 2;
+    static final int SINGLE_READ_SIZE = 4;
 
     @FunctionalInterface
     public interface Logger {
@@ -50,19 +62,67 @@ public class PerfEvent {
     }
 
     public static void installLogger(Logger customLogger) {
-        logger = customLogger;
+        logger = customLogger != null ? customLogger : NOOP_LOGGER;
+        loggingEnabled = customLogger != null;
     }
 
-    static Logger logger = (msg) -> {};
+    private static final Logger NOOP_LOGGER = (msg) -> {};
+    static Logger logger = NOOP_LOGGER;
+    // guards log calls to avoid allocating message supplier when logging is off
+    static boolean loggingEnabled;
+
+    /**
+     * Installs the native backend used for all subsequent calls (open, ioctl, read, close, mmap)
+     * Default is selected by NativeBackends: JnaBackend unless -Djperf.backend is set.
+     * JnaDirectBackend provides direct-mapped bindings
+     */
+    public static void installBackend(NativeBackend nativeBackend) {
+        backend = nativeBackend;
+    }
+
+    static NativeBackend backend = NativeBackends.select();
+
+    /**
+     * How counter values are read
+     */
+    public enum ReadMode {
+        /**
+         * read syscall on each read
+         */
+        SYSCALL,
+        /**
+         * reads counter from user space through the mmap'ed perf_event_mmap_page and rdpmc instruction.
+         * Falls back to read syscall when the counter is not available from user space.
+         * Only effective for events opened on the calling thread (pid == 0 and cpu == -1), and only when read
+         * by the thread that opened the event: rdpmc reads the counter of the cpu executing the instruction,
+         * other threads (e.g. GroupScheduler rotation thread) fall back to read syscall
+         */
+        USER_PAGE
+    }
 
     private EventInfo eventInfo;
+    private final ReadMode readMode;
+    // from read_format: nr + time_enabled + time_running + 1 event * (value + id)
+    private final long[] valueBuffer = new long[READ_HEADER_SIZE + 2];
+    private long timeEnabled;
+    private long timeRunning;
 
     /**
      * Creates perf event
      * @param eventName perf event name
      */
     public PerfEvent(String eventName) {
+        this(eventName, ReadMode.SYSCALL);
+    }
+
+    /**
+     * Creates perf event
+     * @param eventName perf event name
+     * @param readMode how counter is read
+     */
+    public PerfEvent(String eventName, ReadMode readMode) {
         this.eventInfo = new EventInfo(eventName);
+        this.readMode = readMode;
     }
 
     /**
@@ -88,6 +148,19 @@ public class PerfEvent {
     public void open(int pid, int cpu) {
         eventInfo.fd = openEvent(eventInfo.attr, pid, cpu, -1, 0);
         eventInfo.groupId = getGroupId(eventInfo);
+        if (readMode == ReadMode.USER_PAGE) {
+            mapUserPage(eventInfo, pid, cpu);
+        }
+    }
+
+    /**
+     * Opens the event counting only the tasks of a cgroup (PERF_FLAG_PID_CGROUP)
+     * @param cgroup cgroup directory
+     * @param cpu indicates the specific cpu we want to measure, cgroup events cannot be opened on all cpus
+     */
+    public void open(PerfCgroup cgroup, int cpu) {
+        eventInfo.fd = openEvent(eventInfo.attr, cgroup.getFd(), cpu, -1, PerfEventConsts.PERF_FLAG_PID_CGROUP);
+        eventInfo.groupId = getGroupId(eventInfo);
     }
 
     /**
@@ -113,36 +186,123 @@ public class PerfEvent {
 
     /**
      * Reads value of an event
+     * Does not allocate (with JnaDirectBackend), uses an internal buffer: not thread-safe
      */
     public long read() {
-        int totalValues = 3; // 1 * 2 + 1;
-        long[] buffer = new long[totalValues];
-        readBuffer(eventInfo.fd, buffer, totalValues);
-        return buffer[1];
+        if (readUserPage(eventInfo)) {
+            timeEnabled = eventInfo.userValues[PerfEventMmapPage.TIME_ENABLED];
+            timeRunning = eventInfo.userValues[PerfEventMmapPage.TIME_RUNNING];
+            return eventInfo.userValues[PerfEventMmapPage.COUNT];
+        }
+        readBuffer(eventInfo.fd, valueBuffer, valueBuffer.length);
+        timeEnabled = valueBuffer[TIME_ENABLED_IDX];
+        timeRunning = valueBuffer[TIME_RUNNING_IDX];
+        return valueBuffer[READ_HEADER_SIZE];
+    }
+
+    /**
+     * Reads value of an event, scaled to compensate multiplexing
+     * Scaled value is an estimation: value * time enabled / time running
+     */
+    public long readScaled() {
+        long value = read();
+        return scale(value, timeEnabled, timeRunning);
+    }
+
+    /**
+     * Reads value of an event into a snapshot, without allocation
+     * @param snapshot receives value, time enabled & time running
+     * @param index index of the counter in the snapshot
+     */
+    public void read(CounterSnapshot snapshot, int index) {
+        long value = read();
+        snapshot.set(index, value, timeEnabled, timeRunning);
     }
 
     /**
      * /!\ Expert only /!\
-     * Reads value of an event or a group of events and fill the array
-     * @param buffer pre-allocated buffer to perform read
-     * Optimized version to avoid too much allocations
+     * Reads value of an event and fill the array with the layout of struct read_format
+     * (PERF_FORMAT_GROUP | PERF_FORMAT_ID | PERF_FORMAT_TOTAL_TIME_ENABLED | PERF_FORMAT_TOTAL_TIME_RUNNING):
+     * [0] nr, [1] time enabled, [2] time running, [3] value, [4] id
+     * @param buffer pre-allocated buffer of at least 5 elements
+     * @return value, buffer[3]
      */
-    public long read(long[] buffer) {
+    public long readRaw(long[] buffer) {
         readBuffer(eventInfo.fd, buffer, buffer.length);
+        timeEnabled = buffer[TIME_ENABLED_IDX];
+        timeRunning = buffer[TIME_RUNNING_IDX];
+        return buffer[READ_HEADER_SIZE];
+    }
+
+    /**
+     * /!\ Expert only /!\
+     * Reads value of an event and fill the array: [0] nr, [1] value, [2] id
+     * Times are available with getTimeEnabled/getTimeRunning after the call
+     * @param buffer pre-allocated buffer of 3 elements
+     * @return value, buffer[1]
+     * @deprecated layout without times kept for compatibility, use readRaw(long[])
+     */
+    @Deprecated
+    public long read(long[] buffer) {
+        readRaw(valueBuffer);
+        buffer[0] = valueBuffer[NR_IDX];
+        System.arraycopy(valueBuffer, READ_HEADER_SIZE, buffer, 1, Math.min(buffer.length - 1, valueBuffer.length - READ_HEADER_SIZE));
         return buffer[1];
     }
 
+    /**
+     * @return time (ns) the event was enabled, as of last read
+     */
+    public long getTimeEnabled() {
+        return timeEnabled;
+    }
+
+    /**
+     * @return time (ns) the event was actually counting on the pmu, as of last read
+     * less than time enabled when the event was multiplexed
+     */
+    public long getTimeRunning() {
+        return timeRunning;
+    }
+
+    /**
+     * @return percentage of enabled time the event was actually counting, as of last read
+     */
+    public double getCountedPercentage() {
+        return countedPercentage(timeEnabled, timeRunning);
+    }
+
+    /**
+     * Scales a raw counter value to compensate multiplexing
+     * @return estimated value had the event been counting the whole enabled time, 0 if never running
+     */
+    public static long scale(long value, long timeEnabled, long timeRunning) {
+        if (timeRunning <= 0) {
+            return 0;
+        }
+        if (timeRunning >= timeEnabled) {
+            return value;
+        }
+        return (long) ((double) value * timeEnabled / timeRunning);
+    }
+
+    static double countedPercentage(long timeEnabled, long timeRunning) {
+        if (timeEnabled <= 0) {
+            return 0;
+        }
+        return timeRunning * 100.0 / timeEnabled;
+    }
+
+    EventInfo getEventInfo() {
+        return eventInfo;
+    }
+
     /**
      * Closes the event
      * To be able to use it again, needs to perform open
      */
     public void close() {
-        int ret = CLibrary.INSTANCE.close(eventInfo.fd);
-        if (ret < 0) {
-            int errno = Native.getLastError();
-            String msg = String.format("Cannot perform close on fd[%d]: %s", eventInfo.fd, CLibrary.INSTANCE.strerror(errno));
-            throw new UnsupportedOperationException(msg);
-        }
+        close(eventInfo);
     }
 
     /**
@@ -174,65 +334,148 @@ public class PerfEvent {
         close();
     }
 
+    static void close(EventInfo ei) {
+        if (ei.userPage != null) {
+            ei.userPage.unmap();
+            ei.userPage = null;
+            ei.userPageOwner = null;
+        }
+        int ret = backend.close(ei.fd);
+        if (ret < 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform close on fd[%d]: %s", ei.fd, backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+    }
+
+    static void mapUserPage(EventInfo ei, int pid, int cpu) {
+        // rdpmc reads the counter of the cpu executing the instruction,
+        // only meaningful when measuring the calling thread
+        if (pid != 0 || cpu != -1) {
+            return;
+        }
+        ei.userPage = PerfEventMmapPage.map(backend, ei.fd);
+        ei.userPageOwner = Thread.currentThread();
+        if (loggingEnabled) {
+            logger.log(() -> String.format("mmap user page on fd[%d] rdpmc[%b] pmc_width[%d]\n", ei.fd, ei.userPage.capUserRdpmc(), ei.userPage.getPmcWidth()));
+        }
+    }
+
+    static boolean readUserPage(EventInfo ei) {
+        return ei.userPage != null && ei.userPageOwner == Thread.currentThread() && ei.userPage.read(ei.userValues);
+    }
+
     static int readBuffer(int fd, long[] buffer, int len) {
-        int ret = CLibrary.INSTANCE.read(fd, buffer, len * LONG_SIZE);
+        int max = readBufferOrEof(fd, buffer, len);
+        if (max == 0) {
+            throw new IllegalStateException(String.format("End of file reading groupfd[%d]: pinned event in error state", fd));
+        }
+        return max;
+    }
+
+    /**
+     * @return number of longs read, 0 on end of file (pinned event evicted from the pmu, in error state)
+     */
+    static int readBufferOrEof(int fd, long[] buffer, int len) {
+        int ret = backend.read(fd, buffer, len * LONG_SIZE);
         if (ret < 0) {
-            int errno = Native.getLastError();
-            String msg = String.format("Cannot perform read on groupfd[%d]: %s", fd, CLibrary.INSTANCE.strerror(errno));
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform read on groupfd[%d]: %s", fd, backend.strerror(errno));
             throw new UnsupportedOperationException(msg);
         }
-        logger.log(() -> String.format("read on fd[%d] len[%d] bytesread[%d]\n", fd, len, ret));
+        if (loggingEnabled) {
+            logger.log(() -> String.format("read on fd[%d] len[%d] bytesread[%d]\n", fd, len, ret));
+        }
+        if (ret == 0) {
+            return 0;
+        }
         int max = ret / LONG_SIZE;
-        // first cell in valueBuffer is the number of values
-        long nr = buffer[0];
-        if (max != (nr * 2 + 1))
+        // first cell in valueBuffer is the number of values, followed by time enabled & time running
+        long nr = buffer[NR_IDX];
+        if (max != (nr * 2 + READ_HEADER_SIZE))
             throw new IllegalStateException(String.format("Error reading event buffer read [%d] and Number of events [%d] mismatched", max, nr));
         return max;
     }
 
+    /**
+     * Reads an event opened without PERF_FORMAT_GROUP
+     * @param buffer at least SINGLE_READ_SIZE
+     */
+    static void readSingle(int fd, long[] buffer) {
+        int ret = backend.read(fd, buffer, SINGLE_READ_SIZE * LONG_SIZE);
+        if (ret < 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform read on fd[%d]: %s", fd, backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+        if (loggingEnabled) {
+            logger.log(() -> String.format("read on fd[%d] bytesread[%d]\n", fd, ret));
+        }
+        if (ret != SINGLE_READ_SIZE * LONG_SIZE) {
+            throw new IllegalStateException(String.format("Error reading event fd[%d]: read [%d] bytes, expected [%d]", fd, ret, SINGLE_READ_SIZE * LONG_SIZE));
+        }
+    }
+
     static void ioctl(EventInfo ei, int ioctlOp) {
-        int ret = CLibrary.INSTANCE.ioctl(ei.fd, ioctlOp, 0);
+        ioctl(ei, ioctlOp, 0);
+    }
+
+    static void ioctl(EventInfo ei, int ioctlOp, long arg) {
+        int ret = backend.ioctl(ei.fd, ioctlOp, arg);
         if (ret < 0) {
-            int errno = Native.getLastError();
-            String msg = String.format("Cannot perform ioctl on fd[%d]: %s", ei.fd, CLibrary.INSTANCE.strerror(errno));
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform ioctl on fd[%d]: %s", ei.fd, backend.strerror(errno));
             throw new UnsupportedOperationException(msg);
         }
-        logger.log(() -> String.format("Performing ioctl[%x] on fd[%d]\n", ioctlOp, ei.fd));
+        if (loggingEnabled) {
+            logger.log(() -> String.format("Performing ioctl[%x] arg[%d] on fd[%d]\n", ioctlOp, arg, ei.fd));
+        }
     }
 
     static long getGroupId(EventInfo ei) {
-        LongByReference id = new LongByReference();
-        int ret = CLibrary.INSTANCE.ioctl(ei.fd, PerfEventConsts.PERF_EVENT_IOC_ID, id);
-        if (ret < 0) {
-            int errno = Native.getLastError();
-            String msg = String.format("Cannot perform ioctl PERF_EVENT_IOC_ID on fd[%d]: %s", ei.fd, CLibrary.INSTANCE.strerror(errno));
+        long id = backend.ioctlId(ei.fd);
+        if (id < 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform ioctl PERF_EVENT_IOC_ID on fd[%d]: %s", ei.fd, backend.strerror(errno));
             throw new UnsupportedOperationException(msg);
         }
-        logger.log(() -> String.format("getGroupdId on fd[%d]: %d\n", ei.fd, id.getValue()));
-        return id.getValue();
+        if (loggingEnabled) {
+            logger.log(() -> String.format("getGroupdId on fd[%d]: %d\n", ei.fd, id));
+        }
+        return id;
     }
 
     static int openEvent(PerfEventAttr attr, int pid, int cpu, int group_fd, int flags) {
-        int fd = CLibrary.INSTANCE.syscall(PerfEventConsts.PERF_EVENT_OPEN, attr, pid, cpu, group_fd, flags);
+        int fd = backend.perfEventOpen(attr, pid, cpu, group_fd, flags);
         if (fd == -1) {
-            int errno = Native.getLastError();
-            String msg = String.format("Cannot open perf event type[%d] event[%d]: %s", attr.type, attr.config, CLibrary.INSTANCE.strerror(errno));
+            int errno = backend.lastError();
+            String msg = String.format("Cannot open perf event type[%d] event[%d]: %s", attr.type, attr.config, backend.strerror(errno));
             throw new UnsupportedOperationException(msg);
         }
-        logger.log(() -> String.format("openEvent type[%d] event[%d] pid[%d] cpu[%d] groupfd[%d] => fd[%d]\n", attr.type, attr.config, pid, cpu, group_fd, fd));
+        if (loggingEnabled) {
+            logger.log(() -> String.format("openEvent type[%d] event[%d] pid[%d] cpu[%d] groupfd[%d] => fd[%d]\n", attr.type, attr.config, pid, cpu, group_fd, fd));
+        }
         return fd;
     }
 
     static class EventInfo {
+        private static final Pattern RAW_EVENT = Pattern.compile("r[0-9a-fA-F]{1,16}");
+        private static final Pattern LOAD_LATENCY_EVENT = Pattern.compile(".*\\.LOAD_LATENCY_GT_([0-9]+)");
+
         final PerfEventAttr attr = new PerfEventAttr();
         int fd;
         long groupId;
         final String eventName;
+        PerfEventMmapPage userPage;
+        // thread that opened the event, the only one rdpmc is valid for
+        Thread userPageOwner;
+        final long[] userValues = new long[3];
 
         public EventInfo(String eventName) {
             this.eventName = eventName;
             attr.flags = PerfEventAttr.DISABLED | PerfEventAttr.EXCLUDE_KERNEL | PerfEventAttr.EXCLUDE_HV;
-            attr.read_format = PerfEventConsts.PERF_FORMAT_GROUP | PerfEventConsts.PERF_FORMAT_ID;
+            attr.read_format = PerfEventConsts.PERF_FORMAT_GROUP | PerfEventConsts.PERF_FORMAT_ID
+                    | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_ENABLED | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING;
             initPerfEventByName(attr, eventName);
         }
 
@@ -247,13 +490,21 @@ public class PerfEvent {
                 }
                 return;
             }
-            // lookup in PMU events
-            PMUEvent pmuEvent = PMUEvents.getPMUEventMap().get(lookupName);
+            // raw encoding like perf: r<hex config> (event | umask << 8 | edge << 18 | any << 21 | inv << 23 | cmask << 24)
+            if (RAW_EVENT.matcher(lookupName).matches()) {
+                ea.type = PerfEventConsts.PERF_TYPE_RAW;
+                ea.config = Long.parseUnsignedLong(lookupName.substring(1), 16);
+                return;
+            }
+            // lookup in PMU events, no map for unknown cpu models
+            PMUEventMap pmuEventMap = PMUEvents.getPMUEventMap();
+            PMUEvent pmuEvent = pmuEventMap != null ? pmuEventMap.get(lookupName) : null;
             if (pmuEvent != null) {
                 ea.type = PerfEventConsts.PERF_TYPE_RAW;
                 int eventCode = Integer.decode(pmuEvent.eventCode);
                 int umask = Integer.decode(pmuEvent.umask);
                 ea.config = umask << 8 | eventCode;
+                ea.setConfig1(getConfig1(pmuEvent));
                 return;
             }
             // lookup in Tracepoints
@@ -265,6 +516,18 @@ public class PerfEvent {
             }
             throw new IllegalArgumentException("Cannot find perf event: " + lookupName);
         }
+
+        /**
+         * @return value of the extra msr of the event (config1), 0 if none
+         * Generated event maps without MSRValue: load latency threshold from the event name (LOAD_LATENCY_GT_n)
+         */
+        static long getConfig1(PMUEvent pmuEvent) {
+            if (pmuEvent.msrValue != null) {
+                return Long.decode(pmuEvent.msrValue);
+            }
+            Matcher matcher = LOAD_LATENCY_EVENT.matcher(pmuEvent.eventName);
+            return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+        }
     }
 }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Controls a set of events and groups of events (e.g. one per cpu) together
+ * Each control operation is one ioctl per group leader (PERF_IOC_FLAG_GROUP),
+ * whatever the number of events in the groups
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfEventSet set = new PerfEventSet();
+ *      for (int cpu = 0; cpu &lt; nbCpu; cpu++) {
+ *          PerfGroupEvent events = new PerfGroupEvent("cycles,instructions");
+ *          events.open(-1, cpu);
+ *          set.add(events);
+ *      }
+ *      set.reset();
+ *      set.enable();
+ *      // some code we want to measure
+ *      set.disable();
+ *  </pre>
+ */
+public class PerfEventSet {
+    private final List<PerfEvent.EventInfo> leaders = new ArrayList<>();
+
+    /**
+     * Adds an event to the set
+     */
+    public void add(PerfEvent event) {
+        leaders.add(event.getEventInfo());
+    }
+
+    /**
+     * Adds a group of events to the set
+     */
+    public void add(PerfGroupEvent group) {
+        leaders.add(group.getLeader());
+    }
+
+    /**
+     * Removes an event from the set, before closing it
+     */
+    public void remove(PerfEvent event) {
+        leaders.remove(event.getEventInfo());
+    }
+
+    /**
+     * Removes a group of events from the set, before closing it
+     */
+    public void remove(PerfGroupEvent group) {
+        leaders.remove(group.getLeader());
+    }
+
+    /**
+     * Enables all events of the set, events need to be opened
+     */
+    public void enable() {
+        ioctl(PerfEventConsts.PERF_EVENT_IOC_ENABLE);
+    }
+
+    /**
+     * Resets all events of the set, events need to be opened
+     */
+    public void reset() {
+        ioctl(PerfEventConsts.PERF_EVENT_IOC_RESET);
+    }
+
+    /**
+     * Disables all events of the set, events need to be opened
+     */
+    public void disable() {
+        ioctl(PerfEventConsts.PERF_EVENT_IOC_DISABLE);
+    }
+
+    private void ioctl(int ioctlOp) {
+        for (int i = 0; i < leaders.size(); i++) {
+            PerfEvent.ioctl(leaders.get(i), ioctlOp, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+        }
+    }
+}
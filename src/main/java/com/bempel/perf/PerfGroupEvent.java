@@ -15,9 +15,9 @@
  */
 package com.bempel.perf;
 
-import com.bempel.perf.jna.CLibrary;
+import com.bempel.perf.jna.PerfEventAttr;
 import com.bempel.perf.jna.PerfEventConsts;
-import com.sun.jna.Native;
+import com.bempel.perf.jna.PerfEventMmapPage;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -41,6 +41,12 @@ import java.util.function.ObjLongConsumer;
 public class PerfGroupEvent {
     private List<PerfEvent.EventInfo> eventInfos = new ArrayList<>();
     private int groupfd;
+    private final PerfEvent.ReadMode readMode;
+    private final long[] valueBuffer;
+    private final long[] groupValues;
+    private long timeEnabled;
+    private long timeRunning;
+    private IdSlotTable idSlots;
 
     /**
      * Creates perf group event
@@ -48,10 +54,44 @@ public class PerfGroupEvent {
      * @param eventName perf event name, supports group of events with comma-separated event name list
      */
     public PerfGroupEvent(String eventName) {
+        this(eventName, PerfEvent.ReadMode.SYSCALL);
+    }
+
+    /**
+     * Creates perf group event
+     *
+     * @param eventName perf event name, supports group of events with comma-separated event name list
+     * @param readMode how counters are read
+     */
+    public PerfGroupEvent(String eventName, PerfEvent.ReadMode readMode) {
+        this.readMode = readMode;
         String[] eventNames = eventName.split(",");
         for (String name : eventNames) {
             eventInfos.add(new PerfEvent.EventInfo(name));
         }
+        // from read_format: nr + time_enabled + time_running + n events * (value + groupid)
+        valueBuffer = new long[PerfEvent.READ_HEADER_SIZE + eventInfos.size() * 2];
+        groupValues = new long[eventInfos.size()];
+    }
+
+    /**
+     * Requests the group to be pinned on the pmu (attr.pinned on the leader): counting all the time or,
+     * when the kernel cannot schedule it, put in error state where reads return end of file
+     * Must be called before open
+     * @param exclusive the group also requires to be alone on the pmu (attr.exclusive)
+     */
+    public void setPinned(boolean exclusive) {
+        PerfEventAttr attr = getLeader().attr;
+        attr.flags |= PerfEventAttr.PINNED;
+        if (exclusive) {
+            attr.flags |= PerfEventAttr.EXCLUSIVE;
+        } else {
+            attr.flags &= ~PerfEventAttr.EXCLUSIVE;
+        }
+    }
+
+    public boolean isPinned() {
+        return (getLeader().attr.flags & PerfEventAttr.PINNED) != 0;
     }
 
     /**
@@ -68,41 +108,93 @@ public class PerfGroupEvent {
      * Note: pid == -1 && cpu == -1 is invalid
      */
     public void open(int pid, int cpu) {
+        open(pid, cpu, 0);
+    }
+
+    /**
+     * Opens the group of events counting only the tasks of a cgroup (PERF_FLAG_PID_CGROUP)
+     * @param cgroup cgroup directory
+     * @param cpu indicates the specific cpu we want to measure, cgroup events cannot be opened on all cpus
+     */
+    public void open(PerfCgroup cgroup, int cpu) {
+        open(cgroup.getFd(), cpu, PerfEventConsts.PERF_FLAG_PID_CGROUP);
+    }
+
+    private void open(int pid, int cpu, int flags) {
         groupfd = -1;
-        for (PerfEvent.EventInfo ei : eventInfos) {
-            ei.fd = PerfEvent.openEvent(ei.attr, pid, cpu, groupfd, 0);
+        IdSlotTable slots = new IdSlotTable(eventInfos.size());
+        for (int i = 0; i < eventInfos.size(); i++) {
+            PerfEvent.EventInfo ei = eventInfos.get(i);
+            try {
+                ei.fd = PerfEvent.openEvent(ei.attr, pid, cpu, groupfd, flags);
+            } catch (UnsupportedOperationException e) {
+                // do not leak members already opened
+                for (int j = 0; j < i; j++) {
+                    PerfEvent.close(eventInfos.get(j));
+                }
+                throw e;
+            }
             if (groupfd == -1) {
                 groupfd = ei.fd; // store groupfd for the next perf_event_open call
             }
             ei.groupId = PerfEvent.getGroupId(ei);
+            slots.put(ei.groupId, i);
+            if (readMode == PerfEvent.ReadMode.USER_PAGE && flags == 0) {
+                PerfEvent.mapUserPage(ei, pid, cpu);
+            }
         }
-
+        idSlots = slots;
     }
 
     /**
-     * Enables the event or group of events
+     * Enables the group of events
+     * Performed atomically on the whole group with one ioctl on the leader (PERF_IOC_FLAG_GROUP)
      */
     public void enable() {
-        for (PerfEvent.EventInfo ei : eventInfos) {
-            PerfEvent.ioctl(ei, PerfEventConsts.PERF_EVENT_IOC_ENABLE);
-        }
+        PerfEvent.ioctl(getLeader(), PerfEventConsts.PERF_EVENT_IOC_ENABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
     }
+
     /**
      * Resets the group of events
+     * Performed atomically on the whole group with one ioctl on the leader (PERF_IOC_FLAG_GROUP)
      */
     public void reset() {
-        for (PerfEvent.EventInfo ei : eventInfos) {
-            PerfEvent.ioctl(ei, PerfEventConsts.PERF_EVENT_IOC_RESET);
-        }
+        PerfEvent.ioctl(getLeader(), PerfEventConsts.PERF_EVENT_IOC_RESET, PerfEventConsts.PERF_IOC_FLAG_GROUP);
     }
 
     /**
      * Disables the group of events
+     * Performed atomically on the whole group with one ioctl on the leader (PERF_IOC_FLAG_GROUP)
      */
     public void disable() {
-        for (PerfEvent.EventInfo ei : eventInfos) {
-            PerfEvent.ioctl(ei, PerfEventConsts.PERF_EVENT_IOC_DISABLE);
-        }
+        PerfEvent.ioctl(getLeader(), PerfEventConsts.PERF_EVENT_IOC_DISABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    PerfEvent.EventInfo getLeader() {
+        return eventInfos.get(0);
+    }
+
+    /**
+     * Action performed on each event value read, identified by its index in the group
+     */
+    @FunctionalInterface
+    public interface ValueConsumer {
+        void accept(int index, long value);
+    }
+
+    /**
+     * @return number of events in the group
+     */
+    public int size() {
+        return eventInfos.size();
+    }
+
+    /**
+     * @param index index of the event in the group, in declaration order
+     * @return event name
+     */
+    public String getEventName(int index) {
+        return eventInfos.get(index).eventName;
     }
 
     /**
@@ -110,38 +202,96 @@ public class PerfGroupEvent {
      * @param reader action performed on each event read
      */
     public void read(ObjLongConsumer<String> reader) {
-        // from read_format: n events * (value + groupid) + nr
-        int totalValues = eventInfos.size() * 2 + 1;
-        long[] valueBuffer = new long[totalValues];
-        int max = PerfEvent.readBuffer(groupfd, valueBuffer, totalValues);
-        int idx = 1;
-        while (idx < max) {
-            long value = valueBuffer[idx++];
-            if (idx >= max) {
-                throw new IllegalStateException(String.format("Error reading event buffer read, out of bounds idx[%d] max[%d]", idx, max));
-            }
-            long groupId = valueBuffer[idx++];
-            for (PerfEvent.EventInfo ei : eventInfos) {
-                if (ei.groupId == groupId) {
-                    reader.accept(ei.eventName, value);
-                }
-            }
+        readGroup();
+        for (int i = 0; i < eventInfos.size(); i++) {
+            reader.accept(eventInfos.get(i).eventName, groupValues[i]);
+        }
+    }
+
+    /**
+     * Reads value of a group of events and performs an action on each event
+     * Does not allocate (with JnaDirectBackend), uses an internal buffer: not thread-safe
+     * @param reader action performed on each event read, with index of the event in the group
+     */
+    public void readIndexed(ValueConsumer reader) {
+        readGroup();
+        for (int i = 0; i < groupValues.length; i++) {
+            reader.accept(i, groupValues[i]);
         }
     }
 
     /**
      * Reads value of a group of events and fill the array
+     * Does not allocate (with JnaDirectBackend), uses an internal buffer: not thread-safe
      * @param values long array allocated to receive the values read from events
      *               should be large enough to read all events
      */
     public void read(long[] values) {
-        // from read_format: n events * (value + groupid) + nr
-        int totalValues = eventInfos.size() * 2 + 1;
         if (values.length < eventInfos.size()) {
             throw new IllegalArgumentException("values is not large enough. should be at least " + eventInfos.size());
         }
-        long[] valueBuffer = new long[totalValues];
-        read(values, valueBuffer);
+        readGroup();
+        System.arraycopy(groupValues, 0, values, 0, groupValues.length);
+    }
+
+    /**
+     * Reads value of a group of events and fill the array, unless the group is in error state
+     * Does not allocate (with JnaDirectBackend), uses an internal buffer: not thread-safe
+     * @param values long array allocated to receive the values read from events
+     * @return false on end of file (pinned group evicted from the pmu), values and times are left untouched
+     */
+    public boolean tryRead(long[] values) {
+        if (values.length < eventInfos.size()) {
+            throw new IllegalArgumentException("values is not large enough. should be at least " + eventInfos.size());
+        }
+        if (readUserPages()) {
+            copyUserValues();
+        } else {
+            int max = PerfEvent.readBufferOrEof(groupfd, valueBuffer, valueBuffer.length);
+            if (max == 0) {
+                return false;
+            }
+            parseBuffer(valueBuffer, max, groupValues);
+        }
+        System.arraycopy(groupValues, 0, values, 0, groupValues.length);
+        return true;
+    }
+
+    /**
+     * Reads value of a group of events, scaled to compensate multiplexing, and fill the array
+     * Scaled values are estimations: value * time enabled / time running
+     * @param values long array allocated to receive the scaled values read from events
+     *               should be large enough to read all events
+     */
+    public void readScaled(long[] values) {
+        read(values);
+        for (int i = 0; i < groupValues.length; i++) {
+            values[i] = PerfEvent.scale(values[i], timeEnabled, timeRunning);
+        }
+    }
+
+    /**
+     * Reads value of a group of events into a snapshot, without allocation
+     * @param snapshot receives values, time enabled & time running, should be large enough to read all events
+     */
+    public void read(CounterSnapshot snapshot) {
+        read(snapshot, 0);
+    }
+
+    /**
+     * Reads value of a group of events into a snapshot, without allocation
+     * Allows to gather several groups into the same snapshot
+     * @param snapshot receives values, time enabled & time running
+     * @param offset index in the snapshot of the first event of the group
+     */
+    public void read(CounterSnapshot snapshot, int offset) {
+        if (snapshot.size() < offset + eventInfos.size()) {
+            throw new IllegalArgumentException("snapshot is not large enough. should be at least " + (offset + eventInfos.size()));
+        }
+        readGroup();
+        for (int i = 0; i < groupValues.length; i++) {
+            snapshot.set(offset + i, groupValues[i], timeEnabled, timeRunning);
+        }
     }
 
     /**
@@ -149,17 +299,70 @@ public class PerfGroupEvent {
      * Reads value of a group of events and fill the array
      * @param values long array allocated to receive the values read from events
      *               should be large enough to read all events
-     * @param buffer pre-allocated buffer to perform read
+     * @param buffer pre-allocated buffer to perform read, at least 3 + 2 * number of events
      * Optimized version to avoid too much allocations
      */
     public void read(long[] values, long[] buffer) {
-        int max = PerfEvent.readBuffer(groupfd, buffer, buffer.length);
-        int idx = 1;
-        int valueIdx = 0;
+        if (readUserPages()) {
+            for (int i = 0; i < eventInfos.size(); i++) {
+                values[i] = eventInfos.get(i).userValues[PerfEventMmapPage.COUNT];
+            }
+            return;
+        }
+        parseBuffer(buffer, PerfEvent.readBuffer(groupfd, buffer, buffer.length), values);
+    }
+
+    /**
+     * @return time (ns) the group was enabled, as of last read
+     */
+    public long getTimeEnabled() {
+        return timeEnabled;
+    }
+
+    /**
+     * @return time (ns) the group was actually counting on the pmu, as of last read
+     * less than time enabled when the group was multiplexed
+     */
+    public long getTimeRunning() {
+        return timeRunning;
+    }
+
+    /**
+     * @return percentage of enabled time the group was actually counting, as of last read
+     */
+    public double getCountedPercentage() {
+        return PerfEvent.countedPercentage(timeEnabled, timeRunning);
+    }
+
+    private void readGroup() {
+        if (readUserPages()) {
+            copyUserValues();
+            return;
+        }
+        parseBuffer(valueBuffer, PerfEvent.readBuffer(groupfd, valueBuffer, valueBuffer.length), groupValues);
+    }
+
+    private void copyUserValues() {
+        for (int i = 0; i < eventInfos.size(); i++) {
+            groupValues[i] = eventInfos.get(i).userValues[PerfEventMmapPage.COUNT];
+        }
+        // members are scheduled together, leader times are the group ones
+        long[] leaderValues = eventInfos.get(0).userValues;
+        timeEnabled = leaderValues[PerfEventMmapPage.TIME_ENABLED];
+        timeRunning = leaderValues[PerfEventMmapPage.TIME_RUNNING];
+    }
+
+    private void parseBuffer(long[] buffer, int max, long[] values) {
+        timeEnabled = buffer[PerfEvent.TIME_ENABLED_IDX];
+        timeRunning = buffer[PerfEvent.TIME_RUNNING_IDX];
+        int idx = PerfEvent.READ_HEADER_SIZE;
         while (idx < max) {
-            long value = buffer[idx];
-            values[valueIdx++] = value;
-            idx += 2;
+            long value = buffer[idx++];
+            if (idx >= max) {
+                throw new IllegalStateException(String.format("Error reading event buffer read, out of bounds idx[%d] max[%d]", idx, max));
+            }
+            long groupId = buffer[idx++];
+            values[slotOf(groupId)] = value;
         }
     }
 
@@ -169,13 +372,27 @@ public class PerfGroupEvent {
      */
     public void close() {
         for (PerfEvent.EventInfo ei : eventInfos) {
-            int ret = CLibrary.INSTANCE.close(ei.fd);
-            if (ret < 0) {
-                int errno = Native.getLastError();
-                String msg = String.format("Cannot perform close on fd[%d]: %s", ei.fd, CLibrary.INSTANCE.strerror(errno));
-                throw new UnsupportedOperationException(msg);
+            PerfEvent.close(ei);
+        }
+    }
+
+    private int slotOf(long groupId) {
+        int slot = idSlots.get(groupId);
+        if (slot < 0) {
+            throw new IllegalStateException(String.format("Unknown event id[%d] in group read", groupId));
+        }
+        return slot;
+    }
+
+    // all members must be readable from user space, otherwise values would not be consistent.
+    // Not readable from user space when called from another thread than the one that opened the group
+    private boolean readUserPages() {
+        for (int i = 0; i < eventInfos.size(); i++) {
+            if (!PerfEvent.readUserPage(eventInfos.get(i))) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventAttr;
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.jna.PerfRingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples a perf event: every period events (or at a given frequency) the kernel writes
+ * a PERF_RECORD_SAMPLE into a ring buffer mmap'ed from the event fd
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PerfSampler sampler = new PerfSampler("cycles")
+ *              .period(1_000_000)
+ *              .sampleType(PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_TID);
+ *      sampler.start();
+ *      try {
+ *          // some code we want to profile
+ *          sampler.poll(sample -> System.out.printf("ip: %x tid: %d\n", sample.getIp(), sample.getTid()));
+ *      } finally {
+ *          sampler.shutdown();
+ *      }
+ *  </pre>
+ * A comma-separated list of events samples the group on its leader (PERF_SAMPLE_READ | PERF_FORMAT_GROUP):
+ * members do not sample, each sample carries the values of the whole group, see {@link GroupSampleProfile}
+ */
+public class PerfSampler {
+    public static final long DEFAULT_SAMPLE_TYPE = PerfEventConsts.PERF_SAMPLE_IP
+            | PerfEventConsts.PERF_SAMPLE_TID
+            | PerfEventConsts.PERF_SAMPLE_TIME
+            | PerfEventConsts.PERF_SAMPLE_CPU
+            | PerfEventConsts.PERF_SAMPLE_PERIOD;
+    // like perf mem: precise ip, data address, load latency & data source
+    public static final long MEMORY_SAMPLE_TYPE = PerfEventConsts.PERF_SAMPLE_IP
+            | PerfEventConsts.PERF_SAMPLE_TID
+            | PerfEventConsts.PERF_SAMPLE_TIME
+            | PerfEventConsts.PERF_SAMPLE_ADDR
+            | PerfEventConsts.PERF_SAMPLE_CPU
+            | PerfEventConsts.PERF_SAMPLE_WEIGHT
+            | PerfEventConsts.PERF_SAMPLE_DATA_SRC;
+    public static final int DEFAULT_LOAD_LATENCY = 30;
+    // like perf record
+    public static final long DEFAULT_FREQUENCY = 4000;
+    public static final int DEFAULT_DATA_PAGES = 64;
+    static final int HEADER_SIZE = 8;
+    // MEM_TRANS_RETIRED.LOAD_LATENCY: event 0xcd umask 0x01
+    static final long LOAD_LATENCY_CONFIG = 0x01cd;
+
+    /**
+     * Action performed on each sample. The record is only valid during the call
+     */
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(SampleRecord sample);
+    }
+
+    private final PerfEvent.EventInfo eventInfo;
+    // group members read in the samples of the leader
+    private final List<PerfEvent.EventInfo> members = new ArrayList<>();
+    private int dataPages = DEFAULT_DATA_PAGES;
+    private PerfRingBuffer ring;
+    private SampleRecord sample;
+    private long lostRecords;
+
+    /**
+     * Creates a sampler at default frequency (4000 Hz)
+     * @param eventName perf event name, or comma-separated event names for leader sampling
+     * of a group: the first event samples and reads the others
+     */
+    public PerfSampler(String eventName) {
+        String[] eventNames = eventName.split(",");
+        eventInfo = new PerfEvent.EventInfo(eventNames[0]);
+        for (int i = 1; i < eventNames.length; i++) {
+            // no sample_period: members are only counting
+            members.add(new PerfEvent.EventInfo(eventNames[i]));
+        }
+        sampleType(DEFAULT_SAMPLE_TYPE);
+        frequency(DEFAULT_FREQUENCY);
+    }
+
+    /**
+     * Creates a memory access sampler (PEBS on Intel): precise ip, data address, weight and data source
+     * For load latency events (MEM_TRANS_RETIRED.LOAD_LATENCY_GT_n, raw r01cd), weight is the load latency
+     * in core cycles and only loads above the threshold (config1, ldlat) are sampled
+     * @param eventName precise memory event, e.g. MEM_TRANS_RETIRED.LOAD_LATENCY_GT_32 or MEM_INST_RETIRED.ALL_STORES
+     */
+    public static PerfSampler memory(String eventName) {
+        PerfSampler sampler = new PerfSampler(eventName).sampleType(MEMORY_SAMPLE_TYPE).precise(2);
+        if (sampler.eventInfo.attr.type == PerfEventConsts.PERF_TYPE_RAW && sampler.eventInfo.attr.getConfig1() == 0
+                && (sampler.eventInfo.attr.config & 0xFFFF) == LOAD_LATENCY_CONFIG) {
+            sampler.loadLatency(DEFAULT_LOAD_LATENCY);
+        }
+        return sampler;
+    }
+
+    /**
+     * @param preciseIp skid constraint: 0 arbitrary, 1 constant, 2 requested 0 skid, 3 must have 0 skid
+     */
+    public PerfSampler precise(int preciseIp) {
+        eventInfo.attr.setPreciseIp(preciseIp);
+        return this;
+    }
+
+    /**
+     * Sets the load latency threshold of a load latency event (config1, ldlat like perf)
+     * @param cycles minimum latency in core cycles of the sampled loads
+     */
+    public PerfSampler loadLatency(int cycles) {
+        if (cycles <= 0 || cycles > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid load latency threshold: " + cycles);
+        }
+        eventInfo.attr.setConfig1(cycles);
+        return this;
+    }
+
+    /**
+     * Records the last branches with each sample (PERF_SAMPLE_BRANCH_STACK, LBR on Intel), see {@link BranchStackProfile}
+     * @param branchSampleType PerfEventConsts.PERF_SAMPLE_BRANCH_* filter, e.g. USER | ANY for all user branches,
+     *                         USER | CALL_STACK for the call stack
+     */
+    public PerfSampler branchStack(long branchSampleType) {
+        if (branchSampleType == 0) {
+            throw new IllegalArgumentException("Empty branch sample type");
+        }
+        eventInfo.attr.sample_type |= PerfEventConsts.PERF_SAMPLE_BRANCH_STACK;
+        eventInfo.attr.branch_sample_type = branchSampleType;
+        return this;
+    }
+
+    /**
+     * Samples every period events
+     */
+    public PerfSampler period(long period) {
+        eventInfo.attr.sample_period = period;
+        eventInfo.attr.flags &= ~PerfEventAttr.FREQ;
+        return this;
+    }
+
+    /**
+     * Samples at the given frequency (Hz), period adjusted by the kernel
+     */
+    public PerfSampler frequency(long frequency) {
+        eventInfo.attr.sample_period = frequency; // union with sample_freq
+        eventInfo.attr.flags |= PerfEventAttr.FREQ;
+        return this;
+    }
+
+    /**
+     * @param sampleType combination of PerfEventConsts.PERF_SAMPLE_* flags, PERF_SAMPLE_READ is added for a group,
+     *                   PERF_SAMPLE_BRANCH_STACK when branch stack is requested
+     */
+    public PerfSampler sampleType(long sampleType) {
+        if ((sampleType & ~SampleRecord.SUPPORTED_SAMPLE_TYPE) != 0) {
+            throw new IllegalArgumentException(String.format("Unsupported sample type: 0x%x", sampleType & ~SampleRecord.SUPPORTED_SAMPLE_TYPE));
+        }
+        if (!members.isEmpty()) {
+            sampleType |= PerfEventConsts.PERF_SAMPLE_READ;
+        }
+        if (eventInfo.attr.branch_sample_type != 0) {
+            sampleType |= PerfEventConsts.PERF_SAMPLE_BRANCH_STACK;
+        }
+        eventInfo.attr.sample_type = sampleType;
+        return this;
+    }
+
+    /**
+     * @param dataPages number of pages of the ring buffer, power of 2
+     */
+    public PerfSampler dataPages(int dataPages) {
+        if (Integer.bitCount(dataPages) != 1) {
+            throw new IllegalArgumentException("Number of data pages should be a power of 2: " + dataPages);
+        }
+        this.dataPages = dataPages;
+        return this;
+    }
+
+    public String getEventName() {
+        return eventInfo.eventName;
+    }
+
+    /**
+     * @return number of events: 1, or the size of the group for leader sampling
+     */
+    public int size() {
+        return 1 + members.size();
+    }
+
+    /**
+     * @param index index of the event in the group, leader first, same order as values read in samples
+     */
+    public String getEventName(int index) {
+        return index == 0 ? eventInfo.eventName : members.get(index - 1).eventName;
+    }
+
+    /**
+     * Opens the event on the calling process/thread and on any cpu/core
+     */
+    public void open() {
+        open(0, -1);
+    }
+
+    /**
+     * Opens the event and maps the ring buffer
+     * @param pid indicates the pid of the process we want to sample. 0 for current process
+     * @param cpu indicates the specific cpu we want to sample. -1 for all cpus
+     * Note: pid == -1 && cpu == -1 is invalid
+     */
+    public void open(int pid, int cpu) {
+        eventInfo.fd = PerfEvent.openEvent(eventInfo.attr, pid, cpu, -1, 0);
+        eventInfo.groupId = PerfEvent.getGroupId(eventInfo);
+        for (int i = 0; i < members.size(); i++) {
+            PerfEvent.EventInfo member = members.get(i);
+            try {
+                member.fd = PerfEvent.openEvent(member.attr, pid, cpu, eventInfo.fd, 0);
+            } catch (UnsupportedOperationException e) {
+                // do not leak events already opened
+                for (int j = 0; j < i; j++) {
+                    PerfEvent.close(members.get(j));
+                }
+                PerfEvent.close(eventInfo);
+                throw e;
+            }
+            member.groupId = PerfEvent.getGroupId(member);
+        }
+        attach(PerfRingBuffer.map(PerfEvent.backend, eventInfo.fd, dataPages));
+    }
+
+    PerfEvent.EventInfo getEventInfo() {
+        return eventInfo;
+    }
+
+    void attach(PerfRingBuffer ringBuffer) {
+        ring = ringBuffer;
+        sample = new SampleRecord(eventInfo.attr.sample_type, eventInfo.attr.read_format, eventInfo.attr.branch_sample_type);
+        lostRecords = 0;
+    }
+
+    // whole group with one ioctl on the leader (PERF_IOC_FLAG_GROUP)
+    public void enable() {
+        PerfEvent.ioctl(eventInfo, PerfEventConsts.PERF_EVENT_IOC_ENABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    public void reset() {
+        PerfEvent.ioctl(eventInfo, PerfEventConsts.PERF_EVENT_IOC_RESET, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    public void disable() {
+        PerfEvent.ioctl(eventInfo, PerfEventConsts.PERF_EVENT_IOC_DISABLE, PerfEventConsts.PERF_IOC_FLAG_GROUP);
+    }
+
+    /**
+     * Consumes all records available in the ring buffer, without allocation
+     * Not thread-safe: only one thread should poll a sampler
+     * @param consumer action performed on each sample
+     * @return number of samples consumed
+     */
+    public int poll(SampleConsumer consumer) {
+        long head = ring.getDataHead();
+        long tail = ring.getDataTail();
+        int count = 0;
+        while (tail < head) {
+            // struct perf_event_header { u32 type; u16 misc; u16 size; }
+            long header = ring.getLong(tail);
+            int type = (int) header;
+            int size = (int) (header >>> 48);
+            if (size < HEADER_SIZE) {
+                throw new IllegalStateException(String.format("Invalid record size[%d] at position[%d]", size, tail));
+            }
+            if (type == PerfEventConsts.PERF_RECORD_SAMPLE) {
+                sample.wrap(ring, tail + HEADER_SIZE, size - HEADER_SIZE);
+                consumer.accept(sample);
+                count++;
+            } else if (type == PerfEventConsts.PERF_RECORD_LOST) {
+                // struct { u64 id; u64 lost; }
+                lostRecords += ring.getLong(tail + HEADER_SIZE + 8);
+            }
+            tail += size;
+        }
+        ring.setDataTail(tail);
+        return count;
+    }
+
+    /**
+     * @return number of records lost because the ring buffer was full
+     */
+    public long getLostRecords() {
+        return lostRecords;
+    }
+
+    /**
+     * Unmaps the ring buffer and closes the event
+     */
+    public void close() {
+        ring.unmap();
+        ring = null;
+        for (PerfEvent.EventInfo member : members) {
+            PerfEvent.close(member);
+        }
+        PerfEvent.close(eventInfo);
+    }
+
+    /**
+     * Starts sampling performing open/reset/enable operations
+     * for the calling process/thread for any cpu
+     */
+    public void start() {
+        start(0, -1);
+    }
+
+    public void start(int pid, int cpu) {
+        open(pid, cpu);
+        reset();
+        enable();
+    }
+
+    /**
+     * Stops sampling performing disable/close operations
+     */
+    public void shutdown() {
+        disable();
+        close();
+    }
+}
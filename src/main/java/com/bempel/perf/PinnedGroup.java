@@ -0,0 +1,271 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+/**
+ * Group of events pinned on the pmu, for always-on counters that must not be multiplexed
+ * The kernel evicts a pinned group it cannot schedule (e.g. counters taken by another pinned or exclusive group):
+ * the group is put in error state and reads return end of file. Counting may also stop without error state,
+ * time running not advancing anymore while time enabled does. Both are detected on read:
+ * the listener is notified and the group is re-opened to be pinned again. Re-pin attempts on read are throttled
+ * (at most one per repin interval) so a group evicted again and again does not close/open on every read
+ * Values are totals since start, including counts before evictions, excluding counts missed while evicted
+ * <br>
+ * Usage:
+ *  <pre>
+ *      PinnedGroup group = new PinnedGroup("cycles,instructions,LLC-load-misses", false,
+ *              (g, reason) -> log.warn("counters evicted: " + reason));
+ *      long[] values = new long[group.size()];
+ *      group.start();
+ *      // ...
+ *      if (!group.read(values)) {
+ *          // eviction detected, or evicted and not pinned again yet: values miss the counts while evicted
+ *      }
+ *  </pre>
+ */
+public class PinnedGroup {
+    static final long DEFAULT_REPIN_INTERVAL_NANOS = 100_000_000;
+
+    public enum EvictionReason {
+        /**
+         * read returned end of file, group in error state
+         */
+        ERROR_STATE,
+        /**
+         * time running stopped advancing while time enabled advanced
+         */
+        NOT_RUNNING
+    }
+
+    @FunctionalInterface
+    public interface EvictionListener {
+        void onEviction(PinnedGroup group, EvictionReason reason);
+    }
+
+    private final EvictionListener listener;
+    private final long[] current;
+    // totals of previous pins of the group
+    private final long[] base;
+    private final PerfGroupEvent group;
+    private PerfCgroup cgroup;
+    private int pid;
+    private int cpu;
+    private long lastTimeEnabled;
+    private long lastTimeRunning;
+    private long repinIntervalNanos = DEFAULT_REPIN_INTERVAL_NANOS;
+    private long lastRepinAttempt;
+    private boolean opened;
+    private boolean evicted;
+    private int evictions;
+    private int repins;
+
+    /**
+     * @param eventName perf event name, supports group of events with comma-separated event name list
+     * @param exclusive the group also requires to be alone on the pmu
+     * @param listener notified on each eviction detected, before trying to pin again
+     */
+    public PinnedGroup(String eventName, boolean exclusive, EvictionListener listener) {
+        this.listener = listener;
+        this.group = new PerfGroupEvent(eventName);
+        this.group.setPinned(exclusive);
+        this.current = new long[group.size()];
+        this.base = new long[group.size()];
+    }
+
+    public int size() {
+        return current.length;
+    }
+
+    public String getEventName(int index) {
+        return group.getEventName(index);
+    }
+
+    /**
+     * @param repinIntervalNanos minimum time (ns) between 2 re-pin attempts performed by read, 100ms by default
+     */
+    public void setRepinInterval(long repinIntervalNanos) {
+        if (repinIntervalNanos < 0) {
+            throw new IllegalArgumentException("Invalid repin interval: " + repinIntervalNanos);
+        }
+        this.repinIntervalNanos = repinIntervalNanos;
+    }
+
+    /**
+     * Opens, resets and enables the group on the calling process/thread and on any cpu
+     */
+    public void start() {
+        start(0, -1);
+    }
+
+    /**
+     * Opens, resets and enables the group
+     * @param pid indicates the pid of the process we want to measure. 0 for current process
+     * @param cpu indicates the specific cpu we want to measure. -1 for all cpus
+     */
+    public void start(int pid, int cpu) {
+        this.pid = pid;
+        this.cpu = cpu;
+        this.cgroup = null;
+        clear();
+        pin();
+    }
+
+    /**
+     * Opens, resets and enables the group counting only the tasks of a cgroup
+     * @param cgroup cgroup directory, kept open by the caller to pin the group again
+     */
+    public void start(PerfCgroup cgroup, int cpu) {
+        this.cgroup = cgroup;
+        this.cpu = cpu;
+        clear();
+        pin();
+    }
+
+    private void clear() {
+        for (int i = 0; i < base.length; i++) {
+            base[i] = 0;
+            current[i] = 0;
+        }
+        evicted = false;
+        evictions = 0;
+        repins = 0;
+        lastRepinAttempt = System.nanoTime() - repinIntervalNanos;
+    }
+
+    private void pin() {
+        if (cgroup != null) {
+            group.open(cgroup, cpu);
+        } else {
+            group.open(pid, cpu);
+        }
+        opened = true;
+        group.reset();
+        group.enable();
+        lastTimeEnabled = 0;
+        lastTimeRunning = 0;
+    }
+
+    /**
+     * Reads the totals of the events, detects eviction and tries to pin the group again
+     * Does not allocate (with JnaDirectBackend) unless an eviction is detected
+     * @param values receives the totals since start
+     * @return true if the group counted since last read, false if this read detected an eviction
+     * (even if pinned again) or if the group is still evicted
+     */
+    public boolean read(long[] values) {
+        if (evicted && !throttledRepin()) {
+            total(values);
+            return false;
+        }
+        if (!group.tryRead(current)) {
+            evict(EvictionReason.ERROR_STATE);
+            total(values);
+            return false;
+        }
+        long timeEnabled = group.getTimeEnabled();
+        long timeRunning = group.getTimeRunning();
+        boolean stalled = timeEnabled > lastTimeEnabled && timeRunning == lastTimeRunning;
+        lastTimeEnabled = timeEnabled;
+        lastTimeRunning = timeRunning;
+        if (stalled) {
+            evict(EvictionReason.NOT_RUNNING);
+            total(values);
+            return false;
+        }
+        total(values);
+        return true;
+    }
+
+    private void total(long[] values) {
+        for (int i = 0; i < current.length; i++) {
+            values[i] = base[i] + current[i];
+        }
+    }
+
+    private void evict(EvictionReason reason) {
+        evictions++;
+        evicted = true;
+        listener.onEviction(this, reason);
+        throttledRepin();
+    }
+
+    private boolean throttledRepin() {
+        long now = System.nanoTime();
+        if (now - lastRepinAttempt < repinIntervalNanos) {
+            return false;
+        }
+        lastRepinAttempt = now;
+        return repin();
+    }
+
+    /**
+     * Closes the group and opens it again pinned, counts read so far are kept in totals
+     * Not throttled, unlike the attempts performed by read
+     * @return true if the group is pinned again
+     */
+    public boolean repin() {
+        for (int i = 0; i < base.length; i++) {
+            base[i] += current[i];
+            current[i] = 0;
+        }
+        if (opened) {
+            opened = false;
+            group.close();
+        }
+        try {
+            pin();
+        } catch (UnsupportedOperationException e) {
+            evicted = true;
+            return false;
+        }
+        repins++;
+        evicted = false;
+        return true;
+    }
+
+    /**
+     * @return true if evicted and not pinned again yet
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return number of evictions detected since start
+     */
+    public int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of successful re-pins since start
+     */
+    public int getRepins() {
+        return repins;
+    }
+
+    /**
+     * Disables and closes the group
+     */
+    public void shutdown() {
+        if (!opened) {
+            return;
+        }
+        opened = false;
+        group.disable();
+        group.close();
+    }
+}
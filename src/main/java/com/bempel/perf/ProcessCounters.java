@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts events for all the threads of the JVM
+ * PerfEvent/PerfGroupEvent opened with pid 0 only count the calling thread. ProcessCounters opens
+ * a group per thread listed in /proc/self/task, follows new threads and retires exited ones
+ * (their final counts are kept in the aggregate) on each refresh
+ * Not thread-safe: refresh/read/shutdown are meant to be called from a single monitoring thread
+ * (groups of exited threads are closed by refresh)
+ * <br>
+ * Usage:
+ *  <pre>
+ *      ProcessCounters counters = new ProcessCounters("cycles,instructions");
+ *      CounterSnapshot total = new CounterSnapshot(counters.size());
+ *      counters.start();
+ *      while (running) {
+ *          Thread.sleep(1000);
+ *          counters.refresh(); // allocates, picks up new/exited threads
+ *          counters.read(total); // allocation free
+ *          counters.forEachThread((tid, name, values) -> System.out.printf("%s: %,d\n", name, values.getScaledValue(0)));
+ *      }
+ *      counters.shutdown();
+ *  </pre>
+ */
+public class ProcessCounters {
+    static final String TASK_DIR = "/proc/self/task";
+
+    /**
+     * Action performed on each thread with its values as of last read
+     */
+    @FunctionalInterface
+    public interface ThreadConsumer {
+        void accept(int tid, String name, CounterSnapshot values);
+    }
+
+    private static class ThreadCounters {
+        final int tid;
+        final String name;
+        final PerfGroupEvent group;
+        final CounterSnapshot values;
+
+        ThreadCounters(int tid, String name, PerfGroupEvent group) {
+            this.tid = tid;
+            this.name = name;
+            this.group = group;
+            this.values = new CounterSnapshot(group.size());
+        }
+    }
+
+    private final String eventName;
+    private final String[] eventNames;
+    private final int size;
+    private final Map<Integer, ThreadCounters> threadsByTid = new HashMap<>();
+    // live threads, iterated by read without allocation. Replaced (never mutated) by refresh,
+    // volatile so a reader thread sees a fully built array
+    private volatile ThreadCounters[] threads = new ThreadCounters[0];
+    // counts of exited threads
+    private final CounterSnapshot retired;
+    private boolean enabled;
+
+    /**
+     * @param eventName perf event name, supports group of events with comma-separated event name list
+     */
+    public ProcessCounters(String eventName) {
+        this.eventName = eventName;
+        this.eventNames = eventName.split(",");
+        this.size = eventNames.length;
+        this.retired = new CounterSnapshot(size);
+    }
+
+    /**
+     * @return number of events per thread
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of threads currently followed
+     */
+    public int getThreadCount() {
+        return threads.length;
+    }
+
+    /**
+     * Opens events for new threads and retires exited ones
+     * Threads created after enable are counted from the refresh following their creation
+     * Allocates: meant to be called periodically, not on a hot path
+     * @return number of threads followed
+     */
+    public int refresh() {
+        String[] tasks = new File(TASK_DIR).list();
+        if (tasks == null) {
+            throw new UnsupportedOperationException("Cannot list " + TASK_DIR);
+        }
+        Set<Integer> alive = new HashSet<>();
+        boolean changed = false;
+        for (String task : tasks) {
+            int tid = Integer.parseInt(task);
+            alive.add(tid);
+            if (!threadsByTid.containsKey(tid)) {
+                ThreadCounters thread = openThread(tid);
+                if (thread != null) {
+                    threadsByTid.put(tid, thread);
+                    changed = true;
+                }
+            }
+        }
+        Iterator<ThreadCounters> it = threadsByTid.values().iterator();
+        while (it.hasNext()) {
+            ThreadCounters thread = it.next();
+            if (!alive.contains(thread.tid)) {
+                retire(thread);
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            ThreadCounters[] newThreads = threadsByTid.values().toArray(new ThreadCounters[0]);
+            Arrays.sort(newThreads, Comparator.comparingInt(t -> t.tid));
+            threads = newThreads;
+        }
+        return threads.length;
+    }
+
+    private ThreadCounters openThread(int tid) {
+        PerfGroupEvent group = new PerfGroupEvent(eventName);
+        try {
+            group.open(tid, -1);
+        } catch (UnsupportedOperationException e) {
+            if (!new File(TASK_DIR, String.valueOf(tid)).exists()) {
+                // thread exited in the meantime
+                return null;
+            }
+            throw e;
+        }
+        if (enabled) {
+            group.reset();
+            group.enable();
+        }
+        return new ThreadCounters(tid, readThreadName(tid), group);
+    }
+
+    // counter of an exited thread is still readable, keeps its final values
+    private void retire(ThreadCounters thread) {
+        thread.group.read(thread.values);
+        retired.accumulate(thread.values);
+        thread.group.close();
+    }
+
+    /**
+     * Native thread name (comm), set by the JVM from the Java thread name (truncated to 15 chars)
+     */
+    static String readThreadName(int tid) {
+        try {
+            List<String> lines = Files.readAllLines(new File(TASK_DIR, tid + "/comm").toPath());
+            if (!lines.isEmpty()) {
+                return lines.get(0).trim();
+            }
+        } catch (IOException e) {
+            // thread exited
+        }
+        return String.valueOf(tid);
+    }
+
+    /**
+     * Reads all threads and aggregates their values (plus the ones of exited threads), without allocation
+     * Values are scaled per thread before being summed. Time enabled/running are the sums over threads
+     * @param total receives the aggregated values, should be large enough to read all events
+     */
+    public void read(CounterSnapshot total) {
+        total.copyFrom(retired);
+        ThreadCounters[] current = threads;
+        for (int i = 0; i < current.length; i++) {
+            ThreadCounters thread = current[i];
+            thread.group.read(thread.values);
+            total.accumulate(thread.values);
+        }
+    }
+
+    /**
+     * Performs an action on each followed thread with values as of last read
+     */
+    public void forEachThread(ThreadConsumer consumer) {
+        ThreadCounters[] current = threads;
+        for (int i = 0; i < current.length; i++) {
+            ThreadCounters thread = current[i];
+            consumer.accept(thread.tid, thread.name, thread.values);
+        }
+    }
+
+    /**
+     * @return event name at index, in declaration order
+     */
+    public String getEventName(int index) {
+        return eventNames[index];
+    }
+
+    public void enable() {
+        for (ThreadCounters thread : threads) {
+            thread.group.enable();
+        }
+        enabled = true;
+    }
+
+    public void disable() {
+        for (ThreadCounters thread : threads) {
+            thread.group.disable();
+        }
+        enabled = false;
+    }
+
+    public void reset() {
+        for (ThreadCounters thread : threads) {
+            thread.group.reset();
+        }
+        retired.clear();
+    }
+
+    /**
+     * Closes events of all threads
+     */
+    public void close() {
+        for (ThreadCounters thread : threads) {
+            thread.group.close();
+        }
+        threadsByTid.clear();
+        threads = new ThreadCounters[0];
+    }
+
+    /**
+     * Opens events for all current threads, resets & enables them
+     */
+    public void start() {
+        refresh();
+        reset();
+        enable();
+    }
+
+    /**
+     * Disables & closes events of all threads
+     */
+    public void shutdown() {
+        disable();
+        close();
+    }
+}
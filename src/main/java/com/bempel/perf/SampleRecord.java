@@ -0,0 +1,373 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.jna.PerfRingBuffer;
+
+/**
+ * Flyweight over a PERF_RECORD_SAMPLE record in the ring buffer
+ * Fields are read directly from the mapped memory: only valid during the SampleConsumer callback,
+ * the record may be overwritten by the kernel afterwards
+ * Field layout depends on attr.sample_type, see struct perf_event_header / PERF_RECORD_SAMPLE
+ * in linux/perf_event.h
+ */
+public class SampleRecord {
+    // sample types supported by the parser
+    static final long SUPPORTED_SAMPLE_TYPE = PerfEventConsts.PERF_SAMPLE_IDENTIFIER
+            | PerfEventConsts.PERF_SAMPLE_IP
+            | PerfEventConsts.PERF_SAMPLE_TID
+            | PerfEventConsts.PERF_SAMPLE_TIME
+            | PerfEventConsts.PERF_SAMPLE_ADDR
+            | PerfEventConsts.PERF_SAMPLE_ID
+            | PerfEventConsts.PERF_SAMPLE_STREAM_ID
+            | PerfEventConsts.PERF_SAMPLE_CPU
+            | PerfEventConsts.PERF_SAMPLE_PERIOD
+            | PerfEventConsts.PERF_SAMPLE_READ
+            | PerfEventConsts.PERF_SAMPLE_CALLCHAIN
+            | PerfEventConsts.PERF_SAMPLE_BRANCH_STACK
+            | PerfEventConsts.PERF_SAMPLE_WEIGHT
+            | PerfEventConsts.PERF_SAMPLE_DATA_SRC
+            | PerfEventConsts.PERF_SAMPLE_PHYS_ADDR;
+    static final long DEFAULT_READ_FORMAT = PerfEventConsts.PERF_FORMAT_GROUP | PerfEventConsts.PERF_FORMAT_ID
+            | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_ENABLED | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING;
+
+    // struct perf_branch_entry { u64 from; u64 to; u64 flags; }, flags bit fields
+    static final int BRANCH_ENTRY_SIZE = 24;
+    static final long BRANCH_MISPRED = 1L;
+    static final long BRANCH_PREDICTED = 1L << 1;
+    static final long BRANCH_IN_TX = 1L << 2;
+    static final long BRANCH_ABORT = 1L << 3;
+    static final int BRANCH_CYCLES_SHIFT = 4;
+    static final int BRANCH_TYPE_SHIFT = 20;
+
+    private final long sampleType;
+    // PERF_SAMPLE_BRANCH_HW_INDEX: hw_idx between the number of branches and the entries
+    private final long branchSampleType;
+    private final boolean branchHwIndex;
+    // struct read_format layout of PERF_SAMPLE_READ, offsets relative to the read field, -1 if not read
+    private final boolean groupRead;
+    private final int readEnabledOffset;
+    private final int readRunningOffset;
+    // offset of the first value, followed by id if PERF_FORMAT_ID
+    private final int readValuesOffset;
+    private final int readValueSize;
+    private final int readIdOffset;
+    // offsets relative to the first field of the record, -1 if not sampled
+    private final int ipOffset;
+    private final int tidOffset;
+    private final int timeOffset;
+    private final int addrOffset;
+    private final int idOffset;
+    private final int cpuOffset;
+    private final int periodOffset;
+    // end of fixed size fields
+    private final int fixedSize;
+
+    private PerfRingBuffer ring;
+    private long position;
+    private int size;
+    private long readPosition = -1;
+    private long callchainPosition = -1;
+    private long branchStackPosition = -1;
+    // fields after the callchain
+    private long weightPosition = -1;
+    private long dataSrcPosition = -1;
+    private long physAddrPosition = -1;
+
+    SampleRecord(long sampleType) {
+        this(sampleType, DEFAULT_READ_FORMAT);
+    }
+
+    /**
+     * @param readFormat attr.read_format of the sampled event, layout of PERF_SAMPLE_READ
+     */
+    SampleRecord(long sampleType, long readFormat) {
+        this(sampleType, readFormat, 0);
+    }
+
+    /**
+     * @param branchSampleType attr.branch_sample_type of the sampled event, layout of PERF_SAMPLE_BRANCH_STACK
+     */
+    SampleRecord(long sampleType, long readFormat, long branchSampleType) {
+        if ((sampleType & ~SUPPORTED_SAMPLE_TYPE) != 0) {
+            throw new IllegalArgumentException(String.format("Unsupported sample type: 0x%x", sampleType & ~SUPPORTED_SAMPLE_TYPE));
+        }
+        this.sampleType = sampleType;
+        this.branchSampleType = branchSampleType;
+        this.branchHwIndex = (branchSampleType & PerfEventConsts.PERF_SAMPLE_BRANCH_HW_INDEX) != 0;
+        int offset = 0;
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_IDENTIFIER) != 0) {
+            offset += 8;
+        }
+        ipOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_IP) != 0 ? offset : -1;
+        offset += ipOffset >= 0 ? 8 : 0;
+        tidOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_TID) != 0 ? offset : -1;
+        offset += tidOffset >= 0 ? 8 : 0;
+        timeOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_TIME) != 0 ? offset : -1;
+        offset += timeOffset >= 0 ? 8 : 0;
+        addrOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_ADDR) != 0 ? offset : -1;
+        offset += addrOffset >= 0 ? 8 : 0;
+        idOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_ID) != 0 ? offset : -1;
+        offset += idOffset >= 0 ? 8 : 0;
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_STREAM_ID) != 0) {
+            offset += 8;
+        }
+        cpuOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_CPU) != 0 ? offset : -1;
+        offset += cpuOffset >= 0 ? 8 : 0;
+        periodOffset = (sampleType & PerfEventConsts.PERF_SAMPLE_PERIOD) != 0 ? offset : -1;
+        offset += periodOffset >= 0 ? 8 : 0;
+        fixedSize = offset;
+        groupRead = (readFormat & PerfEventConsts.PERF_FORMAT_GROUP) != 0;
+        // group: { nr; time_enabled; time_running; { value; id; }[nr] } otherwise { value; time_enabled; time_running; id; }
+        int readOffset = 8;
+        readEnabledOffset = (readFormat & PerfEventConsts.PERF_FORMAT_TOTAL_TIME_ENABLED) != 0 ? readOffset : -1;
+        readOffset += readEnabledOffset >= 0 ? 8 : 0;
+        readRunningOffset = (readFormat & PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING) != 0 ? readOffset : -1;
+        readOffset += readRunningOffset >= 0 ? 8 : 0;
+        boolean readId = (readFormat & PerfEventConsts.PERF_FORMAT_ID) != 0;
+        if (groupRead) {
+            readValuesOffset = readOffset;
+            readValueSize = readId ? 16 : 8;
+            readIdOffset = readId ? 8 : -1;
+        } else {
+            readValuesOffset = 0;
+            readValueSize = readOffset + (readId ? 8 : 0);
+            readIdOffset = readId ? readOffset : -1;
+        }
+    }
+
+    /**
+     * Points the flyweight to a record
+     * @param position position of the first field, just after perf_event_header
+     * @param size size of the record fields (header excluded)
+     */
+    void wrap(PerfRingBuffer ring, long position, int size) {
+        this.ring = ring;
+        this.position = position;
+        this.size = size;
+        long pos = position + fixedSize;
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_READ) != 0) {
+            readPosition = pos;
+            pos += groupRead ? readValuesOffset + ring.getLong(pos) * readValueSize : readValueSize;
+        }
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_CALLCHAIN) != 0) {
+            callchainPosition = pos;
+            pos += 8 + ring.getLong(pos) * 8;
+        }
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_BRANCH_STACK) != 0) {
+            branchStackPosition = pos;
+            pos += 8 + (branchHwIndex ? 8 : 0) + ring.getLong(pos) * BRANCH_ENTRY_SIZE;
+        }
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_WEIGHT) != 0) {
+            weightPosition = pos;
+            pos += 8;
+        }
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_DATA_SRC) != 0) {
+            dataSrcPosition = pos;
+            pos += 8;
+        }
+        if ((sampleType & PerfEventConsts.PERF_SAMPLE_PHYS_ADDR) != 0) {
+            physAddrPosition = pos;
+            pos += 8;
+        }
+        if (pos > position + size) {
+            throw new IllegalStateException(String.format("Sample record overflow: expected size[%d] actual[%d]", pos - position, size));
+        }
+    }
+
+    public long getSampleType() {
+        return sampleType;
+    }
+
+    public long getIp() {
+        return ring.getLong(position + checkSampled(ipOffset, "IP"));
+    }
+
+    public int getPid() {
+        return ring.getInt(position + checkSampled(tidOffset, "TID"));
+    }
+
+    public int getTid() {
+        return ring.getInt(position + checkSampled(tidOffset, "TID") + 4);
+    }
+
+    public long getTime() {
+        return ring.getLong(position + checkSampled(timeOffset, "TIME"));
+    }
+
+    public long getAddr() {
+        return ring.getLong(position + checkSampled(addrOffset, "ADDR"));
+    }
+
+    public long getId() {
+        return ring.getLong(position + checkSampled(idOffset, "ID"));
+    }
+
+    public int getCpu() {
+        return ring.getInt(position + checkSampled(cpuOffset, "CPU"));
+    }
+
+    public long getPeriod() {
+        return ring.getLong(position + checkSampled(periodOffset, "PERIOD"));
+    }
+
+    /**
+     * @return number of values read (PERF_SAMPLE_READ): number of events of the group, 1 for a single event
+     */
+    public int getReadSize() {
+        long pos = checkSampled(readPosition, "READ");
+        return groupRead ? (int) ring.getLong(pos) : 1;
+    }
+
+    /**
+     * @param index index of the event in the group, leader first, in group creation order
+     * @return counter value of the event when the sample was taken
+     */
+    public long getReadValue(int index) {
+        return ring.getLong(checkSampled(readPosition, "READ") + readValuesOffset + (long) index * readValueSize);
+    }
+
+    /**
+     * @return id of the event (PERF_FORMAT_ID), as returned by PERF_EVENT_IOC_ID
+     */
+    public long getReadId(int index) {
+        checkSampled(readIdOffset, "READ with PERF_FORMAT_ID");
+        return ring.getLong(checkSampled(readPosition, "READ") + readValuesOffset + (long) index * readValueSize + readIdOffset);
+    }
+
+    public long getReadTimeEnabled() {
+        return ring.getLong(checkSampled(readPosition, "READ") + checkSampled(readEnabledOffset, "READ with PERF_FORMAT_TOTAL_TIME_ENABLED"));
+    }
+
+    public long getReadTimeRunning() {
+        return ring.getLong(checkSampled(readPosition, "READ") + checkSampled(readRunningOffset, "READ with PERF_FORMAT_TOTAL_TIME_RUNNING"));
+    }
+
+    /**
+     * @return number of instruction pointers in the callchain
+     */
+    public int getCallchainSize() {
+        return (int) ring.getLong(checkSampled(callchainPosition, "CALLCHAIN"));
+    }
+
+    public long getCallchainIp(int index) {
+        return ring.getLong(checkSampled(callchainPosition, "CALLCHAIN") + 8 + index * 8L);
+    }
+
+    /**
+     * @return attr.branch_sample_type of the sampled event: branches selected in the branch stack
+     */
+    public long getBranchSampleType() {
+        return branchSampleType;
+    }
+
+    /**
+     * @return number of branch entries (PERF_SAMPLE_BRANCH_STACK), entry 0 is the most recent branch
+     */
+    public int getBranchStackSize() {
+        return (int) ring.getLong(checkSampled(branchStackPosition, "BRANCH_STACK"));
+    }
+
+    public long getBranchFrom(int index) {
+        return ring.getLong(branchEntry(index));
+    }
+
+    public long getBranchTo(int index) {
+        return ring.getLong(branchEntry(index) + 8);
+    }
+
+    /**
+     * @return raw flags of the branch entry: mispred, predicted, in_tx, abort, cycles, type
+     */
+    public long getBranchFlags(int index) {
+        return ring.getLong(branchEntry(index) + 16);
+    }
+
+    public boolean isBranchMispredicted(int index) {
+        return (getBranchFlags(index) & BRANCH_MISPRED) != 0;
+    }
+
+    public boolean isBranchPredicted(int index) {
+        return (getBranchFlags(index) & BRANCH_PREDICTED) != 0;
+    }
+
+    public boolean isBranchInTx(int index) {
+        return (getBranchFlags(index) & BRANCH_IN_TX) != 0;
+    }
+
+    public boolean isBranchAbort(int index) {
+        return (getBranchFlags(index) & BRANCH_ABORT) != 0;
+    }
+
+    /**
+     * @return core cycles elapsed since the previous branch entry, 0 if not reported by the hardware
+     */
+    public int getBranchCycles(int index) {
+        return getBranchCycles(getBranchFlags(index));
+    }
+
+    /**
+     * @return branch type (PERF_BR_*) when PERF_SAMPLE_BRANCH_TYPE_SAVE is requested, 0 otherwise
+     */
+    public int getBranchType(int index) {
+        return (int) (getBranchFlags(index) >>> BRANCH_TYPE_SHIFT) & 0xf;
+    }
+
+    static int getBranchCycles(long flags) {
+        return (int) (flags >>> BRANCH_CYCLES_SHIFT) & 0xffff;
+    }
+
+    private long branchEntry(int index) {
+        return checkSampled(branchStackPosition, "BRANCH_STACK") + 8 + (branchHwIndex ? 8 : 0) + (long) index * BRANCH_ENTRY_SIZE;
+    }
+
+    /**
+     * @return cost of the sampled access, load latency in core cycles for load latency events
+     */
+    public long getWeight() {
+        return ring.getLong(checkSampled(weightPosition, "WEIGHT"));
+    }
+
+    /**
+     * @return union perf_mem_data_src, see {@link DataSource}
+     */
+    public long getDataSrc() {
+        return ring.getLong(checkSampled(dataSrcPosition, "DATA_SRC"));
+    }
+
+    public long getPhysAddr() {
+        return ring.getLong(checkSampled(physAddrPosition, "PHYS_ADDR"));
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    private static long checkSampled(long offset, String field) {
+        if (offset < 0) {
+            throw new IllegalStateException("Field not sampled: PERF_SAMPLE_" + field);
+        }
+        return offset;
+    }
+
+    private static int checkSampled(int offset, String field) {
+        if (offset < 0) {
+            throw new IllegalStateException("Field not sampled: PERF_SAMPLE_" + field);
+        }
+        return offset;
+    }
+}
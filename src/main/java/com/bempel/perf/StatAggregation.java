@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregation of per-cpu values of JPerf stat into units: whole system, cpu, core, socket or NUMA node
+ * Unit of each cpu is resolved once from the topology, aggregation sums into a preallocated primitive array
+ */
+class StatAggregation {
+    enum Mode {
+        GLOBAL(null),
+        CPU("cpu"),
+        CORE("core"),
+        SOCKET("socket"),
+        NODE("node");
+
+        // name of the unit in machine readable outputs
+        final String unitName;
+
+        Mode(String unitName) {
+            this.unitName = unitName;
+        }
+    }
+
+    // indexes in the values of a unit
+    static final int VALUE = 0;
+    static final int SCALED_VALUE = 1;
+    static final int TIME_ENABLED = 2;
+    static final int TIME_RUNNING = 3;
+    private static final int AGGREGATE_SIZE = 4;
+
+    private final Mode mode;
+    // cpu numbers, indexes in the per-cpu snapshots
+    private final int[] cpus;
+    // unit of each cpu, indexed like cpus
+    private final int[] unitOf;
+    private final String[] labels;
+    private final int[] cpuCounts;
+    private final long[] values;
+
+    private StatAggregation(Mode mode, int[] cpus, int[] unitOf, String[] labels) {
+        this.mode = mode;
+        this.cpus = cpus;
+        this.unitOf = unitOf;
+        this.labels = labels;
+        this.cpuCounts = new int[labels.length];
+        for (int unit : unitOf) {
+            cpuCounts[unit]++;
+        }
+        this.values = new long[labels.length * AGGREGATE_SIZE];
+    }
+
+    /**
+     * @param cpus cpu numbers to aggregate, per-cpu snapshots are indexed by cpu number
+     */
+    static StatAggregation create(Mode mode, int[] cpus, CpuTopology topology) {
+        // units sorted by socket/die/core/node/cpu number
+        Map<Long, List<Integer>> cpusByKey = new TreeMap<>();
+        Map<Long, String> labelByKey = new TreeMap<>();
+        for (int i = 0; i < cpus.length; i++) {
+            int cpu = cpus[i];
+            long key;
+            String label;
+            switch (mode) {
+                case GLOBAL:
+                    key = 0;
+                    label = null;
+                    break;
+                case CPU:
+                    key = cpu;
+                    label = "CPU" + cpu;
+                    break;
+                case CORE:
+                    key = key(topology.getSocket(cpu), topology.getDie(cpu), topology.getCore(cpu));
+                    label = String.format("S%d-D%d-C%d", topology.getSocket(cpu), topology.getDie(cpu), topology.getCore(cpu));
+                    break;
+                case SOCKET:
+                    key = key(topology.getSocket(cpu), 0, 0);
+                    label = "S" + topology.getSocket(cpu);
+                    break;
+                case NODE:
+                    key = key(topology.getNode(cpu), 0, 0);
+                    label = "N" + topology.getNode(cpu);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown aggregation mode: " + mode);
+            }
+            cpusByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            labelByKey.put(key, label);
+        }
+        int[] unitOf = new int[cpus.length];
+        String[] labels = new String[cpusByKey.size()];
+        int unit = 0;
+        for (Map.Entry<Long, List<Integer>> entry : cpusByKey.entrySet()) {
+            for (int index : entry.getValue()) {
+                unitOf[index] = unit;
+            }
+            labels[unit++] = labelByKey.get(entry.getKey());
+        }
+        return new StatAggregation(mode, cpus, unitOf, labels);
+    }
+
+    // unknown (-1) ids sort first
+    private static long key(int first, int second, int third) {
+        return ((first + 1L) << 42) | ((second + 1L) << 21) | (third + 1L);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    int getUnitCount() {
+        return labels.length;
+    }
+
+    /**
+     * @return label of the unit (e.g. S0-D0-C1 for a core), null for GLOBAL
+     */
+    String getLabel(int unit) {
+        return labels[unit];
+    }
+
+    /**
+     * @return number of cpus aggregated in the unit
+     */
+    int getCpuCount(int unit) {
+        return cpuCounts[unit];
+    }
+
+    /**
+     * Sums values, scaled values, time enabled & time running of the cpus of each unit, without allocation
+     */
+    void aggregate(CounterSnapshot perCpu) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0;
+        }
+        for (int i = 0; i < unitOf.length; i++) {
+            int base = unitOf[i] * AGGREGATE_SIZE;
+            int cpu = cpus[i];
+            values[base + VALUE] += perCpu.getValue(cpu);
+            values[base + SCALED_VALUE] += perCpu.getScaledValue(cpu);
+            values[base + TIME_ENABLED] += perCpu.getTimeEnabled(cpu);
+            values[base + TIME_RUNNING] += perCpu.getTimeRunning(cpu);
+        }
+    }
+
+    /**
+     * @param field VALUE, SCALED_VALUE, TIME_ENABLED or TIME_RUNNING
+     * @return aggregated field of the unit, as of last aggregate
+     */
+    long get(int unit, int field) {
+        return values[unit * AGGREGATE_SIZE + field];
+    }
+}
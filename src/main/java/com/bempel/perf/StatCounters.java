@@ -0,0 +1,327 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Events of JPerf stat, opened on each cpu as groups (see {@link #planGroups(List, GroupPlanner)}),
+ * controlled together: one PERF_IOC_FLAG_GROUP ioctl per group and per cpu, whatever the number of events.
+ * Reads are preallocated: snapshots per event indexed by cpu number, swapped between reads.
+ * Cpus can be added and removed (hotplug) between reads, values of removed cpus are kept in totals
+ */
+class StatCounters {
+    private final List<String> eventNames;
+    // comma-separated event names of each group
+    private final String[] groupEventNames;
+    // [group][index in group] => event index
+    private final int[][] eventOfGroup;
+    // [group][cpu number], null if not opened on the cpu
+    private final PerfGroupEvent[][] groups;
+    // [group] read buffer
+    private final long[][] groupValues;
+    private final int cpuSlots;
+    private final PerfEventSet eventSet = new PerfEventSet();
+    private PerfCgroup cgroup;
+    private boolean enabled;
+    // cpus with opened events
+    private int[] cpus = new int[0];
+    // cpus opened at least once, for aggregation
+    private int[] knownCpus = new int[0];
+    private CounterSnapshot[] prev;
+    private CounterSnapshot[] cur;
+    private final CounterSnapshot[] delta;
+    // last values of events closed by hotplug
+    private final CounterSnapshot[] retired;
+    private final CounterSnapshot[] total;
+
+    /**
+     * @param cpuSlots highest cpu number + 1
+     */
+    StatCounters(List<String> eventNames, int cpuSlots) {
+        this(eventNames, planGroups(eventNames, new GroupPlanner()), cpuSlots);
+    }
+
+    /**
+     * @param plannedGroups event names split into schedulable groups, each event exactly once
+     */
+    StatCounters(List<String> eventNames, List<List<String>> plannedGroups, int cpuSlots) {
+        this.eventNames = eventNames;
+        this.cpuSlots = cpuSlots;
+        int size = eventNames.size();
+        groupEventNames = new String[plannedGroups.size()];
+        eventOfGroup = new int[plannedGroups.size()][];
+        groups = new PerfGroupEvent[plannedGroups.size()][cpuSlots];
+        groupValues = new long[plannedGroups.size()][];
+        boolean[] assigned = new boolean[size];
+        for (int g = 0; g < plannedGroups.size(); g++) {
+            List<String> names = plannedGroups.get(g);
+            groupEventNames[g] = String.join(",", names);
+            eventOfGroup[g] = new int[names.size()];
+            groupValues[g] = new long[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                // same event may be requested twice: first one not yet in a group
+                int e = 0;
+                while (assigned[e] || !eventNames.get(e).equals(names.get(i))) {
+                    e++;
+                }
+                assigned[e] = true;
+                eventOfGroup[g][i] = e;
+            }
+        }
+        prev = new CounterSnapshot[size];
+        cur = new CounterSnapshot[size];
+        delta = new CounterSnapshot[size];
+        retired = new CounterSnapshot[size];
+        total = new CounterSnapshot[size];
+        for (int e = 0; e < size; e++) {
+            prev[e] = new CounterSnapshot(cpuSlots);
+            cur[e] = new CounterSnapshot(cpuSlots);
+            delta[e] = new CounterSnapshot(cpuSlots);
+            retired[e] = new CounterSnapshot(cpuSlots);
+            total[e] = new CounterSnapshot(cpuSlots);
+        }
+    }
+
+    /**
+     * Hardware events are split by GroupPlanner into groups the PMU can schedule. Software events are grouped
+     * per kernel pmu: cpu-clock and task-clock each have their own pmu, the other software events share one,
+     * siblings from another pmu than the leader do not count. Other events (tracepoints) are opened alone
+     * @return groups of event names, in request order of their first event
+     */
+    static List<List<String>> planGroups(List<String> eventNames, GroupPlanner planner) {
+        List<String> hardware = new ArrayList<>();
+        Map<String, List<String>> groupsByLeader = new LinkedHashMap<>();
+        for (String name : eventNames) {
+            if (planner.counterMask(name) != null) {
+                hardware.add(name);
+                continue;
+            }
+            PerfEventConsts.PerfEventInfo info = PerfEventConsts.getPerfEvent(name);
+            // unique key: alone in its group
+            String pmu = "other" + groupsByLeader.size();
+            if (info != null && info.getType() == PerfEventConsts.PERF_TYPE_SOFTWARE) {
+                boolean clock = info == PerfEventConsts.PerfSwId.PERF_COUNT_SW_CPU_CLOCK
+                        || info == PerfEventConsts.PerfSwId.PERF_COUNT_SW_TASK_CLOCK;
+                pmu = clock ? info.getName() : "software";
+            }
+            groupsByLeader.computeIfAbsent(pmu, k -> new ArrayList<>()).add(name);
+        }
+        List<List<String>> groups = new ArrayList<>(groupsByLeader.values());
+        if (!hardware.isEmpty()) {
+            groups.addAll(planner.plan(hardware).getGroups());
+        }
+        groups.sort((a, b) -> Integer.compare(eventNames.indexOf(a.get(0)), eventNames.indexOf(b.get(0))));
+        return groups;
+    }
+
+    int size() {
+        return eventNames.size();
+    }
+
+    /**
+     * @return cpus opened at least once, ascending: indexes to aggregate in the snapshots
+     */
+    int[] getCpus() {
+        return knownCpus;
+    }
+
+    String getEventName(int event) {
+        return eventNames.get(event);
+    }
+
+    /**
+     * Opens all groups on each cpu, for all tasks or only the tasks of a cgroup
+     * @param cgroup null for all tasks, kept open by the caller for cpus added later
+     * @param cpus cpu numbers, ascending
+     */
+    void open(PerfCgroup cgroup, int[] cpus) {
+        this.cgroup = cgroup;
+        for (int i = 0; i < cpus.length; i++) {
+            try {
+                open(cpus[i]);
+            } catch (UnsupportedOperationException ex) {
+                for (int j = 0; j < i; j++) {
+                    close(cpus[j]);
+                }
+                throw ex;
+            }
+        }
+        this.cpus = cpus.clone();
+        this.knownCpus = cpus.clone();
+    }
+
+    private void open(int cpu) {
+        try {
+            for (int g = 0; g < groups.length; g++) {
+                PerfGroupEvent group = new PerfGroupEvent(groupEventNames[g]);
+                if (cgroup != null) {
+                    group.open(cgroup, cpu);
+                } else {
+                    group.open(-1, cpu);
+                }
+                groups[g][cpu] = group;
+                eventSet.add(group);
+                if (enabled) {
+                    group.reset();
+                    group.enable();
+                }
+            }
+        } catch (UnsupportedOperationException ex) {
+            close(cpu);
+            throw ex;
+        }
+    }
+
+    /**
+     * Follows cpu hotplug: opens events on added cpus and closes events of removed cpus.
+     * Last read values of removed cpus are moved to retired totals, so call right after read()
+     * to lose nothing. A cpu going offline again before its events are opened is skipped
+     * @param newCpus cpu numbers, ascending
+     * @return true if opened cpus changed
+     */
+    boolean setCpus(int[] newCpus) {
+        int[] opened = new int[newCpus.length];
+        int count = 0;
+        for (int cpu : cpus) {
+            if (Arrays.binarySearch(newCpus, cpu) < 0) {
+                retire(cpu);
+            }
+        }
+        for (int cpu : newCpus) {
+            if (cpu >= cpuSlots) {
+                continue;
+            }
+            if (Arrays.binarySearch(cpus, cpu) < 0) {
+                try {
+                    open(cpu);
+                } catch (UnsupportedOperationException ex) {
+                    continue;
+                }
+                if (Arrays.binarySearch(knownCpus, cpu) < 0) {
+                    knownCpus = insert(knownCpus, cpu);
+                }
+            }
+            opened[count++] = cpu;
+        }
+        opened = Arrays.copyOf(opened, count);
+        boolean changed = !Arrays.equals(opened, cpus);
+        cpus = opened;
+        return changed;
+    }
+
+    private void retire(int cpu) {
+        for (int e = 0; e < eventNames.size(); e++) {
+            CounterSnapshot last = cur[e];
+            retired[e].set(cpu, retired[e].getValue(cpu) + last.getValue(cpu),
+                    retired[e].getTimeEnabled(cpu) + last.getTimeEnabled(cpu),
+                    retired[e].getTimeRunning(cpu) + last.getTimeRunning(cpu));
+            // reopened later: starts from 0 in both snapshots
+            prev[e].set(cpu, 0, 0, 0);
+            cur[e].set(cpu, 0, 0, 0);
+        }
+        close(cpu);
+    }
+
+    private void close(int cpu) {
+        for (PerfGroupEvent[] groupPerCpu : groups) {
+            PerfGroupEvent group = groupPerCpu[cpu];
+            if (group != null) {
+                eventSet.remove(group);
+                group.close();
+                groupPerCpu[cpu] = null;
+            }
+        }
+    }
+
+    private static int[] insert(int[] sorted, int value) {
+        int[] result = Arrays.copyOf(sorted, sorted.length + 1);
+        int i = sorted.length;
+        while (i > 0 && result[i - 1] > value) {
+            result[i] = result[i - 1];
+            i--;
+        }
+        result[i] = value;
+        return result;
+    }
+
+    void reset() {
+        eventSet.reset();
+    }
+
+    void enable() {
+        eventSet.enable();
+        enabled = true;
+    }
+
+    void disable() {
+        eventSet.disable();
+        enabled = false;
+    }
+
+    void close() {
+        for (int cpu : cpus) {
+            close(cpu);
+        }
+        cpus = new int[0];
+    }
+
+    /**
+     * Reads all events of all cpus and computes deltas with previous read, without allocation
+     */
+    void read() {
+        CounterSnapshot[] tmp = prev;
+        prev = cur;
+        cur = tmp;
+        for (int g = 0; g < groups.length; g++) {
+            PerfGroupEvent[] groupPerCpu = groups[g];
+            long[] values = groupValues[g];
+            int[] eventOf = eventOfGroup[g];
+            for (int cpu : cpus) {
+                PerfGroupEvent group = groupPerCpu[cpu];
+                group.read(values);
+                for (int i = 0; i < values.length; i++) {
+                    cur[eventOf[i]].set(cpu, values[i], group.getTimeEnabled(), group.getTimeRunning());
+                }
+            }
+        }
+        for (int e = 0; e < eventNames.size(); e++) {
+            CounterSnapshot.delta(prev[e], cur[e], delta[e]);
+            total[e].copyFrom(retired[e]);
+            total[e].accumulate(cur[e]);
+        }
+    }
+
+    /**
+     * @return values per cpu as of last read, since open, including cpus removed since
+     */
+    CounterSnapshot getValues(int event) {
+        return total[event];
+    }
+
+    /**
+     * @return values per cpu between the 2 last reads
+     */
+    CounterSnapshot getDeltas(int event) {
+        return delta[event];
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command line options of JPerf stat
+ */
+class StatOptions {
+    static final List<String> DEFAULT_EVENTS = Collections.unmodifiableList(Arrays.asList(
+            "cpu-clock", "context-switches", "cpu-migrations", "page-faults",
+            "cycles", "instructions", "branches", "branch-misses"));
+
+    final List<String> events = new ArrayList<>();
+    String cgroup;
+    // interval mode when > 0
+    long intervalMs;
+    // number of intervals printed, 0 for unlimited
+    int intervalCount;
+    // how per-cpu values are aggregated
+    StatAggregation.Mode aggregation = StatAggregation.Mode.GLOBAL;
+    // CSV output when not null
+    String csvSeparator;
+    boolean json;
+    // topdown analysis level instead of events when > 0
+    int topdownLevel;
+
+    /**
+     * @param args command line arguments, args[0] being the action name
+     */
+    static StatOptions parse(String[] args) {
+        StatOptions options = new StatOptions();
+        int i = 1;
+        while (i < args.length) {
+            String arg = args[i++];
+            switch (arg) {
+                case "-e":
+                    options.events.addAll(Arrays.asList(value(args, i++, arg).split(",")));
+                    break;
+                case "-G":
+                    options.cgroup = value(args, i++, arg);
+                    break;
+                case "-I":
+                    options.intervalMs = Long.parseLong(value(args, i++, arg));
+                    if (options.intervalMs <= 0) {
+                        throw new UnsupportedOperationException("invalid interval: " + options.intervalMs);
+                    }
+                    break;
+                case "--interval-count":
+                    options.intervalCount = Integer.parseInt(value(args, i++, arg));
+                    break;
+                case "-A":
+                case "--no-aggr":
+                    options.aggregation = StatAggregation.Mode.CPU;
+                    break;
+                case "--per-core":
+                    options.aggregation = StatAggregation.Mode.CORE;
+                    break;
+                case "--per-socket":
+                    options.aggregation = StatAggregation.Mode.SOCKET;
+                    break;
+                case "--per-node":
+                    options.aggregation = StatAggregation.Mode.NODE;
+                    break;
+                case "-x":
+                    options.csvSeparator = value(args, i++, arg);
+                    break;
+                case "--json":
+                    options.json = true;
+                    break;
+                case "--topdown":
+                    options.topdownLevel = Math.max(options.topdownLevel, 1);
+                    break;
+                case "--td-level":
+                    options.topdownLevel = Integer.parseInt(value(args, i++, arg));
+                    if (options.topdownLevel < 1 || options.topdownLevel > 2) {
+                        throw new UnsupportedOperationException("invalid topdown level: " + options.topdownLevel);
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException("invalid argument: " + arg);
+            }
+        }
+        if (options.topdownLevel > 0) {
+            if (!options.events.isEmpty() || options.intervalMs > 0 || options.aggregation != StatAggregation.Mode.GLOBAL
+                    || options.csvSeparator != null || options.json) {
+                throw new UnsupportedOperationException("--topdown does not support -e, -I, aggregation or machine readable outputs");
+            }
+            return options;
+        }
+        if (options.events.isEmpty()) {
+            options.events.addAll(DEFAULT_EVENTS);
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new UnsupportedOperationException("missing value for option " + option);
+        }
+        return args[index];
+    }
+}
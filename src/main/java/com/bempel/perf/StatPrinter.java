@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output of JPerf stat: human readable text (like perf stat), CSV or JSON lines
+ * CSV & JSON are formatted into a reusable AsciiBuffer written to stdout channel
+ */
+abstract class StatPrinter {
+    static final long NO_TIMESTAMP = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static StatPrinter create(StatOptions options) {
+        if (options.json) {
+            return new JsonPrinter(newStdoutBuffer(), options.aggregation.unitName);
+        }
+        if (options.csvSeparator != null) {
+            return new CsvPrinter(newStdoutBuffer(), options.csvSeparator);
+        }
+        return new TextPrinter();
+    }
+
+    private static AsciiBuffer newStdoutBuffer() {
+        WritableByteChannel channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        return new AsciiBuffer(channel, BUFFER_SIZE);
+    }
+
+    /**
+     * @param timestampNs time since start of the measurement, NO_TIMESTAMP outside interval mode
+     * @param unit label of the aggregation unit (cpu, core, socket, node), null for the whole system
+     * @param unitCpus number of cpus aggregated in the unit
+     */
+    abstract void printCounter(long timestampNs, String unit, int unitCpus, String eventName, long value, long scaledValue, long timeEnabled, long timeRunning);
+
+    /**
+     * Statistics of the read performed for an interval
+     */
+    abstract void printReadStats(long timestampNs, long readLatencyNs, long lagNs, int missedIntervals);
+
+    abstract void flush();
+
+    // like perf stat: value scaled if multiplexed, followed by the percentage of time counted
+    static class TextPrinter extends StatPrinter {
+        @Override
+        void printCounter(long timestampNs, String unit, int unitCpus, String eventName, long value, long scaledValue, long timeEnabled, long timeRunning) {
+            if (timestampNs != NO_TIMESTAMP) {
+                System.out.printf("%14.9f ", timestampNs / 1e9);
+            }
+            if (unit != null) {
+                // like perf: unit followed by the number of cpus aggregated
+                System.out.printf("%-12s %4d ", unit, unitCpus);
+            }
+            if (timeRunning == 0) {
+                System.out.printf("%20s  %s\n", "<not counted>", eventName);
+                return;
+            }
+            if (timeRunning < timeEnabled) {
+                System.out.printf("%,20d  %s  (%.2f%%)\n", scaledValue, eventName, timeRunning * 100.0 / timeEnabled);
+                return;
+            }
+            System.out.printf("%,20d  %s\n", scaledValue, eventName);
+        }
+
+        @Override
+        void printReadStats(long timestampNs, long readLatencyNs, long lagNs, int missedIntervals) {
+            System.out.printf("#%13.9f read latency %,d ns, lag %,d ns, missed intervals %d\n", timestampNs / 1e9, readLatencyNs, lagNs, missedIntervals);
+        }
+
+        @Override
+        void flush() {
+            System.out.flush();
+        }
+    }
+
+    /**
+     * timestamp,unit,event,value,scaled_value,time_enabled,time_running
+     * timestamp empty outside interval mode, unit (cpu, core, socket or node) empty for the whole system
+     * Read statistics are comment lines starting with '#'
+     */
+    static class CsvPrinter extends StatPrinter {
+        private final AsciiBuffer buffer;
+        private final String separator;
+
+        CsvPrinter(AsciiBuffer buffer, String separator) {
+            this.buffer = buffer;
+            this.separator = separator;
+        }
+
+        @Override
+        void printCounter(long timestampNs, String unit, int unitCpus, String eventName, long value, long scaledValue, long timeEnabled, long timeRunning) {
+            if (timestampNs != NO_TIMESTAMP) {
+                buffer.putDecimal(timestampNs, 9);
+            }
+            buffer.put(separator);
+            if (unit != null) {
+                buffer.put(unit);
+            }
+            buffer.put(separator).put(eventName)
+                    .put(separator).put(value)
+                    .put(separator).put(scaledValue)
+                    .put(separator).put(timeEnabled)
+                    .put(separator).put(timeRunning)
+                    .put('\n');
+        }
+
+        @Override
+        void printReadStats(long timestampNs, long readLatencyNs, long lagNs, int missedIntervals) {
+            buffer.put("# ").putDecimal(timestampNs, 9)
+                    .put(separator).put("read_latency_ns=").put(readLatencyNs)
+                    .put(separator).put("lag_ns=").put(lagNs)
+                    .put(separator).put("missed_intervals=").put(missedIntervals)
+                    .put('\n');
+        }
+
+        @Override
+        void flush() {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * One JSON object per line
+     */
+    static class JsonPrinter extends StatPrinter {
+        private final AsciiBuffer buffer;
+        private final String unitName;
+
+        /**
+         * @param unitName key of the unit label (cpu, core, socket, node)
+         */
+        JsonPrinter(AsciiBuffer buffer, String unitName) {
+            this.buffer = buffer;
+            this.unitName = unitName;
+        }
+
+        @Override
+        void printCounter(long timestampNs, String unit, int unitCpus, String eventName, long value, long scaledValue, long timeEnabled, long timeRunning) {
+            buffer.put('{');
+            if (timestampNs != NO_TIMESTAMP) {
+                buffer.put("\"timestamp\":").putDecimal(timestampNs, 9).put(',');
+            }
+            if (unit != null) {
+                buffer.putJsonString(unitName).put(':').putJsonString(unit).put(',');
+            }
+            buffer.put("\"event\":").putJsonString(eventName)
+                    .put(",\"value\":").put(value)
+                    .put(",\"scaled_value\":").put(scaledValue)
+                    .put(",\"time_enabled\":").put(timeEnabled)
+                    .put(",\"time_running\":").put(timeRunning)
+                    .put("}\n");
+        }
+
+        @Override
+        void printReadStats(long timestampNs, long readLatencyNs, long lagNs, int missedIntervals) {
+            buffer.put("{\"timestamp\":").putDecimal(timestampNs, 9)
+                    .put(",\"read_latency_ns\":").put(readLatencyNs)
+                    .put(",\"lag_ns\":").put(lagNs)
+                    .put(",\"missed_intervals\":").put(missedIntervals)
+                    .put("}\n");
+        }
+
+        @Override
+        void flush() {
+            buffer.flush();
+        }
+    }
+}
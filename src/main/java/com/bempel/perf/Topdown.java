@@ -0,0 +1,449 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.pmuevents.PMUEventMap;
+import com.bempel.perf.pmuevents.PMUEvents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Top-down microarchitecture analysis (TMA), level 1 and 2, for Intel cores from Sandy Bridge to Skylake
+ * (4 issue slots per cycle). Pipeline slots are split into Frontend Bound, Bad Speculation, Backend Bound & Retiring,
+ * then each of them into 2 level-2 nodes. Inputs of each formula are counted in the same group, so ratios stay
+ * consistent when groups are multiplexed.
+ * Events are raw encoded (r&lt;config&gt;) as generated PMU event maps do not keep counter masks & edge detect.
+ * With SMT on (smt/active), issue slots are shared by the 2 threads of a core: as in TMA, cycles are core cycles
+ * (CPU_CLK_UNHALTED.THREAD_ANY / 2) and recovery cycles are INT_MISC.RECOVERY_CYCLES_ANY / 2. The AnyThread bit
+ * requires perf_event_paranoid &lt;= 0 (or CAP_PERFMON/CAP_SYS_ADMIN). Level-1 metrics are exact for a core
+ * (both threads aggregated, e.g. system-wide on all cpus), per-thread results are an approximation.
+ * <br>
+ * Usage:
+ *  <pre>
+ *      Topdown topdown = new Topdown(2);
+ *      topdown.start();
+ *      // some code we want to analyze
+ *      topdown.disable();
+ *      topdown.read();
+ *      System.out.printf("Backend Bound: %.1f%%\n", topdown.get(Topdown.Metric.BACKEND_BOUND) * 100);
+ *      topdown.close();
+ *  </pre>
+ */
+public class Topdown {
+    static final int SLOTS_PER_CYCLE = 4;
+    static final int THREADS_PER_CORE = 2;
+    // CPU_CLK_UNHALTED.THREAD_ANY (AnyThread bit), still scheduled on the fixed counter
+    static final String CORE_CYCLES = "r20003c";
+
+    public enum Metric {
+        FRONTEND_BOUND(1, null, "Frontend Bound"),
+        FRONTEND_LATENCY(2, FRONTEND_BOUND, "Frontend Latency"),
+        FRONTEND_BANDWIDTH(2, FRONTEND_BOUND, "Frontend Bandwidth"),
+        BAD_SPECULATION(1, null, "Bad Speculation"),
+        BRANCH_MISPREDICTS(2, BAD_SPECULATION, "Branch Mispredicts"),
+        MACHINE_CLEARS(2, BAD_SPECULATION, "Machine Clears"),
+        BACKEND_BOUND(1, null, "Backend Bound"),
+        MEMORY_BOUND(2, BACKEND_BOUND, "Memory Bound"),
+        CORE_BOUND(2, BACKEND_BOUND, "Core Bound"),
+        RETIRING(1, null, "Retiring"),
+        BASE(2, RETIRING, "Base"),
+        MICROCODE_SEQUENCER(2, RETIRING, "Microcode Sequencer");
+
+        public final int level;
+        // level-1 metric this one breaks down, null for level 1
+        public final Metric parent;
+        public final String label;
+
+        Metric(int level, Metric parent, String label) {
+            this.level = level;
+            this.parent = parent;
+            this.label = label;
+        }
+    }
+
+    // inputs of the formulas, indexes in the values of a group
+    static final int CYCLES = 0;
+    static final int UOPS_NOT_DELIVERED = 1;
+    static final int UOPS_ISSUED = 2;
+    static final int RETIRE_SLOTS = 3;
+    static final int RECOVERY_CYCLES = 4;
+    static final int FRONTEND_LATENCY_CYCLES = 5;
+    static final int BRANCH_MISPREDICTS = 6;
+    static final int MACHINE_CLEARS = 7;
+    static final int MS_UOPS = 8;
+    static final int STALLS_MEM = 9;
+    static final int BOUND_ON_STORES = 10;
+    static final int EXE_BOUND_0_PORTS = 11;
+    static final int PORTS_UTIL_1 = 12;
+    static final int INPUT_COUNT = 13;
+
+    // groups, one per formula. At most 4 general purpose counters + cycles on the fixed counter
+    static final int LEVEL1_GROUP = 0;
+    static final int FRONTEND_GROUP = 1;
+    static final int BAD_SPECULATION_GROUP = 2;
+    static final int RETIRING_GROUP = 3;
+    static final int BACKEND_GROUP = 4;
+    private static final int[][] GROUPS = {
+            {CYCLES, UOPS_NOT_DELIVERED, UOPS_ISSUED, RETIRE_SLOTS, RECOVERY_CYCLES},
+            {CYCLES, FRONTEND_LATENCY_CYCLES},
+            {BRANCH_MISPREDICTS, MACHINE_CLEARS},
+            {CYCLES, UOPS_ISSUED, RETIRE_SLOTS, MS_UOPS},
+            {CYCLES, STALLS_MEM, BOUND_ON_STORES, EXE_BOUND_0_PORTS, PORTS_UTIL_1}
+    };
+
+    enum Arch {
+        // Sandy Bridge, Ivy Bridge, Haswell, Broadwell: backend breakdown needs more events than a group can hold
+        CORE("r0100030d", // INT_MISC.RECOVERY_CYCLES (cmask=1)
+                "r0120030d", // INT_MISC.RECOVERY_CYCLES_ANY (cmask=1, AnyThread)
+                null, null, null, null),
+        SKYLAKE("r010d", // INT_MISC.RECOVERY_CYCLES
+                "r20010d", // INT_MISC.RECOVERY_CYCLES_ANY (AnyThread)
+                "r140014a3", // CYCLE_ACTIVITY.STALLS_MEM_ANY (cmask=20)
+                "r40a6", // EXE_ACTIVITY.BOUND_ON_STORES
+                "r01a6", // EXE_ACTIVITY.EXE_BOUND_0_PORTS
+                "r02a6"); // EXE_ACTIVITY.1_PORTS_UTIL
+
+        // event name of each input
+        final String[] events = new String[INPUT_COUNT];
+        // event name of each input when SMT is on: counted for both threads of the core
+        final String[] smtEvents;
+
+        Arch(String recoveryCycles, String recoveryCyclesAny, String stallsMem, String boundOnStores, String exeBound0Ports, String portsUtil1) {
+            events[CYCLES] = "cycles";
+            events[UOPS_NOT_DELIVERED] = "r019c"; // IDQ_UOPS_NOT_DELIVERED.CORE
+            events[UOPS_ISSUED] = "r010e"; // UOPS_ISSUED.ANY
+            events[RETIRE_SLOTS] = "r02c2"; // UOPS_RETIRED.RETIRE_SLOTS
+            events[RECOVERY_CYCLES] = recoveryCycles;
+            events[FRONTEND_LATENCY_CYCLES] = "r0400019c"; // IDQ_UOPS_NOT_DELIVERED.CYCLES_0_UOPS_DELIV.CORE (cmask=4)
+            events[BRANCH_MISPREDICTS] = "r00c5"; // BR_MISP_RETIRED.ALL_BRANCHES
+            events[MACHINE_CLEARS] = "r010401c3"; // MACHINE_CLEARS.COUNT (cmask=1, edge)
+            events[MS_UOPS] = "r3079"; // IDQ.MS_UOPS
+            events[STALLS_MEM] = stallsMem;
+            events[BOUND_ON_STORES] = boundOnStores;
+            events[EXE_BOUND_0_PORTS] = exeBound0Ports;
+            events[PORTS_UTIL_1] = portsUtil1;
+            smtEvents = events.clone();
+            smtEvents[CYCLES] = CORE_CYCLES;
+            smtEvents[RECOVERY_CYCLES] = recoveryCyclesAny;
+        }
+
+        boolean hasBackendBreakdown() {
+            return events[STALLS_MEM] != null;
+        }
+    }
+
+    private final Arch arch;
+    private final boolean smtOn;
+    private final int level;
+    private final int groupCount;
+    private final List<Metric> metrics = new ArrayList<>();
+    // one array of groups per open (e.g. per cpu)
+    private final List<PerfGroupEvent[]> groupSets = new ArrayList<>();
+    private final List<CounterSnapshot[]> snapshotSets = new ArrayList<>();
+    private final PerfEventSet eventSet = new PerfEventSet();
+    // [group][input], scaled values summed over group sets
+    private final double[][] inputs;
+    private final double[] values = new double[Metric.values().length];
+
+    /**
+     * @param level 1 or 2
+     * @throws UnsupportedOperationException if the cpu model is not supported
+     */
+    public Topdown(int level) {
+        this(getArch(PMUEvents.getPMUEventMap()), level, "1".equals(CpuTopology.readLine(MetricSet.SMT_ACTIVE)));
+    }
+
+    Topdown(Arch arch, int level) {
+        this(arch, level, false);
+    }
+
+    Topdown(Arch arch, int level, boolean smtOn) {
+        if (level < 1 || level > 2) {
+            throw new IllegalArgumentException("Topdown level should be 1 or 2: " + level);
+        }
+        this.arch = arch;
+        this.smtOn = smtOn;
+        this.level = level;
+        if (level == 1) {
+            groupCount = FRONTEND_GROUP;
+        } else {
+            groupCount = arch.hasBackendBreakdown() ? GROUPS.length : BACKEND_GROUP;
+        }
+        for (Metric metric : Metric.values()) {
+            if (metric.level > level) {
+                continue;
+            }
+            if ((metric == Metric.MEMORY_BOUND || metric == Metric.CORE_BOUND) && !arch.hasBackendBreakdown()) {
+                continue;
+            }
+            metrics.add(metric);
+        }
+        inputs = new double[groupCount][INPUT_COUNT];
+        Arrays.fill(values, Double.NaN);
+    }
+
+    static Arch getArch(PMUEventMap eventMap) {
+        String name = eventMap != null ? eventMap.getClass().getSimpleName() : "unknown cpu model";
+        switch (name) {
+            case "Sandybridge":
+            case "Jaketown":
+            case "Ivybridge":
+            case "Ivytown":
+            case "Haswell":
+            case "Haswellx":
+            case "Broadwell":
+            case "Broadwellde":
+            case "Broadwellx":
+                return Arch.CORE;
+            case "Skylake":
+            case "Skylakex":
+                return Arch.SKYLAKE;
+            default:
+                throw new UnsupportedOperationException("Topdown is not supported on " + name);
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true if slots are computed from core cycles (SMT on)
+     */
+    public boolean isSmtOn() {
+        return smtOn;
+    }
+
+    /**
+     * @return metrics computed on this cpu model up to the level, in tree order
+     */
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return comma-separated event names of each group, as passed to PerfGroupEvent
+     */
+    String[] getGroupEventNames() {
+        String[] names = new String[groupCount];
+        String[] events = smtOn ? arch.smtEvents : arch.events;
+        for (int g = 0; g < groupCount; g++) {
+            StringBuilder sb = new StringBuilder();
+            for (int input : GROUPS[g]) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(events[input]);
+            }
+            names[g] = sb.toString();
+        }
+        return names;
+    }
+
+    /**
+     * Opens the groups on the calling process/thread and on any cpu/core
+     */
+    public void open() {
+        open(0, -1);
+    }
+
+    /**
+     * Opens the groups. Can be called once per cpu for system-wide analysis, values are summed on read
+     * @param pid pid of the process to analyze, -1 for all processes
+     * @param cpu specific cpu, -1 for all cpus
+     */
+    public void open(int pid, int cpu) {
+        open(pid, cpu, null);
+    }
+
+    /**
+     * Opens the groups counting only the tasks of a cgroup. Can be called once per cpu
+     */
+    public void open(PerfCgroup cgroup, int cpu) {
+        open(-1, cpu, cgroup);
+    }
+
+    private void open(int pid, int cpu, PerfCgroup cgroup) {
+        String[] names = getGroupEventNames();
+        PerfGroupEvent[] groups = new PerfGroupEvent[groupCount];
+        CounterSnapshot[] snapshots = new CounterSnapshot[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            groups[g] = new PerfGroupEvent(names[g]);
+            try {
+                if (cgroup != null) {
+                    groups[g].open(cgroup, cpu);
+                } else {
+                    groups[g].open(pid, cpu);
+                }
+            } catch (UnsupportedOperationException e) {
+                for (int i = 0; i < g; i++) {
+                    groups[i].close();
+                }
+                throw e;
+            }
+            snapshots[g] = new CounterSnapshot(groups[g].size());
+        }
+        for (PerfGroupEvent group : groups) {
+            eventSet.add(group);
+        }
+        groupSets.add(groups);
+        snapshotSets.add(snapshots);
+    }
+
+    public void enable() {
+        eventSet.enable();
+    }
+
+    public void reset() {
+        eventSet.reset();
+    }
+
+    public void disable() {
+        eventSet.disable();
+    }
+
+    public void close() {
+        for (PerfGroupEvent[] groups : groupSets) {
+            for (PerfGroupEvent group : groups) {
+                eventSet.remove(group);
+                group.close();
+            }
+        }
+        groupSets.clear();
+        snapshotSets.clear();
+    }
+
+    /**
+     * Starts analysis on the calling process/thread performing open/reset/enable operations
+     */
+    public void start() {
+        open();
+        reset();
+        enable();
+    }
+
+    /**
+     * Stops analysis performing disable/close operations
+     */
+    public void shutdown() {
+        disable();
+        close();
+    }
+
+    /**
+     * Reads all groups and computes metrics since last reset, without allocation
+     * Values are scaled per group to compensate multiplexing
+     */
+    public void read() {
+        for (double[] groupInputs : inputs) {
+            Arrays.fill(groupInputs, 0);
+        }
+        for (int s = 0; s < groupSets.size(); s++) {
+            PerfGroupEvent[] groups = groupSets.get(s);
+            CounterSnapshot[] snapshots = snapshotSets.get(s);
+            for (int g = 0; g < groupCount; g++) {
+                groups[g].read(snapshots[g]);
+                int[] groupInputs = GROUPS[g];
+                for (int i = 0; i < groupInputs.length; i++) {
+                    inputs[g][groupInputs[i]] += snapshots[g].getScaledValue(i);
+                }
+            }
+        }
+        compute(inputs, smtOn, values);
+    }
+
+    /**
+     * @return fraction of pipeline slots [0, 1] as of last read, NaN if not computed (no cycles, unsupported)
+     */
+    public double get(Metric metric) {
+        return values[metric.ordinal()];
+    }
+
+    /**
+     * Computes metrics from the inputs of each group, level 2 when inputs has more than the level-1 group
+     * Formulas from TMA for 4-wide cores, level-2 nodes are fractions of their parent to stay consistent
+     * with level 1 whatever the multiplexing. Memory Bound ignores cycles with few ports utilized (2 ports)
+     * to fit the backend group in 4 general purpose counters
+     * @param inputs [group][input]
+     * @param values receives metrics indexed by Metric ordinal
+     */
+    static void compute(double[][] inputs, double[] values) {
+        compute(inputs, false, values);
+    }
+
+    /**
+     * @param smtOn inputs cycles & recovery cycles are counted for both threads of the core (AnyThread):
+     *              divided by the number of threads per core
+     */
+    static void compute(double[][] inputs, boolean smtOn, double[] values) {
+        Arrays.fill(values, Double.NaN);
+        int threads = smtOn ? THREADS_PER_CORE : 1;
+        double[] level1 = inputs[LEVEL1_GROUP];
+        double slots = SLOTS_PER_CYCLE * level1[CYCLES] / threads;
+        if (slots <= 0) {
+            return;
+        }
+        double frontend = clamp(level1[UOPS_NOT_DELIVERED] / slots);
+        double badSpeculation = clamp((level1[UOPS_ISSUED] - level1[RETIRE_SLOTS] + SLOTS_PER_CYCLE * level1[RECOVERY_CYCLES] / threads) / slots);
+        double retiring = clamp(level1[RETIRE_SLOTS] / slots);
+        double backend = clamp(1 - frontend - badSpeculation - retiring);
+        set(values, Metric.FRONTEND_BOUND, frontend);
+        set(values, Metric.BAD_SPECULATION, badSpeculation);
+        set(values, Metric.BACKEND_BOUND, backend);
+        set(values, Metric.RETIRING, retiring);
+        if (inputs.length > FRONTEND_GROUP) {
+            double[] fe = inputs[FRONTEND_GROUP];
+            // cycles with 0 uops delivered: all 4 slots lost
+            double latency = Math.min(frontend, ratio(fe[FRONTEND_LATENCY_CYCLES], fe[CYCLES] / threads));
+            set(values, Metric.FRONTEND_LATENCY, latency);
+            set(values, Metric.FRONTEND_BANDWIDTH, frontend - latency);
+        }
+        if (inputs.length > BAD_SPECULATION_GROUP) {
+            double[] bs = inputs[BAD_SPECULATION_GROUP];
+            double mispredicts = badSpeculation * ratio(bs[BRANCH_MISPREDICTS], bs[BRANCH_MISPREDICTS] + bs[MACHINE_CLEARS]);
+            set(values, Metric.BRANCH_MISPREDICTS, mispredicts);
+            set(values, Metric.MACHINE_CLEARS, badSpeculation - mispredicts);
+        }
+        if (inputs.length > RETIRING_GROUP) {
+            double[] ret = inputs[RETIRING_GROUP];
+            // uops from the microcode sequencer, retired share of them
+            double microcode = Math.min(retiring, ratio(ret[RETIRE_SLOTS], ret[UOPS_ISSUED]) * ratio(ret[MS_UOPS], SLOTS_PER_CYCLE * ret[CYCLES] / threads));
+            set(values, Metric.MICROCODE_SEQUENCER, microcode);
+            set(values, Metric.BASE, retiring - microcode);
+        }
+        if (inputs.length > BACKEND_GROUP) {
+            double[] be = inputs[BACKEND_GROUP];
+            double memoryCycles = be[STALLS_MEM] + be[BOUND_ON_STORES];
+            double memory = backend * ratio(memoryCycles, memoryCycles + be[EXE_BOUND_0_PORTS] + be[PORTS_UTIL_1]);
+            set(values, Metric.MEMORY_BOUND, memory);
+            set(values, Metric.CORE_BOUND, backend - memory);
+        }
+    }
+
+    private static void set(double[] values, Metric metric, double value) {
+        values[metric.ordinal()] = value;
+    }
+
+    private static double ratio(double numerator, double denominator) {
+        return denominator > 0 ? numerator / denominator : 0;
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
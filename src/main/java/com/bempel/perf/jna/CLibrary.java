@@ -24,6 +24,20 @@ import com.sun.jna.ptr.PointerByReference;
 public interface CLibrary extends Library {
     CLibrary INSTANCE = (CLibrary) Native.loadLibrary("c", CLibrary.class);
 
+    // mmap protections & flags (from sys/mman.h)
+    int PROT_READ = 0x1;
+    int PROT_WRITE = 0x2;
+    int PROT_EXEC = 0x4;
+    int MAP_SHARED = 0x01;
+    int MAP_PRIVATE = 0x02;
+    int MAP_ANONYMOUS = 0x20;
+    long MAP_FAILED = -1;
+
+    // open flags (from fcntl.h, x86_64)
+    int O_RDONLY = 0;
+    int O_DIRECTORY = 0200000;
+    int O_CLOEXEC = 02000000;
+
     int syscall(int number, Object... args);
 
     int ioctl(int fd, long request, Object... args);
@@ -33,6 +47,12 @@ public interface CLibrary extends Library {
 
     int close(int fd);
 
+    int open(String path, int flags);
+
+    Pointer mmap(Pointer addr, long length, int prot, int flags, int fd, long offset);
+
+    int munmap(Pointer addr, long length);
+
     int perror(String s);
 
     String strerror(int errnum);
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.FunctionMapper;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+import java.util.Collections;
+
+/**
+ * Direct-mapped (Native.register) binding of the libc functions used on the hot path
+ * Fixed arity & primitive only signatures: no reflection, boxing or varargs array per call
+ * Java method names are mapped to libc symbols by prefix (perf_event_open -> syscall,
+ * ioctl_* -> ioctl, read_* -> read)
+ */
+public final class CLibraryDirect {
+    private static final FunctionMapper FUNCTION_MAPPER = (library, method) -> {
+        String name = method.getName();
+        if (name.equals("perf_event_open")) {
+            return "syscall";
+        }
+        if (name.startsWith("ioctl_")) {
+            return "ioctl";
+        }
+        if (name.startsWith("read_")) {
+            return "read";
+        }
+        return name;
+    };
+
+    static {
+        NativeLibrary lib = NativeLibrary.getInstance("c", Collections.singletonMap(Library.OPTION_FUNCTION_MAPPER, FUNCTION_MAPPER));
+        Native.register(CLibraryDirect.class, lib);
+    }
+
+    private CLibraryDirect() {
+    }
+
+    // syscall(PERF_EVENT_OPEN, attr, pid, cpu, group_fd, flags)
+    public static native long perf_event_open(long number, Pointer attr, long pid, long cpu, long groupFd, long flags);
+
+    public static native int ioctl_value(int fd, long request, long arg);
+
+    public static native int ioctl_pointer(int fd, long request, Pointer arg);
+
+    public static native long read_into_pointer(int fd, Pointer buffer, long count);
+
+    public static native long read_into_array(int fd, long[] buffer, long count);
+
+    public static native int close(int fd);
+
+    public static native int open(String path, int flags);
+
+    public static native long mmap(long address, long length, int prot, int flags, int fd, long offset);
+
+    public static native int munmap(long address, long length);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.LongByReference;
+
+/**
+ * Backend based on interface-proxy JNA library (CLibrary)
+ */
+public class JnaBackend implements NativeBackend {
+    @Override
+    public int perfEventOpen(PerfEventAttr attr, int pid, int cpu, int groupFd, long flags) {
+        return CLibrary.INSTANCE.syscall(PerfEventConsts.PERF_EVENT_OPEN, attr, pid, cpu, groupFd, (int) flags);
+    }
+
+    @Override
+    public int ioctl(int fd, long request, long arg) {
+        return CLibrary.INSTANCE.ioctl(fd, request, (int) arg);
+    }
+
+    @Override
+    public long ioctlId(int fd) {
+        LongByReference id = new LongByReference();
+        int ret = CLibrary.INSTANCE.ioctl(fd, PerfEventConsts.PERF_EVENT_IOC_ID, id);
+        if (ret < 0) {
+            return -1;
+        }
+        return id.getValue();
+    }
+
+    @Override
+    public int read(int fd, long[] values, int size) {
+        return CLibrary.INSTANCE.read(fd, values, size);
+    }
+
+    @Override
+    public int close(int fd) {
+        return CLibrary.INSTANCE.close(fd);
+    }
+
+    @Override
+    public int open(String path, int flags) {
+        return CLibrary.INSTANCE.open(path, flags);
+    }
+
+    @Override
+    public long mmap(long length, int prot, int flags, int fd, long offset) {
+        Pointer ptr = CLibrary.INSTANCE.mmap(null, length, prot, flags, fd, offset);
+        return ptr == null ? CLibrary.MAP_FAILED : Pointer.nativeValue(ptr);
+    }
+
+    @Override
+    public int munmap(long address, long length) {
+        return CLibrary.INSTANCE.munmap(new Pointer(address), length);
+    }
+
+    @Override
+    public int lastError() {
+        return Native.getLastError();
+    }
+
+    @Override
+    public String strerror(int errnum) {
+        return CLibrary.INSTANCE.strerror(errnum);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+
+/**
+ * Backend based on direct-mapped JNA binding (CLibraryDirect)
+ */
+public class JnaDirectBackend implements NativeBackend {
+    private final Memory attrMemory = new Memory(PerfEventAttrEncoder.SIZE);
+    private final Memory idMemory = new Memory(Long.BYTES);
+
+    @Override
+    public synchronized int perfEventOpen(PerfEventAttr attr, int pid, int cpu, int groupFd, long flags) {
+        attrMemory.clear();
+        PerfEventAttrEncoder.encode(attr, attrMemory);
+        return (int) CLibraryDirect.perf_event_open(PerfEventConsts.PERF_EVENT_OPEN, attrMemory, pid, cpu, groupFd, flags);
+    }
+
+    @Override
+    public int ioctl(int fd, long request, long arg) {
+        return CLibraryDirect.ioctl_value(fd, request, arg);
+    }
+
+    @Override
+    public synchronized long ioctlId(int fd) {
+        int ret = CLibraryDirect.ioctl_pointer(fd, PerfEventConsts.PERF_EVENT_IOC_ID, idMemory);
+        if (ret < 0) {
+            return -1;
+        }
+        return idMemory.getLong(0);
+    }
+
+    @Override
+    public int read(int fd, long[] values, int size) {
+        return (int) CLibraryDirect.read_into_array(fd, values, size);
+    }
+
+    @Override
+    public int close(int fd) {
+        return CLibraryDirect.close(fd);
+    }
+
+    @Override
+    public int open(String path, int flags) {
+        return CLibraryDirect.open(path, flags);
+    }
+
+    @Override
+    public long mmap(long length, int prot, int flags, int fd, long offset) {
+        return CLibraryDirect.mmap(0, length, prot, flags, fd, offset);
+    }
+
+    @Override
+    public int munmap(long address, long length) {
+        return CLibraryDirect.munmap(address, length);
+    }
+
+    @Override
+    public int lastError() {
+        return Native.getLastError();
+    }
+
+    @Override
+    public String strerror(int errnum) {
+        return CLibrary.INSTANCE.strerror(errnum);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+/**
+ * Native calls required to open, control and read perf events
+ * Return values & errors follow libc conventions: -1 on failure, errno available through lastError()
+ */
+public interface NativeBackend {
+    int perfEventOpen(PerfEventAttr attr, int pid, int cpu, int groupFd, long flags);
+
+    int ioctl(int fd, long request, long arg);
+
+    // PERF_EVENT_IOC_ID: returns the event id, -1 on failure
+    long ioctlId(int fd);
+
+    // reads size bytes into values (struct read_format), returns number of bytes read
+    int read(int fd, long[] values, int size);
+
+    int close(int fd);
+
+    // open(2) without mode, returns the fd, -1 on failure
+    int open(String path, int flags);
+
+    // returns address of the mapping, MAP_FAILED (-1) on failure
+    long mmap(long length, int prot, int flags, int fd, long offset);
+
+    int munmap(long address, long length);
+
+    int lastError();
+
+    String strerror(int errnum);
+}
@@ -54,7 +54,10 @@ public class PerfEventAttr extends Structure implements Structure.ByReference {
     public static final long CONTEXT_SWITCH = 1 << 26;
     public static final long RESERVED_1 = 1 << 27;
 
-    private static final int PERF_ATTR_SIZE_VER5 = 112;
+    public static final int PRECISE_IP_SHIFT = 15;
+    public static final long PRECISE_IP_MASK = PRECISE_IP1 | PRECISE_IP2;
+
+    static final int PERF_ATTR_SIZE_VER5 = 112;
 
     public int type;
     public int size = PERF_ATTR_SIZE_VER5;
@@ -75,6 +78,42 @@ public class PerfEventAttr extends Structure implements Structure.ByReference {
     public int aux_watermark;
     public int reserved_2;
 
+    /**
+     * config1 is an union with bp_addr (e.g. ldlat threshold of load latency events, offcore response msr value)
+     */
+    public long getConfig1() {
+        return bp_addr;
+    }
+
+    public void setConfig1(long config1) {
+        bp_addr = config1;
+    }
+
+    /**
+     * config2 is an union with bp_len
+     */
+    public long getConfig2() {
+        return bp_len;
+    }
+
+    public void setConfig2(long config2) {
+        bp_len = config2;
+    }
+
+    /**
+     * @return precise_ip: 0 arbitrary skid, 1 constant skid, 2 requested 0 skid, 3 must have 0 skid
+     */
+    public int getPreciseIp() {
+        return (int) ((flags & PRECISE_IP_MASK) >>> PRECISE_IP_SHIFT);
+    }
+
+    public void setPreciseIp(int preciseIp) {
+        if (preciseIp < 0 || preciseIp > 3) {
+            throw new IllegalArgumentException("Invalid precise_ip: " + preciseIp);
+        }
+        flags = (flags & ~PRECISE_IP_MASK) | ((long) preciseIp << PRECISE_IP_SHIFT);
+    }
+
     protected List<String> getFieldOrder() {
         return Arrays.asList(
                 "type",
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Encodes PerfEventAttr fields straight into native memory (struct perf_event_attr layout, VER5)
+ * without going through Structure reflection
+ */
+public final class PerfEventAttrEncoder {
+    public static final int SIZE = PerfEventAttr.PERF_ATTR_SIZE_VER5;
+
+    private PerfEventAttrEncoder() {
+    }
+
+    public static void encode(PerfEventAttr attr, Pointer dst) {
+        dst.setInt(0, attr.type);
+        dst.setInt(4, attr.size);
+        dst.setLong(8, attr.config);
+        dst.setLong(16, attr.sample_period);
+        dst.setLong(24, attr.sample_type);
+        dst.setLong(32, attr.read_format);
+        dst.setLong(40, attr.flags);
+        dst.setInt(48, attr.wakeup_events);
+        dst.setInt(52, attr.bp_type);
+        dst.setLong(56, attr.bp_addr);
+        dst.setLong(64, attr.bp_len);
+        dst.setLong(72, attr.branch_sample_type);
+        dst.setLong(80, attr.sample_regs_user);
+        dst.setInt(88, attr.sample_stack_user);
+        dst.setInt(92, attr.clockid);
+        dst.setLong(96, attr.sample_regs_intr);
+        dst.setInt(104, attr.aux_watermark);
+        dst.setInt(108, attr.reserved_2);
+    }
+}
@@ -249,6 +249,12 @@ public class PerfEventConsts {
     // perf_event_open syscall for x86_64
     public static final int PERF_EVENT_OPEN = 298;
 
+    // perf_event_open flags
+    public static final int PERF_FLAG_FD_NO_GROUP = 1 << 0;
+    public static final int PERF_FLAG_FD_OUTPUT = 1 << 1;
+    public static final int PERF_FLAG_PID_CGROUP = 1 << 2;
+    public static final int PERF_FLAG_FD_CLOEXEC = 1 << 3;
+
     // Ioctls that can be done on a perf event fd (x86_64 specific)
     public static final int PERF_EVENT_IOC_ENABLE = 0x2400;
     public static final int PERF_EVENT_IOC_DISABLE = 0x2401;
@@ -263,6 +269,9 @@ public class PerfEventConsts {
     public static final int PERF_EVENT_IOC_QUERY_BPF = 0x240A;
     public static final int PERF_EVENT_IOC_MODIFY_ATTRIBUTES = 0x240B;
 
+    // ioctl argument for ENABLE, DISABLE, RESET & REFRESH: applies to the whole group when performed on the leader
+    public static final int PERF_IOC_FLAG_GROUP = 1 << 0;
+
     // perf_event_read_format
     // The format of the data returned by read() on a perf event fd, as specified by attr.read_format
     public static final int PERF_FORMAT_TOTAL_TIME_ENABLED = 1 << 0;
@@ -270,6 +279,62 @@ public class PerfEventConsts {
     public static final int PERF_FORMAT_ID = 1 << 2;
     public static final int PERF_FORMAT_GROUP = 1 << 3;
 
+    // perf_event_sample_format
+    // Bits that can be set in attr.sample_type to request information in the overflow packets
+    public static final long PERF_SAMPLE_IP = 1L << 0;
+    public static final long PERF_SAMPLE_TID = 1L << 1;
+    public static final long PERF_SAMPLE_TIME = 1L << 2;
+    public static final long PERF_SAMPLE_ADDR = 1L << 3;
+    public static final long PERF_SAMPLE_READ = 1L << 4;
+    public static final long PERF_SAMPLE_CALLCHAIN = 1L << 5;
+    public static final long PERF_SAMPLE_ID = 1L << 6;
+    public static final long PERF_SAMPLE_CPU = 1L << 7;
+    public static final long PERF_SAMPLE_PERIOD = 1L << 8;
+    public static final long PERF_SAMPLE_STREAM_ID = 1L << 9;
+    public static final long PERF_SAMPLE_RAW = 1L << 10;
+    public static final long PERF_SAMPLE_BRANCH_STACK = 1L << 11;
+    public static final long PERF_SAMPLE_REGS_USER = 1L << 12;
+    public static final long PERF_SAMPLE_STACK_USER = 1L << 13;
+    public static final long PERF_SAMPLE_WEIGHT = 1L << 14;
+    public static final long PERF_SAMPLE_DATA_SRC = 1L << 15;
+    public static final long PERF_SAMPLE_IDENTIFIER = 1L << 16;
+    public static final long PERF_SAMPLE_TRANSACTION = 1L << 17;
+    public static final long PERF_SAMPLE_REGS_INTR = 1L << 18;
+    public static final long PERF_SAMPLE_PHYS_ADDR = 1L << 19;
+
+    // perf_branch_sample_type
+    // Bits that can be set in attr.branch_sample_type to select the branches recorded with PERF_SAMPLE_BRANCH_STACK
+    public static final long PERF_SAMPLE_BRANCH_USER = 1L << 0;
+    public static final long PERF_SAMPLE_BRANCH_KERNEL = 1L << 1;
+    public static final long PERF_SAMPLE_BRANCH_HV = 1L << 2;
+    public static final long PERF_SAMPLE_BRANCH_ANY = 1L << 3;
+    public static final long PERF_SAMPLE_BRANCH_ANY_CALL = 1L << 4;
+    public static final long PERF_SAMPLE_BRANCH_ANY_RETURN = 1L << 5;
+    public static final long PERF_SAMPLE_BRANCH_IND_CALL = 1L << 6;
+    public static final long PERF_SAMPLE_BRANCH_ABORT_TX = 1L << 7;
+    public static final long PERF_SAMPLE_BRANCH_IN_TX = 1L << 8;
+    public static final long PERF_SAMPLE_BRANCH_NO_TX = 1L << 9;
+    public static final long PERF_SAMPLE_BRANCH_COND = 1L << 10;
+    public static final long PERF_SAMPLE_BRANCH_CALL_STACK = 1L << 11;
+    public static final long PERF_SAMPLE_BRANCH_IND_JUMP = 1L << 12;
+    public static final long PERF_SAMPLE_BRANCH_CALL = 1L << 13;
+    public static final long PERF_SAMPLE_BRANCH_NO_FLAGS = 1L << 14;
+    public static final long PERF_SAMPLE_BRANCH_NO_CYCLES = 1L << 15;
+    public static final long PERF_SAMPLE_BRANCH_TYPE_SAVE = 1L << 16;
+    public static final long PERF_SAMPLE_BRANCH_HW_INDEX = 1L << 17;
+
+    // perf_event_type: record types in the ring buffer
+    public static final int PERF_RECORD_MMAP = 1;
+    public static final int PERF_RECORD_LOST = 2;
+    public static final int PERF_RECORD_COMM = 3;
+    public static final int PERF_RECORD_EXIT = 4;
+    public static final int PERF_RECORD_THROTTLE = 5;
+    public static final int PERF_RECORD_UNTHROTTLE = 6;
+    public static final int PERF_RECORD_FORK = 7;
+    public static final int PERF_RECORD_READ = 8;
+    public static final int PERF_RECORD_SAMPLE = 9;
+    public static final int PERF_RECORD_MMAP2 = 10;
+
     public interface PerfEventInfo {
         String getName();
         int getValue();
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Mapping of struct perf_event_mmap_page (from linux/perf_event.h)
+ * First page of the memory mapped from a perf event fd. The kernel updates it
+ * each time the event is scheduled, allowing to read the counter from user space
+ * without performing a read syscall
+ */
+public class PerfEventMmapPage {
+    public static final int PAGE_SIZE = 4096;
+
+    // field offsets in struct perf_event_mmap_page
+    static final int VERSION_OFFSET = 0;
+    static final int LOCK_OFFSET = 8;
+    static final int INDEX_OFFSET = 12;
+    static final int OFFSET_OFFSET = 16;
+    static final int TIME_ENABLED_OFFSET = 24;
+    static final int TIME_RUNNING_OFFSET = 32;
+    static final int CAPABILITIES_OFFSET = 40;
+    static final int PMC_WIDTH_OFFSET = 48;
+    static final int TIME_SHIFT_OFFSET = 50;
+    static final int TIME_MULT_OFFSET = 52;
+    static final int TIME_OFFSET_OFFSET = 56;
+
+    // capabilities bits
+    public static final long CAP_USER_RDPMC = 1 << 2;
+    public static final long CAP_USER_TIME = 1 << 3;
+
+    // indexes in the array filled by read
+    public static final int COUNT = 0;
+    public static final int TIME_ENABLED = 1;
+    public static final int TIME_RUNNING = 2;
+
+    private final NativeBackend backend;
+    private final long address;
+    private final Pointer page;
+    private final long length;
+
+    PerfEventMmapPage(NativeBackend backend, long address, long length) {
+        this.backend = backend;
+        this.address = address;
+        this.page = new Pointer(address);
+        this.length = length;
+    }
+
+    /**
+     * Maps the first page of a perf event fd
+     * @param backend native backend performing mmap/munmap
+     * @param fd perf event file descriptor
+     */
+    public static PerfEventMmapPage map(NativeBackend backend, int fd) {
+        return new PerfEventMmapPage(backend, mmap(backend, fd, PAGE_SIZE), PAGE_SIZE);
+    }
+
+    static long mmap(NativeBackend backend, int fd, long length) {
+        long address = backend.mmap(length, CLibrary.PROT_READ | CLibrary.PROT_WRITE, CLibrary.MAP_SHARED, fd, 0);
+        if (address == CLibrary.MAP_FAILED || address == 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform mmap on fd[%d]: %s", fd, backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+        return address;
+    }
+
+    /**
+     * Unmaps the page. Instance cannot be used after that
+     */
+    public void unmap() {
+        int ret = backend.munmap(address, length);
+        if (ret < 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform munmap: %s", backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+    }
+
+    public int getVersion() {
+        return page.getInt(VERSION_OFFSET);
+    }
+
+    public int getLock() {
+        return page.getInt(LOCK_OFFSET);
+    }
+
+    /**
+     * @return hardware counter index + 1 to use with rdpmc, 0 if the counter is not currently available
+     */
+    public int getIndex() {
+        return page.getInt(INDEX_OFFSET);
+    }
+
+    public long getOffset() {
+        return page.getLong(OFFSET_OFFSET);
+    }
+
+    public long getTimeEnabled() {
+        return page.getLong(TIME_ENABLED_OFFSET);
+    }
+
+    public long getTimeRunning() {
+        return page.getLong(TIME_RUNNING_OFFSET);
+    }
+
+    public long getCapabilities() {
+        return page.getLong(CAPABILITIES_OFFSET);
+    }
+
+    public boolean capUserRdpmc() {
+        return (getCapabilities() & CAP_USER_RDPMC) != 0;
+    }
+
+    public boolean capUserTime() {
+        return (getCapabilities() & CAP_USER_TIME) != 0;
+    }
+
+    /**
+     * @return width in bits of the hardware counter
+     */
+    public int getPmcWidth() {
+        return page.getShort(PMC_WIDTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getTimeShift() {
+        return page.getShort(TIME_SHIFT_OFFSET) & 0xFFFF;
+    }
+
+    public long getTimeMult() {
+        return page.getInt(TIME_MULT_OFFSET) & 0xFFFF_FFFFL;
+    }
+
+    public long getTimeOffset() {
+        return page.getLong(TIME_OFFSET_OFFSET);
+    }
+
+    Pointer getPointer() {
+        return page;
+    }
+
+    /**
+     * Reads counter value from user space, following the seqlock protocol
+     * described in linux/perf_event.h. Only valid for an event measuring the calling thread
+     * time_enabled & time_running in the page are only updated when the event is scheduled in/out:
+     * with cap_user_time, time elapsed since is extrapolated from rdtsc (time_offset, time_mult, time_shift)
+     * @param values array receiving count, time enabled & time running (see COUNT, TIME_ENABLED, TIME_RUNNING)
+     * @return false if the counter cannot be read from user space (index == 0, rdpmc or rdtsc not allowed)
+     * and requires a read syscall
+     */
+    public boolean read(long[] values) {
+        int seq;
+        long count;
+        long enabled;
+        long running;
+        long delta;
+        do {
+            // each access is a JNI call, acting as compiler barrier.
+            // x86 does not reorder loads with other loads
+            seq = getLock();
+            enabled = getTimeEnabled();
+            running = getTimeRunning();
+            int index = getIndex();
+            if (index == 0 || !capUserRdpmc() || !capUserTime() || !Rdpmc.isAvailable()) {
+                return false;
+            }
+            delta = timeDelta(Rdpmc.rdtsc(), getTimeOffset(), getTimeMult(), getTimeShift());
+            count = getOffset();
+            count += signExtend(Rdpmc.rdpmc(index - 1), getPmcWidth());
+        } while (getLock() != seq);
+        values[COUNT] = count;
+        // index != 0: event is currently running, both times advanced since the last update
+        values[TIME_ENABLED] = enabled + delta;
+        values[TIME_RUNNING] = running + delta;
+        return true;
+    }
+
+    /**
+     * Converts TSC cycles to time elapsed since the last update of the page (linux/perf_event.h):
+     * time_offset + (cyc >> time_shift) * time_mult + ((cyc & mask) * time_mult) >> time_shift
+     * Split in 2 parts to avoid overflowing 64 bits
+     */
+    static long timeDelta(long cycles, long timeOffset, long timeMult, int timeShift) {
+        long quot = cycles >>> timeShift;
+        long rem = cycles & ((1L << timeShift) - 1);
+        return timeOffset + quot * timeMult + ((rem * timeMult) >>> timeShift);
+    }
+
+    /**
+     * Hardware counters are pmc_width bits wide (usually 48), value read from rdpmc
+     * needs to be sign-extended to be added to the 64 bits offset maintained by the kernel
+     */
+    static long signExtend(long pmc, int width) {
+        if (width <= 0 || width >= 64) {
+            return pmc;
+        }
+        int shift = 64 - width;
+        return (pmc << shift) >> shift;
+    }
+}
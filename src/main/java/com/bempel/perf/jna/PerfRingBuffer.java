@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Ring buffer mmap'ed from a sampling perf event fd
+ * First page is the perf_event_mmap_page (holding data_head/data_tail),
+ * followed by 2^n data pages where the kernel writes records.
+ * Positions are the logical, ever increasing, offsets used by data_head/data_tail.
+ * Fields are read directly from the mapped memory, records being 8 bytes aligned
+ * a 64 bits field never straddles the end of the ring
+ */
+public class PerfRingBuffer {
+    // offsets in struct perf_event_mmap_page
+    static final int DATA_HEAD_OFFSET = 1024;
+    static final int DATA_TAIL_OFFSET = 1032;
+
+    private final NativeBackend backend;
+    private final long address;
+    private final Pointer control;
+    private final Pointer data;
+    private final long dataSize;
+    private final long mask;
+
+    /**
+     * @param backend backend used to unmap, may be null for memory not owned
+     * @param address address of the mapping (control page followed by data pages)
+     * @param dataPages number of data pages, power of 2
+     */
+    public PerfRingBuffer(NativeBackend backend, long address, int dataPages) {
+        if (Integer.bitCount(dataPages) != 1) {
+            throw new IllegalArgumentException("Number of data pages should be a power of 2: " + dataPages);
+        }
+        this.backend = backend;
+        this.address = address;
+        this.control = new Pointer(address);
+        this.data = new Pointer(address + PerfEventMmapPage.PAGE_SIZE);
+        this.dataSize = (long) dataPages * PerfEventMmapPage.PAGE_SIZE;
+        this.mask = dataSize - 1;
+    }
+
+    /**
+     * Maps control page + data pages of a perf event fd
+     * @param dataPages number of data pages, power of 2
+     */
+    public static PerfRingBuffer map(NativeBackend backend, int fd, int dataPages) {
+        long length = (1L + dataPages) * PerfEventMmapPage.PAGE_SIZE;
+        return new PerfRingBuffer(backend, PerfEventMmapPage.mmap(backend, fd, length), dataPages);
+    }
+
+    public void unmap() {
+        int ret = backend.munmap(address, (1L + dataSize / PerfEventMmapPage.PAGE_SIZE) * PerfEventMmapPage.PAGE_SIZE);
+        if (ret < 0) {
+            int errno = backend.lastError();
+            String msg = String.format("Cannot perform munmap: %s", backend.strerror(errno));
+            throw new UnsupportedOperationException(msg);
+        }
+    }
+
+    /**
+     * @return position up to which the kernel has written records
+     * Read through JNI (opaque to the compiler), x86 does not reorder it with the subsequent record loads
+     */
+    public long getDataHead() {
+        return control.getLong(DATA_HEAD_OFFSET);
+    }
+
+    public long getDataTail() {
+        return control.getLong(DATA_TAIL_OFFSET);
+    }
+
+    /**
+     * Publishes position up to which records have been consumed, kernel can overwrite them
+     * Must be performed after all record loads: x86 does not reorder stores with prior loads
+     */
+    public void setDataTail(long tail) {
+        control.setLong(DATA_TAIL_OFFSET, tail);
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    public long getLong(long position) {
+        return data.getLong(position & mask);
+    }
+
+    public int getInt(long position) {
+        return data.getInt(position & mask);
+    }
+
+    public short getShort(long position) {
+        return data.getShort(position & mask);
+    }
+
+    public byte getByte(long position) {
+        return data.getByte(position & mask);
+    }
+
+    Pointer getControlPointer() {
+        return control;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+/**
+ * Executes rdpmc & rdtsc instructions (x86_64 only)
+ * As there is no way to emit these instructions from Java, tiny machine code stubs are
+ * packaged into a minimal ELF shared object written at class init, loaded with dlopen
+ * and direct-mapped (Native.register): no reflection nor boxing per call
+ */
+public final class Rdpmc {
+    // long rdpmc(int counter)
+    private static final byte[] RDPMC_CODE = {
+            (byte) 0x89, (byte) 0xf9,                           // mov ecx, edi
+            (byte) 0x0f, (byte) 0x33,                           // rdpmc
+            (byte) 0x48, (byte) 0xc1, (byte) 0xe2, (byte) 0x20, // shl rdx, 32
+            (byte) 0x48, (byte) 0x09, (byte) 0xd0,              // or rax, rdx
+            (byte) 0xc3                                         // ret
+    };
+    // long rdtsc()
+    private static final byte[] RDTSC_CODE = {
+            (byte) 0x0f, (byte) 0x31,                           // rdtsc
+            (byte) 0x48, (byte) 0xc1, (byte) 0xe2, (byte) 0x20, // shl rdx, 32
+            (byte) 0x48, (byte) 0x09, (byte) 0xd0,              // or rax, rdx
+            (byte) 0xc3                                         // ret
+    };
+    private static final String[] SYMBOLS = {"rdpmc", "rdtsc"};
+    private static final boolean AVAILABLE = init();
+
+    private Rdpmc() {
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Reads hardware performance counter. Only callable if isAvailable() and
+     * cap_user_rdpmc is set, otherwise the process gets a SIGSEGV
+     * @param counter counter index (index - 1 from perf_event_mmap_page)
+     */
+    public static native long rdpmc(int counter);
+
+    /**
+     * Reads time stamp counter. Only callable if isAvailable()
+     */
+    public static native long rdtsc();
+
+    private static boolean init() {
+        String arch = System.getProperty("os.arch");
+        if (!"amd64".equals(arch) && !"x86_64".equals(arch)) {
+            return false;
+        }
+        try {
+            File file = File.createTempFile("jperf-rdpmc", ".so");
+            try {
+                Files.write(file.toPath(), buildLibrary());
+                Native.register(Rdpmc.class, NativeLibrary.getInstance(file.getAbsolutePath()));
+            } finally {
+                // mapping is kept by the loader
+                file.delete();
+            }
+            return true;
+        } catch (IOException | UnsatisfiedLinkError ex) {
+            return false;
+        }
+    }
+
+    // ELF64 constants (from elf.h)
+    private static final int EHDR_SIZE = 64;
+    private static final int PHDR_SIZE = 56;
+    private static final int DYN_SIZE = 16;
+    private static final int SYM_SIZE = 24;
+    private static final int ET_DYN = 3;
+    private static final int EM_X86_64 = 62;
+    private static final int PT_LOAD = 1;
+    private static final int PT_DYNAMIC = 2;
+    private static final int PT_GNU_STACK = 0x6474e551;
+    private static final int PF_X = 1;
+    private static final int PF_W = 2;
+    private static final int PF_R = 4;
+    private static final int DT_NULL = 0;
+    private static final int DT_HASH = 4;
+    private static final int DT_STRTAB = 5;
+    private static final int DT_SYMTAB = 6;
+    private static final int DT_STRSZ = 10;
+    private static final int DT_SYMENT = 11;
+    private static final int STB_GLOBAL_STT_FUNC = 0x12;
+    private static final int PHDR_COUNT = 4;
+    private static final int DYN_COUNT = 6;
+
+    /**
+     * Builds a shared object exporting the stubs, without section headers:
+     * page 0 (RW, loader relocates .dynamic in place): headers, .dynamic, .dynsym, .hash, .dynstr
+     * page 1 (RX): code
+     */
+    static byte[] buildLibrary() {
+        int phdrOffset = EHDR_SIZE;
+        int dynOffset = phdrOffset + PHDR_COUNT * PHDR_SIZE;
+        int symOffset = dynOffset + DYN_COUNT * DYN_SIZE;
+        int symCount = SYMBOLS.length + 1;
+        int hashOffset = symOffset + symCount * SYM_SIZE;
+        int strOffset = hashOffset + (2 + 1 + symCount) * 4;
+        int[] nameOffsets = new int[SYMBOLS.length];
+        int strSize = 1;
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            nameOffsets[i] = strSize;
+            strSize += SYMBOLS[i].length() + 1;
+        }
+        int codeOffset = PerfEventMmapPage.PAGE_SIZE;
+        int[] codeOffsets = {codeOffset, codeOffset + RDPMC_CODE.length};
+        int size = codeOffset + RDPMC_CODE.length + RDTSC_CODE.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        // ELF header
+        buffer.put(new byte[]{0x7f, 'E', 'L', 'F', 2 /* 64 bits */, 1 /* little endian */, 1 /* version */});
+        buffer.position(16);
+        buffer.putShort((short) ET_DYN).putShort((short) EM_X86_64).putInt(1);
+        buffer.putLong(0).putLong(phdrOffset).putLong(0).putInt(0);
+        buffer.putShort((short) EHDR_SIZE).putShort((short) PHDR_SIZE).putShort((short) PHDR_COUNT);
+        buffer.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        // program headers
+        putPhdr(buffer, PT_LOAD, PF_R | PF_W, 0, strOffset + strSize, PerfEventMmapPage.PAGE_SIZE);
+        putPhdr(buffer, PT_LOAD, PF_R | PF_X, codeOffset, size - codeOffset, PerfEventMmapPage.PAGE_SIZE);
+        putPhdr(buffer, PT_DYNAMIC, PF_R | PF_W, dynOffset, DYN_COUNT * DYN_SIZE, 8);
+        // non executable stack
+        putPhdr(buffer, PT_GNU_STACK, PF_R | PF_W, 0, 0, 16);
+        // .dynamic
+        buffer.putLong(DT_HASH).putLong(hashOffset);
+        buffer.putLong(DT_STRTAB).putLong(strOffset);
+        buffer.putLong(DT_SYMTAB).putLong(symOffset);
+        buffer.putLong(DT_STRSZ).putLong(strSize);
+        buffer.putLong(DT_SYMENT).putLong(SYM_SIZE);
+        buffer.putLong(DT_NULL).putLong(0);
+        // .dynsym, first entry is the undefined symbol
+        buffer.position(buffer.position() + SYM_SIZE);
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            buffer.putInt(nameOffsets[i]).put((byte) STB_GLOBAL_STT_FUNC).put((byte) 0);
+            // any defined section index, value is relative to the load address
+            buffer.putShort((short) 1).putLong(codeOffsets[i]).putLong(i == 0 ? RDPMC_CODE.length : RDTSC_CODE.length);
+        }
+        // .hash: single bucket chaining all symbols
+        buffer.putInt(1).putInt(symCount).putInt(symCount - 1);
+        buffer.putInt(0);
+        for (int i = 1; i < symCount; i++) {
+            buffer.putInt(i - 1);
+        }
+        // .dynstr
+        buffer.put((byte) 0);
+        for (String symbol : SYMBOLS) {
+            for (int i = 0; i < symbol.length(); i++) {
+                buffer.put((byte) symbol.charAt(i));
+            }
+            buffer.put((byte) 0);
+        }
+        buffer.position(codeOffset);
+        buffer.put(RDPMC_CODE).put(RDTSC_CODE);
+        return buffer.array();
+    }
+
+    private static void putPhdr(ByteBuffer buffer, int type, int flags, long offset, long size, long align) {
+        buffer.putInt(type).putInt(flags);
+        buffer.putLong(offset).putLong(offset).putLong(offset);
+        buffer.putLong(size).putLong(size).putLong(align);
+    }
+}
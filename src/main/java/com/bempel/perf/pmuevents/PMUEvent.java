@@ -24,7 +24,13 @@ public class PMUEvent {
     public final String sampleAfterValue;
     public final String briefDescription;
     public final String counterHTOff;
+    // extra msr programmed with the event (load latency threshold, offcore response), null if none
+    public final String msrIndex;
+    public final String msrValue;
     public PMUEvent(String publicDescription, String eventCode, String counter, String umask, String eventName, String sampleAfterValue, String briefDescription, String counterHTOff) {
+        this(publicDescription, eventCode, counter, umask, eventName, sampleAfterValue, briefDescription, counterHTOff, null, null);
+    }
+    public PMUEvent(String publicDescription, String eventCode, String counter, String umask, String eventName, String sampleAfterValue, String briefDescription, String counterHTOff, String msrIndex, String msrValue) {
         this.publicDescription = publicDescription;
         this.eventCode = eventCode;
         this.counter = counter;
@@ -33,5 +39,7 @@ public class PMUEvent {
         this.sampleAfterValue = sampleAfterValue;
         this.briefDescription = briefDescription;
         this.counterHTOff = counterHTOff;
+        this.msrIndex = msrIndex;
+        this.msrValue = msrValue;
     }
 }
@@ -41,14 +41,15 @@ public class PMUEventsGenerator {
     private static List<CpuInfo> cpus = new ArrayList<>();
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             printHelp();
             return;
         }
         String srcDir = args[0];
         String destDir = args[1];
+        String resourceDir = args.length == 3 ? args[2] : null;
         processMapFile(srcDir, destDir);
-        cpus.forEach(cpuInfo -> processCpuModel(srcDir, destDir, cpuInfo));
+        cpus.forEach(cpuInfo -> processCpuModel(srcDir, destDir, resourceDir, cpuInfo));
     }
 
     private static void processMapFile(String srcDir, String destDir) throws Exception {
@@ -83,7 +84,7 @@ public class PMUEventsGenerator {
         cpus.add(new CpuInfo(csvValues[0], csvValues[1], csvValues[2], csvValues[3]));
     }
 
-    private static void processCpuModel(String srcDir, String destDir, CpuInfo cpuInfo) {
+    private static void processCpuModel(String srcDir, String destDir, String resourceDir, CpuInfo cpuInfo) {
         File archDirFile = new File(new File(srcDir, "x86"), cpuInfo.filename);
         if (!archDirFile.exists()) {
             throw new RuntimeException("Cannot process the directory: " + archDirFile.getAbsolutePath());
@@ -97,12 +98,43 @@ public class PMUEventsGenerator {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (resourceDir != null) {
+            processMetricsFiles(archDirFile, resourceDir, className);
+        }
         String initEventContent = sb.toString();
         String eventClassTemplate = getFileStringContent("/EventClassTemplate.txt");
         String destFileContent = String.format(eventClassTemplate, className, initEventContent);
         writeFileContent(destDir, className, destFileContent);
     }
 
+    /**
+     * Concatenates -metrics JSON files of a cpu model into pmumetrics/&lt;className&gt;.json resource, read by PMUMetrics
+     */
+    private static void processMetricsFiles(File archDirFile, String resourceDir, String className) {
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            List<PMUMetrics.JsonMetric> metrics = new ArrayList<>();
+            Files.list(archDirFile.toPath())
+                    .filter(path -> path.toString().contains("-metrics"))
+                    .sorted()
+                    .forEach(jsonFileName -> {
+                        try {
+                            metrics.addAll(Arrays.asList(mapper.readValue(jsonFileName.toFile(), PMUMetrics.JsonMetric[].class)));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+            if (metrics.isEmpty()) {
+                return;
+            }
+            File metricsDir = new File(resourceDir, "pmumetrics");
+            metricsDir.mkdirs();
+            mapper.writeValue(new File(metricsDir, className + ".json"), metrics);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static void writeFileContent(String destDir, String className, String destFileContent) {
         try (FileWriter writer = new FileWriter(new File(destDir, className + ".java"))) {
             writer.write(destFileContent, 0, destFileContent.length());
@@ -132,6 +164,9 @@ public class PMUEventsGenerator {
                 sb.append(pmuEvent.BriefDescription != null ?  "\"" + escape(pmuEvent.BriefDescription) + "\"": "null");
                 sb.append(", ");
                 sb.append(pmuEvent.CounterHTOff != null ?  "\"" + escape(pmuEvent.CounterHTOff) + "\"": "null");
+                if (pmuEvent.MSRValue != null && pmuEvent.MSRIndex != null) {
+                    sb.append(", \"").append(escape(pmuEvent.MSRIndex)).append("\", \"").append(escape(pmuEvent.MSRValue)).append("\"");
+                }
                 sb.append("));\n");
             });
         } catch (IOException e) {
@@ -164,7 +199,7 @@ public class PMUEventsGenerator {
 
     private static void printHelp() {
         System.out.println("Class source generator for PMU events per cpu model");
-        System.out.println(PMUEventsGenerator.class.getName() + " <source directory> <destination dir>");
+        System.out.println(PMUEventsGenerator.class.getName() + " <source directory> <destination dir> [<resource destination dir>]");
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)
@@ -177,6 +212,8 @@ public class PMUEventsGenerator {
         public String EventName;
         public String SampleAfterValue;
         public String CounterHTOff;
+        public String MSRIndex;
+        public String MSRValue;
     }
 
     private static class CpuInfo {
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.pmuevents;
+
+/**
+ * Metric from perf -metrics JSON files: a formula over PMU events (see MetricExpression)
+ */
+public class PMUMetric {
+    public final String metricName;
+    public final String metricExpr;
+    public final String metricGroup;
+    public final String briefDescription;
+    // e.g. "100%" for ratios printed as percentages, null if none
+    public final String scaleUnit;
+
+    public PMUMetric(String metricName, String metricExpr, String metricGroup, String briefDescription, String scaleUnit) {
+        this.metricName = metricName;
+        this.metricExpr = metricExpr;
+        this.metricGroup = metricGroup;
+        this.briefDescription = briefDescription;
+        this.scaleUnit = scaleUnit;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.pmuevents;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metrics of the current cpu model, loaded on first call from the resource written by PMUEventsGenerator
+ * (pmumetrics/&lt;cpu model class&gt;.json, perf -metrics JSON files of the model concatenated)
+ * Resources are not shipped (perf JSON files are not vendored): without running the generator
+ * with a resource directory, there are no metrics
+ */
+public class PMUMetrics {
+    static final String RESOURCE_DIR = "/pmumetrics/";
+
+    private static volatile List<PMUMetric> metrics;
+
+    /**
+     * @return metrics of the current cpu model, empty if none
+     */
+    public static List<PMUMetric> getMetrics() {
+        List<PMUMetric> result = metrics;
+        if (result == null) {
+            PMUEventMap eventMap = PMUEvents.getPMUEventMap();
+            result = eventMap != null ? load(eventMap.getClass().getSimpleName()) : Collections.emptyList();
+            metrics = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return metric of the current cpu model, null if not found or no resources generated
+     */
+    public static PMUMetric get(String metricName) {
+        for (PMUMetric metric : getMetrics()) {
+            if (metric.metricName.equalsIgnoreCase(metricName)) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    static List<PMUMetric> load(String cpuModel) {
+        try (InputStream input = PMUMetrics.class.getResourceAsStream(RESOURCE_DIR + cpuModel + ".json")) {
+            if (input == null) {
+                return Collections.emptyList();
+            }
+            return parse(input);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Cannot read metrics of " + cpuModel, e);
+        }
+    }
+
+    static List<PMUMetric> parse(InputStream input) throws IOException {
+        JsonMetric[] jsonMetrics = new ObjectMapper().readValue(input, JsonMetric[].class);
+        List<PMUMetric> result = new ArrayList<>(jsonMetrics.length);
+        for (JsonMetric jsonMetric : jsonMetrics) {
+            if (jsonMetric.MetricName == null || jsonMetric.MetricExpr == null) {
+                continue;
+            }
+            result.add(new PMUMetric(jsonMetric.MetricName, jsonMetric.MetricExpr, jsonMetric.MetricGroup,
+                    jsonMetric.BriefDescription, jsonMetric.ScaleUnit));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Entry of perf -metrics JSON files
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class JsonMetric {
+        public String MetricName;
+        public String MetricExpr;
+        public String MetricGroup;
+        public String BriefDescription;
+        public String ScaleUnit;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AsciiBufferTest {
+
+    @Test
+    public void putLong() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiBuffer buffer = new AsciiBuffer(Channels.newChannel(out), 64);
+        buffer.put(0).put(' ').put(-42).put(' ').put(Long.MAX_VALUE).put(' ').put(Long.MIN_VALUE);
+        buffer.flush();
+        assertEquals("0 -42 9223372036854775807 -9223372036854775808", toString(out));
+    }
+
+    @Test
+    public void putDecimal() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiBuffer buffer = new AsciiBuffer(Channels.newChannel(out), 64);
+        buffer.putDecimal(1_000_123_456L, 9).put(' ').putDecimal(42, 9).put(' ').putDecimal(12345, 2).put(' ').putDecimal(-5, 1);
+        buffer.flush();
+        assertEquals("1.000123456 0.000000042 123.45 -0.5", toString(out));
+    }
+
+    @Test
+    public void putJsonString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiBuffer buffer = new AsciiBuffer(Channels.newChannel(out), 64);
+        buffer.putJsonString("a\"b\\c\n");
+        buffer.flush();
+        assertEquals("\"a\\\"b\\\\c\\u000a\"", toString(out));
+    }
+
+    @Test
+    public void flushWhenFull() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiBuffer buffer = new AsciiBuffer(Channels.newChannel(out), 8);
+        for (int i = 0; i < 10; i++) {
+            buffer.put("cycles,").put(i).put('\n');
+        }
+        buffer.flush();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append("cycles,").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), toString(out));
+    }
+
+    private static String toString(ByteArrayOutputStream out) {
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
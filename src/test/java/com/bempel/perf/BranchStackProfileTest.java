@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.jna.PerfEventMmapPage;
+import com.bempel.perf.jna.PerfRingBuffer;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BranchStackProfileTest {
+    private final Memory memory = new Memory(2 * PerfEventMmapPage.PAGE_SIZE);
+    private final PerfRingBuffer ring = new PerfRingBuffer(null, Pointer.nativeValue(memory), 1);
+    private final SampleRecord sample = sampleRecord(PerfEventConsts.PERF_SAMPLE_BRANCH_USER | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY);
+
+    @Test
+    public void edgesAndRanges() {
+        BranchStackProfile profile = new BranchStackProfile();
+        // loop: jump back from 0x1040 to 0x1000, exit test at 0x1020 mispredicted once
+        profile.accept(sample(
+                0x1040, 0x1000, 12, 0,
+                0x1040, 0x1000, 10, 0,
+                0x1020, 0x2000, 40, 1));
+        profile.accept(sample(
+                0x1040, 0x1000, 11, 0,
+                0x1040, 0x1000, 0, 0));
+        assertEquals(2, profile.getSamples());
+        assertEquals(5, profile.getBranches());
+        List<BranchStackProfile.Edge> edges = profile.getEdges();
+        assertEquals(0x1040, edges.get(0).getFrom());
+        assertEquals(0x1000, edges.get(0).getTo());
+        assertEquals(4, edges.get(0).getCount());
+        // cycles 0: not reported
+        assertEquals(11.0, edges.get(0).getAverageCycles(), 1e-9);
+        List<BranchStackProfile.Edge> mispredicted = profile.getMispredictedEdges();
+        assertEquals(1, mispredicted.size());
+        assertEquals(0x1020, mispredicted.get(0).getFrom());
+        assertEquals(1.0, mispredicted.get(0).getMispredictedRatio(), 1e-9);
+        // loop body 0x1000..0x1040 executed between consecutive back jumps
+        List<BranchStackProfile.Range> ranges = profile.getRanges();
+        assertEquals(1, ranges.size());
+        assertEquals(0x1000, ranges.get(0).getStart());
+        assertEquals(0x1040, ranges.get(0).getEnd());
+        assertEquals(2, ranges.get(0).getCount());
+        assertTrue(profile.report(10).contains("0x1020 -> 0x2000"));
+    }
+
+    @Test
+    public void unrelatedBranchesAreNotRanges() {
+        BranchStackProfile profile = new BranchStackProfile(ip -> String.format("0x%x", ip), 256);
+        profile.accept(sample(
+                0x9000, 0x9100, 5, 0,
+                0x1040, 0x1000, 5, 0));
+        assertEquals(0, profile.getRanges().size());
+        profile.clear();
+        assertEquals(0, profile.getEdges().size());
+    }
+
+    @Test
+    public void noRangesForFilteredBranches() {
+        for (long branchSampleType : new long[] {PerfEventConsts.PERF_SAMPLE_BRANCH_USER | PerfEventConsts.PERF_SAMPLE_BRANCH_CALL_STACK,
+                PerfEventConsts.PERF_SAMPLE_BRANCH_USER | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY_CALL,
+                PerfEventConsts.PERF_SAMPLE_BRANCH_ANY | PerfEventConsts.PERF_SAMPLE_BRANCH_COND}) {
+            BranchStackProfile profile = new BranchStackProfile();
+            profile.accept(sample(sampleRecord(branchSampleType),
+                    0x1040, 0x1000, 12, 0,
+                    0x1040, 0x1000, 10, 0));
+            assertEquals(2, profile.getBranches());
+            assertEquals(0, profile.getRanges().size());
+        }
+        // privilege level only: kernel records any branch
+        assertTrue(BranchStackProfile.hasConsecutiveBranches(PerfEventConsts.PERF_SAMPLE_BRANCH_USER));
+    }
+
+    private static SampleRecord sampleRecord(long branchSampleType) {
+        return new SampleRecord(PerfEventConsts.PERF_SAMPLE_BRANCH_STACK, SampleRecord.DEFAULT_READ_FORMAT, branchSampleType);
+    }
+
+    private SampleRecord sample(long... branches) {
+        return sample(sample, branches);
+    }
+
+    // from, to, cycles, mispredicted (1) per branch, most recent first
+    private SampleRecord sample(SampleRecord sample, long... branches) {
+        int size = branches.length / 4;
+        memory.setLong(PerfEventMmapPage.PAGE_SIZE, size);
+        for (int i = 0; i < size; i++) {
+            long offset = PerfEventMmapPage.PAGE_SIZE + 8 + i * 24L;
+            memory.setLong(offset, branches[i * 4]);
+            memory.setLong(offset + 8, branches[i * 4 + 1]);
+            memory.setLong(offset + 16, branches[i * 4 + 2] << 4 | (branches[i * 4 + 3] != 0 ? 1 : 2));
+        }
+        sample.wrap(ring, 0, 8 + size * 24);
+        return sample;
+    }
+}
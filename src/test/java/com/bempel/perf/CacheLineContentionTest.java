@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheLineContentionTest {
+    private static final long L3_HITM = DataSourceTest.dataSrc(DataSource.OP_LOAD, DataSource.LVL_L3 | DataSource.LVL_HIT, DataSource.SNOOP_HITM);
+    private static final long L1_HIT = DataSourceTest.dataSrc(DataSource.OP_LOAD, DataSource.LVL_L1 | DataSource.LVL_HIT, DataSource.SNOOP_NONE);
+    private static final long STORE = DataSourceTest.dataSrc(DataSource.OP_STORE, DataSource.LVL_L1 | DataSource.LVL_MISS, DataSource.SNOOP_NA);
+
+    @Test
+    public void falseSharing() {
+        CacheLineContention c2c = new CacheLineContention(ip -> ip == 0x1000 ? "producer" : "consumer");
+        // producer writes head at offset 0 on cpu 0, consumer reads tail at offset 8 on cpu 1
+        c2c.accept(0x1000, 10, 0, 0x7f0000000040L, 0, STORE);
+        c2c.accept(0x2000, 11, 1, 0x7f0000000048L, 120, L3_HITM);
+        c2c.accept(0x2000, 11, 1, 0x7f0000000048L, 80, L3_HITM);
+        // private line
+        c2c.accept(0x2000, 11, 1, 0x7f0000001000L, 4, L1_HIT);
+        List<CacheLineContention.Line> contended = c2c.getContendedLines();
+        assertEquals(1, contended.size());
+        assertEquals(2, c2c.getLineCount());
+        CacheLineContention.Line line = contended.get(0);
+        assertEquals(0x7f0000000040L, line.getAddress());
+        assertEquals(200, line.getCost());
+        assertEquals(2, line.getHitm());
+        assertEquals(1, line.getStores());
+        assertEquals(2, line.getCpus().cardinality());
+        assertTrue(line.isFalseSharing());
+        List<CacheLineContention.Offset> offsets = line.getOffsets();
+        assertEquals(0, offsets.get(0).getOffset());
+        assertEquals(1L, (long) offsets.get(0).getCodeLocations().get("producer"));
+        assertEquals(8, offsets.get(1).getOffset());
+        assertEquals(2L, (long) offsets.get(1).getCodeLocations().get("consumer"));
+        assertEquals(Collections.singleton(11), offsets.get(1).getThreadIds());
+        assertFalse(c2c.getLine(0x7f0000001008L).isContended());
+        assertNull(c2c.getLine(0x7f0000002000L));
+        assertTrue(c2c.report(10).contains("FALSE SHARING"));
+    }
+
+    @Test
+    public void sharedOffsetsNotFalseSharing() {
+        CacheLineContention c2c = new CacheLineContention();
+        // both threads access both fields: data shared, separating the fields would not help
+        c2c.accept(0x1000, 10, 0, 0x40, 0, STORE);
+        c2c.accept(0x2000, 11, 1, 0x48, 0, STORE);
+        c2c.accept(0x2000, 11, 1, 0x40, 120, L3_HITM);
+        c2c.accept(0x1000, 10, 0, 0x48, 80, L3_HITM);
+        CacheLineContention.Line line = c2c.getLine(0x40);
+        assertTrue(line.isContended());
+        assertEquals(2, line.getOffsets().size());
+        assertFalse(line.isFalseSharing());
+        assertEquals(2, line.getOffsets().get(0).getThreadIds().size());
+    }
+
+    @Test
+    public void rankByCost() {
+        CacheLineContention c2c = new CacheLineContention();
+        c2c.accept(0x1000, 1, 0, 0x1000, 50, L3_HITM);
+        c2c.accept(0x1000, 2, 1, 0x1000, 50, L3_HITM);
+        c2c.accept(0x1000, 1, 0, 0x2000, 300, L3_HITM);
+        c2c.accept(0x1000, 2, 1, 0x2000, 300, L3_HITM);
+        // same offset from both threads: true sharing
+        assertFalse(c2c.getLine(0x2000).isFalseSharing());
+        assertEquals(0x2000, c2c.getContendedLines().get(0).getAddress());
+        assertEquals(0x1000, c2c.getContendedLines().get(1).getAddress());
+        // no data address
+        c2c.accept(0x1000, 1, 0, 0, 50, L3_HITM);
+        assertEquals(2, c2c.getLineCount());
+    }
+}
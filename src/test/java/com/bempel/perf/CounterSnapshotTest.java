@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CounterSnapshotTest {
+
+    @Test
+    public void delta() {
+        CounterSnapshot prev = new CounterSnapshot(2);
+        CounterSnapshot cur = new CounterSnapshot(2);
+        CounterSnapshot delta = new CounterSnapshot(2);
+        prev.set(0, 1000, 100, 100);
+        prev.set(1, 500, 100, 50);
+        cur.set(0, 3000, 300, 300);
+        cur.set(1, 1500, 300, 150);
+        CounterSnapshot.delta(prev, cur, delta);
+        assertEquals(2000, delta.getValue(0));
+        assertEquals(2000, delta.getScaledValue(0));
+        assertEquals(200, delta.getTimeEnabled(0));
+        assertEquals(1000, delta.getValue(1));
+        // counted half of the time
+        assertEquals(2000, delta.getScaledValue(1));
+        assertEquals(50.0, delta.getCountedPercentage(1), 0.001);
+    }
+
+    @Test
+    public void deltaAfterReset() {
+        CounterSnapshot prev = new CounterSnapshot(1);
+        CounterSnapshot cur = new CounterSnapshot(1);
+        // ioctl reset zeroes the count, times keep increasing
+        prev.set(0, 1000, 500, 250);
+        cur.set(0, 42, 600, 300);
+        CounterSnapshot.delta(prev, cur, prev);
+        assertEquals(42, prev.getValue(0));
+        assertEquals(100, prev.getTimeEnabled(0));
+        assertEquals(50, prev.getTimeRunning(0));
+        assertEquals(84, prev.getScaledValue(0));
+    }
+
+    @Test
+    public void deltaAfterReopen() {
+        CounterSnapshot prev = new CounterSnapshot(1);
+        CounterSnapshot cur = new CounterSnapshot(1);
+        prev.set(0, 1000, 500, 500);
+        cur.set(0, 2000, 10, 10);
+        CounterSnapshot.delta(prev, cur, prev);
+        assertEquals(2000, prev.getValue(0));
+        assertEquals(10, prev.getTimeEnabled(0));
+    }
+
+    @Test
+    public void accumulate() {
+        CounterSnapshot total = new CounterSnapshot(1);
+        CounterSnapshot delta = new CounterSnapshot(1);
+        delta.set(0, 100, 10, 5);
+        total.accumulate(delta);
+        total.accumulate(delta);
+        assertEquals(200, total.getValue(0));
+        assertEquals(400, total.getScaledValue(0));
+        assertEquals(20, total.getTimeEnabled(0));
+        delta.set(0, Long.MAX_VALUE, 10, 10);
+        total.accumulate(delta);
+        assertEquals(Long.MAX_VALUE, total.getValue(0));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CpuTopologyTest {
+
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("sysfs");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void parseCpuList() {
+        assertArrayEquals(new int[] {0, 1, 2, 3, 8, 10, 11}, CpuTopology.parseCpuList("0-3,8,10-11\n"));
+        assertArrayEquals(new int[] {5}, CpuTopology.parseCpuList("5"));
+        assertArrayEquals(new int[0], CpuTopology.parseCpuList(""));
+    }
+
+    @Test
+    public void readTopology() throws IOException {
+        // 2 sockets, 1 core with 2 hyperthreads each, one node per socket, cpu3 offline
+        writeCpu(root, 0, 0, 0);
+        writeCpu(root, 1, 0, 0);
+        writeCpu(root, 2, 1, 0);
+        Files.createDirectories(root.resolve("cpu/cpu3"));
+        writeFile(root.resolve("node/node0/cpulist"), "0-1");
+        writeFile(root.resolve("node/node1/cpulist"), "2-3");
+        CpuTopology topology = CpuTopology.read(root.resolve("cpu").toString(), root.resolve("node").toString());
+        assertEquals(4, topology.getCpuCount());
+        assertEquals(0, topology.getSocket(1));
+        assertEquals(1, topology.getSocket(2));
+        assertEquals(0, topology.getCore(2));
+        assertEquals(-1, topology.getSocket(3));
+        assertEquals(1, topology.getNode(3));
+        assertEquals(-1, topology.getNode(42));
+    }
+
+    private static void writeCpu(Path root, int cpu, int socket, int core) throws IOException {
+        Path topologyDir = root.resolve("cpu/cpu" + cpu + "/topology");
+        writeFile(topologyDir.resolve("physical_package_id"), String.valueOf(socket));
+        writeFile(topologyDir.resolve("die_id"), "0");
+        writeFile(topologyDir.resolve("core_id"), String.valueOf(core));
+    }
+
+    private static void writeFile(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, Collections.singletonList(content));
+    }
+}
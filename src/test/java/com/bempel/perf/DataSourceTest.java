@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DataSourceTest {
+
+    @Test
+    public void levelFromLvl() {
+        assertEquals(DataSource.Level.L1, DataSource.getLevel(dataSrc(DataSource.OP_LOAD, DataSource.LVL_L1 | DataSource.LVL_HIT, DataSource.SNOOP_NONE)));
+        assertEquals(DataSource.Level.L3, DataSource.getLevel(dataSrc(DataSource.OP_LOAD, DataSource.LVL_L3 | DataSource.LVL_HIT, DataSource.SNOOP_HITM)));
+        assertEquals(DataSource.Level.LOCAL_DRAM, DataSource.getLevel(dataSrc(DataSource.OP_LOAD, DataSource.LVL_LOC_RAM | DataSource.LVL_HIT, DataSource.SNOOP_MISS)));
+        assertEquals(DataSource.Level.REMOTE_DRAM, DataSource.getLevel(dataSrc(DataSource.OP_LOAD, DataSource.LVL_REM_RAM1 | DataSource.LVL_HIT, 0)));
+        assertEquals(DataSource.Level.REMOTE_CACHE, DataSource.getLevel(dataSrc(DataSource.OP_LOAD, DataSource.LVL_REM_CCE1 | DataSource.LVL_HIT, 0)));
+        assertEquals(DataSource.Level.UNKNOWN, DataSource.getLevel(dataSrc(DataSource.OP_NA, DataSource.LVL_NA, DataSource.SNOOP_NA)));
+        // precise store missing L1: serving level not reported
+        assertEquals(DataSource.Level.UNKNOWN, DataSource.getLevel(dataSrc(DataSource.OP_STORE, DataSource.LVL_L1 | DataSource.LVL_MISS, DataSource.SNOOP_NA)));
+        assertEquals(DataSource.Level.L1, DataSource.getLevel(dataSrc(DataSource.OP_STORE, DataSource.LVL_L1 | DataSource.LVL_HIT, DataSource.SNOOP_NA)));
+    }
+
+    @Test
+    public void levelFromLvlNum() {
+        long dataSrc = dataSrc(DataSource.OP_LOAD, DataSource.LVL_HIT, 0)
+                | (long) DataSource.LVL_NUM_RAM << DataSource.LVL_NUM_SHIFT | 1L << DataSource.REMOTE_SHIFT;
+        assertEquals(DataSource.Level.REMOTE_DRAM, DataSource.getLevel(dataSrc));
+        dataSrc = dataSrc(DataSource.OP_LOAD, DataSource.LVL_HIT, 0) | (long) DataSource.LVL_NUM_L2 << DataSource.LVL_NUM_SHIFT;
+        assertEquals(DataSource.Level.L2, DataSource.getLevel(dataSrc));
+    }
+
+    @Test
+    public void flags() {
+        long dataSrc = dataSrc(DataSource.OP_LOAD, DataSource.LVL_L3 | DataSource.LVL_HIT, DataSource.SNOOP_HITM)
+                | (long) DataSource.TLB_MISS << DataSource.DTLB_SHIFT | (long) DataSource.LOCK_LOCKED << DataSource.LOCK_SHIFT;
+        assertTrue(DataSource.isLoad(dataSrc));
+        assertFalse(DataSource.isStore(dataSrc));
+        assertTrue(DataSource.isHitm(dataSrc));
+        assertTrue(DataSource.isTlbMiss(dataSrc));
+        assertTrue(DataSource.isLocked(dataSrc));
+        assertEquals("LOAD L3 hit snoop HITM TLB miss locked", DataSource.toString(dataSrc));
+    }
+
+    static long dataSrc(int op, int lvl, int snoop) {
+        return (long) op << DataSource.OP_SHIFT | (long) lvl << DataSource.LVL_SHIFT | (long) snoop << DataSource.SNOOP_SHIFT;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.pmuevents.PMUEvent;
+import com.bempel.perf.pmuevents.PMUEventMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class GroupPlannerTest {
+
+    @Test
+    public void genericEventsFitOneGroup() {
+        GroupPlanner planner = new GroupPlanner(null, true, 4, 0, false);
+        GroupPlanner.Plan plan = planner.plan("cycles,instructions,cache-misses,branch-misses,task-clock");
+        assertEquals(1, plan.getGroups().size());
+        assertEquals("cycles,instructions,cache-misses,branch-misses,task-clock", plan.getGroupEventNames(0));
+        assertEquals(1.0, plan.getExpectedCoverage(), 1e-9);
+    }
+
+    @Test
+    public void fixedCountersExtendCapacity() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 3, false);
+        GroupPlanner.Plan plan = planner.plan("cycles,instructions,ref-cycles,r0124,r0224,r0424,r0824");
+        assertEquals(1, plan.getHardwareGroups());
+        assertEquals(1, plan.getLowerBound());
+    }
+
+    @Test
+    public void lowerBoundPerCounterKind() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 3, false);
+        // 5 GP-only events on 4 GP counters, fixed counters cannot help
+        GroupPlanner.Plan plan = planner.plan("r0124,r0224,r0424,r0824,r1024,ref-cycles");
+        assertEquals(2, plan.getHardwareGroups());
+        assertEquals(2, plan.getLowerBound());
+        // both restricted to fixed counter 0
+        plan = planner.plan("INST_RETIRED.ANY,r0124,INST_RETIRED.ANY");
+        assertEquals(2, plan.getHardwareGroups());
+        assertEquals(2, plan.getLowerBound());
+    }
+
+    @Test
+    public void nmiWatchdogTakesFixedCycles() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 3, true);
+        // cycles falls back to a GP counter
+        GroupPlanner.Plan plan = planner.plan("cycles,instructions,r0124,r0224,r0424,r0824");
+        assertEquals(2, plan.getHardwareGroups());
+        assertEquals(0.5, plan.getExpectedCoverage(), 1e-9);
+    }
+
+    @Test
+    public void constrainedEventsSplit() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 3, false);
+        // two events restricted to counter 2 can never share a group
+        GroupPlanner.Plan plan = planner.plan("ONLY2_A,r0124,ONLY2_B,r0224,LOW_ONLY,r0424");
+        assertEquals(2, plan.getHardwareGroups());
+        // 6 GP-only events on 4 GP counters
+        assertEquals(2, plan.getLowerBound());
+        assertEquals(Arrays.asList("ONLY2_A", "r0124", "r0224", "LOW_ONLY"), plan.getGroups().get(0));
+        assertEquals(Arrays.asList("ONLY2_B", "r0424"), plan.getGroups().get(1));
+    }
+
+    @Test
+    public void matchingReassignsCounters() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 0, false);
+        // r0124 placed first takes counter 0, LOW_ONLY (0,1) and PREC (1) still fit by moving it
+        GroupPlanner.Plan plan = planner.plan("r0124,LOW_ONLY,PREC,r0224");
+        assertEquals(1, plan.getHardwareGroups());
+    }
+
+    @Test
+    public void htOffConstraints() {
+        GroupPlanner planner = new GroupPlanner(newMap(), false, 8, 3, false);
+        GroupPlanner.Plan plan = planner.plan("ONLY2_A,ONLY2_B");
+        assertEquals(1, plan.getHardwareGroups());
+    }
+
+    @Test
+    public void unavailableCounter() {
+        GroupPlanner planner = new GroupPlanner(newMap(), true, 4, 3, false);
+        assertThrows(IllegalArgumentException.class, () -> planner.plan("HIGH_ONLY"));
+        assertThrows(IllegalArgumentException.class, () -> new GroupPlanner(null, true, 0, 0, false));
+    }
+
+    @Test
+    public void countersFromEventMap() {
+        assertEquals(4, new GroupPlanner(newMap(), true, false).getGpCounters());
+        assertEquals(8, new GroupPlanner(newMap(), false, false).getGpCounters());
+        assertEquals(3, new GroupPlanner(newMap(), true, false).getFixedCounters());
+        assertEquals(GroupPlanner.DEFAULT_GP_COUNTERS, new GroupPlanner(null, true, false).getGpCounters());
+        assertEquals(0, new GroupPlanner(null, true, false).getFixedCounters());
+    }
+
+    private static PMUEventMap newMap() {
+        Map<String, PMUEvent> events = new HashMap<>();
+        put(events, "ONLY2_A", "2", "0,1,2,3,4,5,6,7");
+        put(events, "ONLY2_B", "2", "0,1,2,3,4,5,6,7");
+        put(events, "LOW_ONLY", "0,1", "0,1");
+        put(events, "PREC", "1", "1");
+        put(events, "ANY", "0,1,2,3", "0,1,2,3,4,5,6,7");
+        put(events, "HIGH_ONLY", "Fixed counter 3", "Fixed counter 3");
+        put(events, "INST_RETIRED.ANY", "Fixed counter 0", "Fixed counter 0");
+        return new PMUEventMap() {
+            @Override
+            public PMUEvent get(String eventName) {
+                return events.get(eventName);
+            }
+
+            @Override
+            public void forEach(Consumer<PMUEvent> action) {
+                events.values().forEach(action);
+            }
+        };
+    }
+
+    private static void put(Map<String, PMUEvent> events, String name, String counter, String counterHTOff) {
+        events.put(name, new PMUEvent(null, "0x00", counter, "0x00", name, "2000003", name, counterHTOff));
+    }
+}
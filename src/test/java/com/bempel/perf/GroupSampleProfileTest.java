@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.jna.PerfEventMmapPage;
+import com.bempel.perf.jna.PerfRingBuffer;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GroupSampleProfileTest {
+    private static final long SAMPLE_TYPE = PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_TID | PerfEventConsts.PERF_SAMPLE_READ;
+
+    private final Memory memory = new Memory(2 * PerfEventMmapPage.PAGE_SIZE);
+    private final PerfRingBuffer ring = new PerfRingBuffer(null, Pointer.nativeValue(memory), 1);
+    private final SampleRecord sample = new SampleRecord(SAMPLE_TYPE);
+
+    @Test
+    public void deltasPerThreadAndSymbol() {
+        GroupSampleProfile profile = new GroupSampleProfile(2, ip -> ip < 0x2000 ? "foo" : "bar");
+        // cycles, instructions
+        profile.accept(sample(0x1000, 1, 1000, 500));
+        profile.accept(sample(0x2000, 2, 3000, 3000));
+        profile.accept(sample(0x1010, 1, 3000, 1500));
+        profile.accept(sample(0x2010, 2, 4000, 4000));
+        assertEquals(4, profile.getSamples());
+        assertEquals(2, profile.getSamples("foo"));
+        assertEquals(3000, profile.getValue("foo", 0));
+        assertEquals(1500, profile.getValue("foo", 1));
+        assertEquals(2.0, profile.getRatio("foo", 0, 1), 1e-9);
+        assertEquals(1.0, profile.getRatio("bar", 0, 1), 1e-9);
+        assertTrue(Double.isNaN(profile.getRatio("baz", 0, 1)));
+        assertEquals(Arrays.asList("bar", "foo"), profile.getSymbols());
+    }
+
+    @Test
+    public void resetCounters() {
+        GroupSampleProfile profile = new GroupSampleProfile(2);
+        profile.accept(sample(0x1000, 1, 1000, 500));
+        profile.clear();
+        // counters reset: counted from 0
+        profile.accept(sample(0x1000, 1, 100, 50));
+        assertEquals(100, profile.getValue("0x1000", 0));
+        assertEquals(50, profile.getValue("0x1000", 1));
+    }
+
+    @Test
+    public void groupSizeMismatch() {
+        GroupSampleProfile profile = new GroupSampleProfile(3);
+        assertThrows(IllegalArgumentException.class, () -> profile.accept(sample(0x1000, 1, 1000, 500)));
+        assertThrows(IllegalArgumentException.class, () -> new GroupSampleProfile(0));
+    }
+
+    private SampleRecord sample(long ip, int tid, long cycles, long instructions) {
+        // ip, pid/tid, read_format group: nr, time_enabled, time_running, { value, id }[nr]
+        long[] fields = {ip, ((long) tid << 32) | 42, 2, 0, 0, cycles, 1, instructions, 2};
+        for (int i = 0; i < fields.length; i++) {
+            memory.setLong(PerfEventMmapPage.PAGE_SIZE + i * 8, fields[i]);
+        }
+        sample.wrap(ring, 0, fields.length * 8);
+        return sample;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GroupSchedulerTest {
+    private static long sink;
+
+    @Test
+    public void rotationSharesTime() {
+        List<PerfGroupEvent> groups = Arrays.asList(new PerfGroupEvent("task-clock"), new PerfGroupEvent("task-clock,page-faults"));
+        groups.forEach(PerfGroupEvent::open);
+        try {
+            GroupScheduler scheduler = new GroupScheduler(groups, TimeUnit.MILLISECONDS.toNanos(5));
+            scheduler.begin();
+            for (int i = 0; i < 10; i++) {
+                spin(TimeUnit.MILLISECONDS.toNanos(5));
+                scheduler.rotate();
+            }
+            spin(TimeUnit.MILLISECONDS.toNanos(5));
+            scheduler.end();
+            assertEquals(10, scheduler.getRotations());
+            assertEquals(6, scheduler.getSlices(0));
+            assertEquals(5, scheduler.getSlices(1));
+            // only one group enabled at a time: task-clock counts its own slices
+            assertEquals(scheduler.getRunningTime(0), scheduler.getValue(0, 0), scheduler.getRunningTime(0) * 0.1);
+            // busy spinning: share of each group follows its slice count, 6/11 and 5/11
+            assertEquals(6.0 / 11, scheduler.getCoverage(0), 0.1);
+            assertEquals(5.0 / 11, scheduler.getCoverage(1), 0.1);
+            // busy spinning: task-clock estimates the total time
+            double estimate = scheduler.getEstimate(1, 0);
+            assertEquals(scheduler.getTotalTime(), estimate, scheduler.getTotalTime() * 0.2);
+            assertTrue(scheduler.getErrorBound(1, 0) >= 0);
+        } finally {
+            groups.forEach(PerfGroupEvent::close);
+        }
+    }
+
+    @Test
+    public void sleepingThread() throws InterruptedException {
+        List<PerfGroupEvent> groups = Arrays.asList(new PerfGroupEvent("task-clock"), new PerfGroupEvent("task-clock"));
+        groups.forEach(PerfGroupEvent::open);
+        try {
+            GroupScheduler scheduler = new GroupScheduler(groups, TimeUnit.MILLISECONDS.toNanos(5));
+            scheduler.begin();
+            for (int i = 0; i < 6; i++) {
+                // off cpu most of the slice
+                Thread.sleep(15);
+                spin(TimeUnit.MILLISECONDS.toNanos(5));
+                scheduler.rotate();
+            }
+            scheduler.end();
+            long onCpu = scheduler.getValue(0, 0) + scheduler.getValue(1, 0);
+            // total time is the time the thread was on cpu, not the ~120ms elapsed
+            assertEquals(onCpu, scheduler.getTotalTime(), onCpu * 0.1);
+            assertTrue(scheduler.getTotalTime() < TimeUnit.MILLISECONDS.toNanos(70));
+            assertEquals(onCpu, scheduler.getEstimate(0, 0), onCpu * 0.2);
+        } finally {
+            groups.forEach(PerfGroupEvent::close);
+        }
+    }
+
+    @Test
+    public void rotationThread() throws InterruptedException {
+        List<PerfGroupEvent> groups = Arrays.asList(new PerfGroupEvent("task-clock"), new PerfGroupEvent("page-faults"));
+        groups.forEach(PerfGroupEvent::open);
+        try {
+            GroupScheduler scheduler = new GroupScheduler(groups, TimeUnit.MILLISECONDS.toNanos(2));
+            scheduler.start();
+            Thread.sleep(50);
+            scheduler.stop();
+            assertTrue(scheduler.getRotations() > 0);
+            assertTrue(scheduler.getTotalTime() > 0);
+        } finally {
+            groups.forEach(PerfGroupEvent::close);
+        }
+    }
+
+    @Test
+    public void errorBound() {
+        // constant rate: no error
+        assertEquals(0, GroupScheduler.errorBound(4, 4 * 2.0, 4 * 4.0, 1000), 1e-9);
+        // rates 1 & 3: mean 2, sample variance 2, standard error 1
+        assertEquals(GroupScheduler.Z_95 * 1000, GroupScheduler.errorBound(2, 4, 10, 1000), 1e-6);
+        assertTrue(Double.isNaN(GroupScheduler.errorBound(1, 2, 4, 1000)));
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new GroupScheduler(Arrays.asList(), 1000));
+        assertThrows(IllegalArgumentException.class, () -> new GroupScheduler(Arrays.asList(new PerfGroupEvent("task-clock")), 0));
+        GroupScheduler scheduler = new GroupScheduler(Arrays.asList(new PerfGroupEvent("task-clock")), 1000);
+        assertThrows(IllegalStateException.class, scheduler::rotate);
+    }
+
+    private static void spin(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            sink++;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class IdSlotTableTest {
+
+    @Test
+    public void putGet() {
+        IdSlotTable table = new IdSlotTable(16);
+        for (int i = 0; i < 16; i++) {
+            table.put(1000 + i * 7, i);
+        }
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, table.get(1000 + i * 7));
+        }
+        assertEquals(-1, table.get(999));
+        assertEquals(-1, table.get(0));
+    }
+
+    @Test
+    public void collidingIds() {
+        // ids differing only by high bits
+        IdSlotTable table = new IdSlotTable(3);
+        table.put(1L, 0);
+        table.put(1L << 40 | 1, 1);
+        table.put(1L << 50 | 1, 2);
+        assertEquals(0, table.get(1L));
+        assertEquals(1, table.get(1L << 40 | 1));
+        assertEquals(2, table.get(1L << 50 | 1));
+    }
+
+    @Test
+    public void singleEvent() {
+        IdSlotTable table = new IdSlotTable(1);
+        table.put(42, 0);
+        assertEquals(0, table.get(42));
+        assertEquals(-1, table.get(43));
+    }
+}
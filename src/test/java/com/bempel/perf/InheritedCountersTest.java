@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InheritedCountersTest {
+    private static final int THREADS = 4;
+    private static final long SPIN_MS = 100;
+
+    @Test
+    public void countSpawnedThreads() throws InterruptedException {
+        InheritedCounters counters = new InheritedCounters("task-clock,context-switches");
+        counters.start();
+        try {
+            assertSpawnedThreadsCounted(counters);
+        } finally {
+            counters.shutdown();
+        }
+    }
+
+    @Test
+    public void countSpawnedThreadsPerEventRead() throws InterruptedException {
+        InheritedCounters counters = new InheritedCounters("task-clock,context-switches");
+        counters.openGroup(0, -1, InheritedCounters.SINGLE_READ_FORMAT);
+        counters.reset();
+        counters.enable();
+        try {
+            assertSpawnedThreadsCounted(counters);
+        } finally {
+            counters.shutdown();
+        }
+    }
+
+    private static void assertSpawnedThreadsCounted(InheritedCounters counters) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(InheritedCountersTest::spin);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CounterSnapshot snapshot = new CounterSnapshot(counters.size());
+        counters.read(snapshot);
+        // task-clock in ns, spawned threads spun at least THREADS * SPIN_MS
+        long taskClock = snapshot.getScaledValue(0);
+        assertTrue(taskClock >= THREADS * SPIN_MS * 1_000_000 * 9 / 10, "task-clock: " + taskClock);
+    }
+
+    // spins on cpu time, not wall clock time: threads may share the same cpu
+    private static void spin() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long end = threadMXBean.getCurrentThreadCpuTime() + SPIN_MS * 1_000_000;
+        while (threadMXBean.getCurrentThreadCpuTime() < end) {
+            // burn cpu
+        }
+    }
+}
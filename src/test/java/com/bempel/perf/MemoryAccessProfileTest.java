@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MemoryAccessProfileTest {
+    private static final long L1_HIT = DataSourceTest.dataSrc(DataSource.OP_LOAD, DataSource.LVL_L1 | DataSource.LVL_HIT, DataSource.SNOOP_NONE);
+    private static final long DRAM_HIT = DataSourceTest.dataSrc(DataSource.OP_LOAD, DataSource.LVL_LOC_RAM | DataSource.LVL_HIT, DataSource.SNOOP_MISS);
+
+    @Test
+    public void histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long latency : new long[]{0, 1, 3, 4, 7, 300}) {
+            histogram.record(latency);
+        }
+        assertEquals(6, histogram.getCount());
+        assertEquals(300, histogram.getMax());
+        assertEquals(315 / 6.0, histogram.getMean(), 1e-9);
+        assertEquals(1, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(2));
+        assertEquals(2, histogram.getCount(3));
+        assertEquals(4, LatencyHistogram.getLowerBound(3));
+        assertEquals(7, LatencyHistogram.getUpperBound(3));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(300, histogram.getPercentile(100));
+        // u64 weight above Long.MAX_VALUE
+        LatencyHistogram huge = new LatencyHistogram();
+        huge.record(-1);
+        huge.record(1);
+        assertEquals(1, huge.getCount(64));
+        assertEquals(Long.MAX_VALUE, huge.getMax());
+        assertEquals(Long.MAX_VALUE, huge.getSum());
+    }
+
+    @Test
+    public void perSymbolAndRange() {
+        MemoryAccessProfile profile = new MemoryAccessProfile(12, ip -> ip < 0x2000 ? "foo" : "bar")
+                .addRange("orderBook", 0x100000, 0x10000);
+        profile.accept(0x1000, 0x100010, 250, DRAM_HIT);
+        profile.accept(0x1010, 0x10fff0, 300, DRAM_HIT);
+        profile.accept(0x2000, 0x200010, 4, L1_HIT);
+        assertEquals(3, profile.getTotal().getCount());
+        assertEquals(Arrays.asList("foo", "bar"), profile.getSymbols());
+        MemoryAccessProfile.Entry foo = profile.getSymbol("foo");
+        assertEquals(2, foo.getCount(DataSource.Level.LOCAL_DRAM));
+        assertEquals(275, foo.getLatency().getMean(), 1e-9);
+        assertEquals(Arrays.asList("orderBook", "0x200000"), profile.getRanges());
+        assertEquals(2, profile.getRange("orderBook").getCount(DataSource.Level.LOCAL_DRAM));
+        assertEquals(1, profile.getRange("0x200000").getCount(DataSource.Level.L1));
+        assertNull(profile.getRange("0x110000"));
+        profile.clear();
+        assertEquals(0, profile.getTotal().getCount());
+    }
+}
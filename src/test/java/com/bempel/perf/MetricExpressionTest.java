@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MetricExpressionTest {
+
+    @Test
+    public void precedence() {
+        MetricExpression expression = MetricExpression.compile("a + b * 2 - -c / (d - 1)");
+        assertEquals(Arrays.asList("a", "b", "c", "d"), expression.getVariables());
+        assertEquals(1 + 3 * 2 + 8.0 / 4, expression.evaluate(new double[] {1, 3, 8, 5}), 1e-9);
+        assertEquals(2, MetricExpression.compile("8 / 2 / 2").evaluate(new double[0]), 1e-9);
+        assertEquals(1e9 + 0.5, MetricExpression.compile("1e9 + .5").evaluate(new double[0]), 1e-9);
+    }
+
+    @Test
+    public void perfSyntax() {
+        // from perf skx-metrics.json
+        MetricExpression expression = MetricExpression.compile(
+                "UOPS_EXECUTED.THREAD / (( cpu@UOPS_EXECUTED.CORE\\,cmask\\=1@ / 2 ) if #SMT_on else UOPS_EXECUTED.CYCLES_GE_1_UOP_EXEC)");
+        assertEquals(Arrays.asList("UOPS_EXECUTED.THREAD", "cpu@UOPS_EXECUTED.CORE,cmask=1@", "#SMT_on", "UOPS_EXECUTED.CYCLES_GE_1_UOP_EXEC"),
+                expression.getVariables());
+        assertEquals(100.0 / 25, expression.evaluate(new double[] {100, 50, 1, 40}), 1e-9);
+        assertEquals(100.0 / 40, expression.evaluate(new double[] {100, 50, 0, 40}), 1e-9);
+        MetricExpression nested = MetricExpression.compile("min(a, max(b, 1)) if a > b else 0 if a < 0 else 2");
+        assertEquals(3, nested.evaluate(new double[] {5, 3}), 1e-9);
+        assertEquals(0, nested.evaluate(new double[] {-1, 3}), 1e-9);
+        assertEquals(2, nested.evaluate(new double[] {1, 3}), 1e-9);
+    }
+
+    @Test
+    public void variableUsedTwice() {
+        MetricExpression expression = MetricExpression.compile("x * x / y");
+        assertEquals(Arrays.asList("x", "y"), expression.getVariables());
+        assertEquals(Double.POSITIVE_INFINITY, expression.evaluate(new double[] {2, 0}));
+    }
+
+    @Test
+    public void invalid() {
+        assertThrows(IllegalArgumentException.class, () -> MetricExpression.compile("a +"));
+        assertThrows(IllegalArgumentException.class, () -> MetricExpression.compile("(a"));
+        assertThrows(IllegalArgumentException.class, () -> MetricExpression.compile("a b"));
+        assertThrows(IllegalArgumentException.class, () -> MetricExpression.compile("a if b"));
+        assertThrows(IllegalArgumentException.class, () -> MetricExpression.compile("a % b"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.pmuevents.PMUMetric;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricSetTest {
+
+    @Test
+    public void sharedEvents() {
+        MetricSet metrics = new MetricSet(true)
+                .add("faults per ms", "page\\-faults / (task\\-clock / 1000000)")
+                .add(new PMUMetric("switch ratio", "context\\-switches / (context\\-switches + page\\-faults)", "Test", null, "100%"))
+                .add("per second", "page\\-faults / duration_time * (2 if #SMT_on else 1)");
+        assertEquals("page-faults,task-clock,context-switches", metrics.getEventNames());
+        assertEquals(3, metrics.getEventCount());
+        assertEquals("%", metrics.getUnit(1));
+        assertTrue(Double.isNaN(metrics.getValue(0)));
+        CounterSnapshot snapshot = new CounterSnapshot(metrics.getEventCount());
+        // counted half of the time: scaled x2
+        snapshot.set(0, 50, 2_000_000_000, 1_000_000_000);
+        snapshot.set(1, 1_000_000_000, 2_000_000_000, 1_000_000_000);
+        snapshot.set(2, 100, 2_000_000_000, 1_000_000_000);
+        metrics.evaluate(snapshot);
+        assertEquals(0.05, metrics.getValue(0), 1e-9);
+        assertEquals(100.0 * 200 / 300, metrics.getValue(1), 1e-9);
+        assertEquals(100, metrics.getValue(2), 1e-9);
+    }
+
+    @Test
+    public void groupRead() throws InterruptedException {
+        MetricSet metrics = new MetricSet().add("ms", "task\\-clock / 1e6");
+        PerfGroupEvent group = new PerfGroupEvent(metrics.getEventNames());
+        CounterSnapshot snapshot = new CounterSnapshot(group.size());
+        group.start();
+        try {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < 20_000_000) {
+                // spin
+            }
+            group.read(snapshot);
+            metrics.evaluate(snapshot);
+            assertTrue(metrics.getValue(0) > 0);
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void cpuTerms() {
+        assertEquals("INST_RETIRED.ANY", MetricSet.toEventName("INST_RETIRED.ANY"));
+        assertEquals("INST_RETIRED.ANY", MetricSet.toEventName("cpu@INST_RETIRED.ANY@"));
+        assertThrows(IllegalArgumentException.class, () -> new MetricSet().add("constant", "#num_dies * cycles"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OnlineCpusTest {
+
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("sysfs");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void intersect() {
+        assertArrayEquals(new int[] {2, 3}, OnlineCpus.intersect(new int[] {0, 2, 3, 5}, new int[] {1, 2, 3, 4}));
+        assertArrayEquals(new int[0], OnlineCpus.intersect(new int[] {0}, new int[] {1}));
+    }
+
+    @Test
+    public void onlineWithinCpusetAndHotplug() throws IOException {
+        Path online = writeFile(root.resolve("online"), "0-3,6");
+        Path possible = writeFile(root.resolve("possible"), "0-7");
+        Path cpuset = writeFile(root.resolve("cpuset.cpus.effective"), "1-7");
+        OnlineCpus onlineCpus = new OnlineCpus(online.toString(), possible.toString(), cpuset.toString(), null);
+        try {
+            assertArrayEquals(new int[] {1, 2, 3, 6}, onlineCpus.getCpus());
+            assertEquals(8, onlineCpus.getSlotCount());
+            assertFalse(onlineCpus.refresh());
+            // cpu 2 offline, cpu 7 online
+            writeFile(online, "0-1,3,6-7");
+            assertTrue(onlineCpus.refresh());
+            assertArrayEquals(new int[] {1, 3, 6, 7}, onlineCpus.getCpus());
+            // cpuset changed without hotplug
+            writeFile(cpuset, "1");
+            assertTrue(onlineCpus.refresh());
+            assertArrayEquals(new int[] {1}, onlineCpus.getCpus());
+            writeFile(online, "0-7");
+            assertFalse(onlineCpus.refresh());
+            assertArrayEquals(new int[] {1}, onlineCpus.getCpus());
+            // empty cpuset: all online cpus
+            writeFile(cpuset, "");
+            writeFile(online, "0-1");
+            assertTrue(onlineCpus.refresh());
+            assertArrayEquals(new int[] {0, 1}, onlineCpus.getCpus());
+        } finally {
+            onlineCpus.close();
+        }
+    }
+
+    @Test
+    public void allowedCpusWithoutCpuset() throws IOException {
+        Path online = writeFile(root.resolve("online"), "0-3");
+        Path possible = writeFile(root.resolve("possible"), "0-3");
+        OnlineCpus onlineCpus = new OnlineCpus(online.toString(), possible.toString(), null, new int[] {2, 3});
+        try {
+            assertArrayEquals(new int[] {2, 3}, onlineCpus.getCpus());
+            writeFile(online, "0-2");
+            assertTrue(onlineCpus.refresh());
+            assertArrayEquals(new int[] {2}, onlineCpus.getCpus());
+        } finally {
+            onlineCpus.close();
+        }
+    }
+
+    @Test
+    public void effectiveCpusetCgroupV1() throws IOException {
+        writeFile(root.resolve("cpuset/docker/abc/cpuset.effective_cpus"), "2-3");
+        List<String> mounts = Collections.singletonList("cgroup " + root.resolve("cpuset") + " cgroup rw,nosuid,cpuset 0 0");
+        List<String> cgroups = Arrays.asList("5:cpuset:/docker/abc", "4:memory:/docker/abc");
+        assertEquals(root.resolve("cpuset/docker/abc/cpuset.effective_cpus").toString(),
+                OnlineCpus.findEffectiveCpuset(cgroups, mounts));
+    }
+
+    @Test
+    public void effectiveCpusetCgroupV2() throws IOException {
+        // cpuset controller not enabled in the leaf cgroup: parent value
+        writeFile(root.resolve("system.slice/cpuset.cpus.effective"), "0-1");
+        Files.createDirectories(root.resolve("system.slice/app.service"));
+        List<String> mounts = Arrays.asList("proc /proc proc rw 0 0", "cgroup2 " + root + " cgroup2 rw 0 0");
+        assertEquals(root.resolve("system.slice/cpuset.cpus.effective").toString(),
+                OnlineCpus.findEffectiveCpuset(Collections.singletonList("0::/system.slice/app.service"), mounts));
+        assertNull(OnlineCpus.findEffectiveCpuset(Collections.singletonList("0::/other"), mounts));
+        writeFile(root.resolve("cpuset.cpus.effective"), "0-7");
+        assertEquals(root.resolve("cpuset.cpus.effective").toString(),
+                OnlineCpus.findEffectiveCpuset(Collections.singletonList("0::/other"), mounts));
+    }
+
+    private static Path writeFile(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, Collections.singletonList(content));
+        return file;
+    }
+}
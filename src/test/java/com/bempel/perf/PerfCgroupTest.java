@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PerfCgroupTest {
+
+    @Test
+    public void findCgroup2MountPoint() {
+        assertEquals("/sys/fs/cgroup", PerfCgroup.findMountPoint(Arrays.asList(
+                "sysfs /sys sysfs rw,nosuid,nodev,noexec,relatime 0 0",
+                "cgroup2 /sys/fs/cgroup cgroup2 rw,nosuid,nodev,noexec,relatime,nsdelegate 0 0")));
+    }
+
+    @Test
+    public void preferPerfEventController() {
+        assertEquals("/sys/fs/cgroup/perf_event", PerfCgroup.findMountPoint(Arrays.asList(
+                "cgroup2 /sys/fs/cgroup/unified cgroup2 rw,nosuid,nodev,noexec,relatime 0 0",
+                "cgroup /sys/fs/cgroup/cpu,cpuacct cgroup rw,nosuid,nodev,noexec,relatime,cpu,cpuacct 0 0",
+                "cgroup /sys/fs/cgroup/perf_event cgroup rw,nosuid,nodev,noexec,relatime,perf_event 0 0")));
+    }
+
+    @Test
+    public void noMountPoint() {
+        assertNull(PerfCgroup.findMountPoint(Collections.singletonList("proc /proc proc rw,nosuid,nodev,noexec,relatime 0 0")));
+    }
+}
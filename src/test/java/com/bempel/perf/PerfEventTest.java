@@ -15,6 +15,7 @@
  */
 package com.bempel.perf;
 
+import com.bempel.perf.jna.JnaDirectBackend;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -87,4 +88,84 @@ public class PerfEventTest {
             cycles.shutdown();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void userPageRead() {
+        PerfEvent instructions = new PerfEvent("instructions", PerfEvent.ReadMode.USER_PAGE);
+        instructions.start();
+        try {
+            int i = 0;
+            while (i < 1_000_000)
+                i++;
+            assertEquals(1_000_000, i);
+            long previous = instructions.read();
+            assertTrue(previous > 0);
+            long value = instructions.read();
+            assertTrue(value >= previous);
+        } finally {
+            instructions.shutdown();
+        }
+    }
+
+    @Test
+    public void userPageReadFromOtherThread() throws InterruptedException {
+        PerfEvent instructions = new PerfEvent("instructions", PerfEvent.ReadMode.USER_PAGE);
+        instructions.start();
+        try {
+            int i = 0;
+            while (i < 1_000_000)
+                i++;
+            assertEquals(1_000_000, i);
+            long previous = instructions.read();
+            long[] other = new long[1];
+            // rdpmc would read the counter of the reader cpu: falls back to read syscall
+            Thread reader = new Thread(() -> other[0] = instructions.read());
+            reader.start();
+            reader.join();
+            long value = instructions.read();
+            assertTrue(other[0] >= previous);
+            assertTrue(value >= other[0]);
+        } finally {
+            instructions.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void bufferRead() {
+        PerfEvent taskClock = new PerfEvent("task-clock");
+        taskClock.start();
+        try {
+            long[] raw = new long[5];
+            assertTrue(taskClock.readRaw(raw) > 0);
+            assertEquals(1, raw[0]);
+            assertTrue(raw[1] >= raw[2]);
+            assertEquals(raw[1], taskClock.getTimeEnabled());
+            // deprecated layout without times
+            long[] buffer = new long[3];
+            long value = taskClock.read(buffer);
+            assertEquals(1, buffer[0]);
+            assertEquals(value, buffer[1]);
+            assertEquals(raw[4], buffer[2]);
+            assertTrue(value >= raw[3]);
+        } finally {
+            taskClock.shutdown();
+        }
+    }
+
+    @Test
+    public void directBackend() {
+        PerfEvent.installBackend(new JnaDirectBackend());
+        try {
+            PerfEvent cycles = new PerfEvent("cycles");
+            cycles.start();
+            try {
+                assertTrue(cycles.read() > 0);
+            } finally {
+                cycles.shutdown();
+            }
+        } finally {
+            PerfEvent.installBackend(NativeBackends.select());
+        }
+    }
+}
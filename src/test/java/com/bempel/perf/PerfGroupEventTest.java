@@ -46,4 +46,23 @@ public class PerfGroupEventTest {
             events.shutdown();
         }
     }
+
+    @Test
+    public void disableResetGroup() {
+        PerfGroupEvent events = new PerfGroupEvent("cycles,instructions");
+        events.start();
+        try {
+            long[] values = new long[events.size()];
+            events.read(values);
+            assertTrue(values[0] > 0);
+            assertTrue(values[1] > 0);
+            events.disable();
+            events.reset();
+            events.read(values);
+            assertEquals(0, values[0]);
+            assertEquals(0, values[1]);
+        } finally {
+            events.shutdown();
+        }
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventConsts;
+import com.bempel.perf.jna.PerfEventMmapPage;
+import com.bempel.perf.jna.PerfRingBuffer;
+import com.bempel.perf.pmuevents.PMUEvent;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PerfSamplerTest {
+    private static final int DATA_HEAD_OFFSET = 1024;
+    private static final int DATA_TAIL_OFFSET = 1032;
+    private static final int DATA_SIZE = PerfEventMmapPage.PAGE_SIZE;
+
+    @Test
+    public void pollRecords() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_TID | PerfEventConsts.PERF_SAMPLE_PERIOD);
+        long pos = 0;
+        pos = writeSample(memory, pos, 0x1000, 42, 43, 10_000);
+        pos = writeLost(memory, pos, 3);
+        pos = writeSample(memory, pos, 0x2000, 42, 44, 20_000);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        List<String> samples = new ArrayList<>();
+        int count = sampler.poll(sample -> samples.add(String.format("%x:%d:%d:%d", sample.getIp(), sample.getPid(), sample.getTid(), sample.getPeriod())));
+        assertEquals(2, count);
+        assertEquals("1000:42:43:10000", samples.get(0));
+        assertEquals("2000:42:44:20000", samples.get(1));
+        assertEquals(3, sampler.getLostRecords());
+        assertEquals(pos, memory.getLong(DATA_TAIL_OFFSET));
+        // nothing new
+        assertEquals(0, sampler.poll(sample -> samples.add("")));
+    }
+
+    @Test
+    public void pollWraparound() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_TID | PerfEventConsts.PERF_SAMPLE_PERIOD);
+        // record starts 16 bytes before the end of the data area
+        long start = 10 * DATA_SIZE - 16;
+        memory.setLong(DATA_TAIL_OFFSET, start);
+        long pos = writeSample(memory, start, 0xCAFE, 1, 2, 3);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        List<String> samples = new ArrayList<>();
+        sampler.poll(sample -> samples.add(String.format("%x:%d:%d:%d", sample.getIp(), sample.getPid(), sample.getTid(), sample.getPeriod())));
+        assertEquals(1, samples.size());
+        assertEquals("cafe:1:2:3", samples.get(0));
+        assertEquals(pos, memory.getLong(DATA_TAIL_OFFSET));
+    }
+
+    @Test
+    public void callchain() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_CALLCHAIN);
+        long pos = 0;
+        pos = writeRecord(memory, pos, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10, 2, 0x10, 0x20);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        long[] ips = new long[2];
+        sampler.poll(sample -> {
+            assertEquals(2, sample.getCallchainSize());
+            ips[0] = sample.getCallchainIp(0);
+            ips[1] = sample.getCallchainIp(1);
+        });
+        assertEquals(0x10, ips[0]);
+        assertEquals(0x20, ips[1]);
+    }
+
+    @Test
+    public void groupRead() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_READ | PerfEventConsts.PERF_SAMPLE_CALLCHAIN);
+        // read_format group: nr, time_enabled, time_running, { value, id }[nr]
+        long pos = writeRecord(memory, 0, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10, 2, 500, 400, 1000, 7, 2000, 8, 1, 0x10);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        List<String> samples = new ArrayList<>();
+        sampler.poll(sample -> samples.add(String.format("%d:%d:%d:%d:%d:%d:%d:%x", sample.getReadSize(),
+                sample.getReadTimeEnabled(), sample.getReadTimeRunning(),
+                sample.getReadValue(0), sample.getReadId(0), sample.getReadValue(1), sample.getReadId(1),
+                sample.getCallchainIp(0))));
+        assertEquals(Arrays.asList("2:500:400:1000:7:2000:8:10"), samples);
+    }
+
+    @Test
+    public void singleRead() {
+        Memory memory = newRing();
+        SampleRecord sample = new SampleRecord(PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_READ,
+                PerfEventConsts.PERF_FORMAT_ID | PerfEventConsts.PERF_FORMAT_TOTAL_TIME_RUNNING);
+        // read_format: value, time_running, id
+        writeRecord(memory, 0, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10, 1000, 400, 7);
+        sample.wrap(new PerfRingBuffer(null, Pointer.nativeValue(memory), 1), 8, 32);
+        assertEquals(1, sample.getReadSize());
+        assertEquals(1000, sample.getReadValue(0));
+        assertEquals(400, sample.getReadTimeRunning());
+        assertEquals(7, sample.getReadId(0));
+        assertThrows(IllegalStateException.class, sample::getReadTimeEnabled);
+    }
+
+    @Test
+    public void groupSamplerAddsRead() {
+        PerfSampler sampler = new PerfSampler("task-clock,page-faults,context-switches");
+        assertEquals(3, sampler.size());
+        assertEquals("page-faults", sampler.getEventName(1));
+        sampler.sampleType(PerfEventConsts.PERF_SAMPLE_IP);
+        sampler.attach(new PerfRingBuffer(null, Pointer.nativeValue(newRing()), 1));
+        assertEquals(0, sampler.poll(sample -> { }));
+    }
+
+    @Test
+    public void memoryFields() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_ADDR
+                | PerfEventConsts.PERF_SAMPLE_WEIGHT | PerfEventConsts.PERF_SAMPLE_DATA_SRC | PerfEventConsts.PERF_SAMPLE_PHYS_ADDR);
+        long pos = writeRecord(memory, 0, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10, 0x7f0000001000L, 250, 0x68100142L, 0x12345000L);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        List<String> samples = new ArrayList<>();
+        sampler.poll(sample -> samples.add(String.format("%x:%x:%d:%x:%x", sample.getIp(), sample.getAddr(),
+                sample.getWeight(), sample.getDataSrc(), sample.getPhysAddr())));
+        assertEquals(Arrays.asList("10:7f0000001000:250:68100142:12345000"), samples);
+    }
+
+    @Test
+    public void memorySampler() {
+        PerfSampler sampler = PerfSampler.memory("r01cd");
+        assertEquals(2, sampler.getEventInfo().attr.getPreciseIp());
+        assertEquals(PerfSampler.DEFAULT_LOAD_LATENCY, sampler.getEventInfo().attr.getConfig1());
+        assertEquals(PerfSampler.MEMORY_SAMPLE_TYPE, sampler.getEventInfo().attr.sample_type);
+        sampler.loadLatency(64);
+        assertEquals(64, sampler.getEventInfo().attr.getConfig1());
+        assertThrows(IllegalArgumentException.class, () -> sampler.loadLatency(0));
+        assertThrows(IllegalArgumentException.class, () -> sampler.precise(4));
+    }
+
+    @Test
+    public void loadLatencyConfig1() {
+        assertEquals(32, PerfEvent.EventInfo.getConfig1(new PMUEvent(null, "0xCD", "0,1,2,3", "0x1",
+                "MEM_TRANS_RETIRED.LOAD_LATENCY_GT_32", "100007", null, null)));
+        assertEquals(0x3fffc00001L, PerfEvent.EventInfo.getConfig1(new PMUEvent(null, "0xB7, 0xBB", "0,1,2,3", "0x1",
+                "OFFCORE_RESPONSE.ALL_DATA_RD.ANY_RESPONSE", "100003", null, null, "0x1a6,0x1a7", "0x3fffc00001")));
+        assertEquals(0, PerfEvent.EventInfo.getConfig1(new PMUEvent(null, "0x3C", "0,1,2,3", "0x0",
+                "CPU_CLK_UNHALTED.THREAD_P", "2000003", null, null)));
+    }
+
+    @Test
+    public void branchStack() {
+        Memory memory = newRing();
+        PerfSampler sampler = new PerfSampler("task-clock").sampleType(PerfEventConsts.PERF_SAMPLE_IP)
+                .branchStack(PerfEventConsts.PERF_SAMPLE_BRANCH_USER | PerfEventConsts.PERF_SAMPLE_BRANCH_ANY | PerfEventConsts.PERF_SAMPLE_BRANCH_HW_INDEX);
+        assertEquals(PerfEventConsts.PERF_SAMPLE_IP | PerfEventConsts.PERF_SAMPLE_BRANCH_STACK, sampler.getEventInfo().attr.sample_type);
+        sampler.attach(new PerfRingBuffer(null, Pointer.nativeValue(memory), 1));
+        // ip, bnr, hw_idx, { from, to, flags }[bnr]: mispredicted with 25 cycles, predicted with 3 cycles
+        long pos = writeRecord(memory, 0, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10, 2, 5,
+                0x100, 0x200, 25 << 4 | 1, 0x300, 0x400, 3 << 4 | 2);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        List<String> branches = new ArrayList<>();
+        sampler.poll(sample -> {
+            for (int i = 0; i < sample.getBranchStackSize(); i++) {
+                branches.add(String.format("%x->%x:%b:%b:%d", sample.getBranchFrom(i), sample.getBranchTo(i),
+                        sample.isBranchMispredicted(i), sample.isBranchPredicted(i), sample.getBranchCycles(i)));
+            }
+        });
+        assertEquals(Arrays.asList("100->200:true:false:25", "300->400:false:true:3"), branches);
+        assertThrows(IllegalArgumentException.class, () -> sampler.branchStack(0));
+    }
+
+    @Test
+    public void fieldNotSampled() {
+        Memory memory = newRing();
+        PerfSampler sampler = newSampler(memory, PerfEventConsts.PERF_SAMPLE_IP);
+        long pos = writeRecord(memory, 0, PerfEventConsts.PERF_RECORD_SAMPLE, 0x10);
+        memory.setLong(DATA_HEAD_OFFSET, pos);
+        sampler.poll(sample -> assertThrows(IllegalStateException.class, sample::getTid));
+    }
+
+    @Test
+    public void unsupportedSampleType() {
+        assertThrows(IllegalArgumentException.class, () -> new PerfSampler("task-clock").sampleType(PerfEventConsts.PERF_SAMPLE_REGS_USER));
+    }
+
+    @Test
+    public void sampleSoftwareEvent() {
+        PerfSampler sampler = new PerfSampler("task-clock").frequency(1000);
+        sampler.start();
+        try {
+            long[] samples = new long[1];
+            long end = System.currentTimeMillis() + 200;
+            long sink = 0;
+            while (System.currentTimeMillis() < end) {
+                sink += System.nanoTime();
+            }
+            sampler.poll(sample -> {
+                assertTrue(sample.getTid() > 0);
+                samples[0]++;
+            });
+            assertTrue(samples[0] > 0, "no sample received");
+        } finally {
+            sampler.shutdown();
+        }
+    }
+
+    @Test
+    public void sampleSoftwareGroup() {
+        PerfSampler sampler = new PerfSampler("task-clock,page-faults").frequency(1000);
+        GroupSampleProfile profile = new GroupSampleProfile(sampler.size());
+        sampler.start();
+        try {
+            long end = System.currentTimeMillis() + 200;
+            long sink = 0;
+            while (System.currentTimeMillis() < end) {
+                sink += System.nanoTime();
+            }
+            sampler.poll(profile::accept);
+            assertTrue(profile.getSamples() > 0, "no sample received");
+            String top = profile.getSymbols().get(0);
+            assertTrue(profile.getValue(top, 0) > 0);
+        } finally {
+            sampler.shutdown();
+        }
+    }
+
+    private static Memory newRing() {
+        Memory memory = new Memory(PerfEventMmapPage.PAGE_SIZE + DATA_SIZE);
+        memory.clear();
+        return memory;
+    }
+
+    private static PerfSampler newSampler(Memory memory, long sampleType) {
+        PerfSampler sampler = new PerfSampler("task-clock").sampleType(sampleType);
+        sampler.attach(new PerfRingBuffer(null, Pointer.nativeValue(memory), 1));
+        return sampler;
+    }
+
+    private static long writeSample(Memory memory, long pos, long ip, int pid, int tid, long period) {
+        return writeRecord(memory, pos, PerfEventConsts.PERF_RECORD_SAMPLE, ip, ((long) tid << 32) | pid, period);
+    }
+
+    private static long writeLost(Memory memory, long pos, long lost) {
+        return writeRecord(memory, pos, PerfEventConsts.PERF_RECORD_LOST, 1, lost);
+    }
+
+    private static long writeRecord(Memory memory, long pos, int type, long... fields) {
+        int size = 8 + fields.length * 8;
+        memory.setLong(PerfEventMmapPage.PAGE_SIZE + (pos & (DATA_SIZE - 1)), ((long) size << 48) | type);
+        pos += 8;
+        for (long field : fields) {
+            memory.setLong(PerfEventMmapPage.PAGE_SIZE + (pos & (DATA_SIZE - 1)), field);
+            pos += 8;
+        }
+        return pos;
+    }
+}
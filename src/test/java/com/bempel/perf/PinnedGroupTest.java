@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.NativeBackend;
+import com.bempel.perf.jna.PerfEventAttr;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PinnedGroupTest {
+    private final FaultyBackend backend = new FaultyBackend(NativeBackends.select());
+    private final List<PinnedGroup.EvictionReason> reasons = new ArrayList<>();
+    private static long sink;
+
+    @BeforeEach
+    public void setUp() {
+        PerfEvent.installBackend(backend);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        PerfEvent.installBackend(NativeBackends.select());
+    }
+
+    @Test
+    public void pinnedFlags() {
+        PerfGroupEvent group = new PerfGroupEvent("task-clock,page-faults");
+        assertFalse(group.isPinned());
+        group.setPinned(true);
+        assertTrue(group.isPinned());
+        assertTrue((group.getLeader().attr.flags & PerfEventAttr.EXCLUSIVE) != 0);
+        group.setPinned(false);
+        assertEquals(0, group.getLeader().attr.flags & PerfEventAttr.EXCLUSIVE);
+    }
+
+    @Test
+    public void counting() {
+        PinnedGroup group = newGroup();
+        long[] values = new long[group.size()];
+        group.start();
+        try {
+            spin();
+            assertTrue(group.read(values));
+            assertTrue(values[0] > 0);
+            spin();
+            assertTrue(group.read(values));
+            assertTrue(reasons.isEmpty());
+            assertEquals(0, group.getEvictions());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void errorStateRepins() {
+        PinnedGroup group = newGroup();
+        long[] values = new long[group.size()];
+        group.start();
+        try {
+            spin();
+            assertTrue(group.read(values));
+            long before = values[0];
+            backend.eof = true;
+            // eviction detected: pinned again but counts missed
+            assertFalse(group.read(values));
+            backend.eof = false;
+            assertFalse(group.isEvicted());
+            assertEquals(1, reasons.size());
+            assertEquals(PinnedGroup.EvictionReason.ERROR_STATE, reasons.get(0));
+            assertEquals(1, group.getRepins());
+            // totals kept across re-pin
+            spin();
+            assertTrue(group.read(values));
+            assertTrue(values[0] > before);
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void evictedUntilRepinned() {
+        PinnedGroup group = newGroup();
+        long[] values = new long[group.size()];
+        group.start();
+        try {
+            spin();
+            assertTrue(group.read(values));
+            long before = values[0];
+            backend.eof = true;
+            backend.openFailure = true;
+            assertFalse(group.read(values));
+            assertTrue(group.isEvicted());
+            assertEquals(before, values[0]);
+            backend.eof = false;
+            assertFalse(group.read(values));
+            backend.openFailure = false;
+            assertTrue(group.read(values));
+            assertFalse(group.isEvicted());
+            assertEquals(1, group.getEvictions());
+            assertEquals(1, group.getRepins());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void repinThrottled() {
+        PinnedGroup group = newGroup();
+        group.setRepinInterval(TimeUnit.HOURS.toNanos(1));
+        long[] values = new long[group.size()];
+        group.start();
+        try {
+            spin();
+            assertTrue(group.read(values));
+            backend.eof = true;
+            backend.openFailure = true;
+            // first attempt right after eviction
+            assertFalse(group.read(values));
+            backend.eof = false;
+            backend.openFailure = false;
+            // next attempt not before the interval
+            assertFalse(group.read(values));
+            assertTrue(group.isEvicted());
+            assertEquals(0, group.getRepins());
+            assertTrue(group.repin());
+            assertTrue(group.read(values));
+            assertEquals(1, group.getEvictions());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void notRunning() {
+        PinnedGroup group = newGroup();
+        long[] values = new long[group.size()];
+        group.start();
+        try {
+            spin();
+            assertTrue(group.read(values));
+            backend.frozenRunning = 1;
+            spin();
+            assertTrue(group.read(values));
+            spin();
+            assertFalse(group.read(values));
+            backend.frozenRunning = 0;
+            spin();
+            assertTrue(group.read(values));
+            assertEquals(PinnedGroup.EvictionReason.NOT_RUNNING, reasons.get(0));
+            assertEquals(1, group.getEvictions());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    private PinnedGroup newGroup() {
+        PinnedGroup group = new PinnedGroup("task-clock,page-faults", false, (g, reason) -> reasons.add(reason));
+        group.setRepinInterval(0);
+        return group;
+    }
+
+    private static void spin() {
+        long deadline = System.nanoTime() + 1_000_000;
+        while (System.nanoTime() < deadline) {
+            sink++;
+        }
+    }
+
+    static class FaultyBackend implements NativeBackend {
+        private final NativeBackend delegate;
+        volatile boolean eof;
+        volatile boolean openFailure;
+        volatile long frozenRunning;
+
+        FaultyBackend(NativeBackend delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int perfEventOpen(PerfEventAttr attr, int pid, int cpu, int groupFd, long flags) {
+            return openFailure ? -1 : delegate.perfEventOpen(attr, pid, cpu, groupFd, flags);
+        }
+
+        @Override
+        public int ioctl(int fd, long request, long arg) {
+            return delegate.ioctl(fd, request, arg);
+        }
+
+        @Override
+        public long ioctlId(int fd) {
+            return delegate.ioctlId(fd);
+        }
+
+        @Override
+        public int read(int fd, long[] values, int size) {
+            if (eof) {
+                return 0;
+            }
+            int ret = delegate.read(fd, values, size);
+            if (frozenRunning > 0) {
+                // first read while frozen records time running, next ones repeat it
+                values[PerfEvent.TIME_RUNNING_IDX] = frozenRunning == 1 ? (frozenRunning = values[PerfEvent.TIME_RUNNING_IDX]) : frozenRunning;
+            }
+            return ret;
+        }
+
+        @Override
+        public int close(int fd) {
+            return delegate.close(fd);
+        }
+
+        @Override
+        public int open(String path, int flags) {
+            return delegate.open(path, flags);
+        }
+
+        @Override
+        public long mmap(long length, int prot, int flags, int fd, long offset) {
+            return delegate.mmap(length, prot, flags, fd, offset);
+        }
+
+        @Override
+        public int munmap(long address, long length) {
+            return delegate.munmap(address, length);
+        }
+
+        @Override
+        public int lastError() {
+            return openFailure ? 16 : delegate.lastError();
+        }
+
+        @Override
+        public String strerror(int errnum) {
+            return delegate.strerror(errnum);
+        }
+    }
+}
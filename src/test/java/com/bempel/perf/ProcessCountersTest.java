@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProcessCountersTest {
+
+    @Test
+    public void followThreads() throws InterruptedException {
+        ProcessCounters counters = new ProcessCounters("task-clock,context-switches");
+        CounterSnapshot total = new CounterSnapshot(counters.size());
+        counters.start();
+        try {
+            assertTrue(counters.getThreadCount() > 1);
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch stop = new CountDownLatch(1);
+            Thread worker = new Thread(() -> {
+                started.countDown();
+                spin(100);
+                try {
+                    stop.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "jperf-worker");
+            worker.start();
+            started.await();
+            counters.refresh();
+            spin(50);
+            counters.read(total);
+            List<String> names = new ArrayList<>();
+            counters.forEachThread((tid, name, values) -> names.add(name));
+            // JDK 8 does not set native thread names
+            boolean nativeNames = !System.getProperty("java.version").startsWith("1.");
+            assertTrue(names.contains("jperf-worker") || !nativeNames, names.toString());
+            stop.countDown();
+            worker.join();
+            long before = total.getValue(0);
+            // native thread may still be listed shortly after join
+            long deadline = System.currentTimeMillis() + 5000;
+            do {
+                counters.refresh();
+                names.clear();
+                counters.forEachThread((tid, name, values) -> names.add(name));
+            } while (names.contains("jperf-worker") && System.currentTimeMillis() < deadline);
+            assertFalse(names.contains("jperf-worker"));
+            counters.read(total);
+            // exited thread counts are kept
+            assertTrue(total.getValue(0) >= before);
+        } finally {
+            counters.shutdown();
+        }
+    }
+
+    private static void spin(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long sink = 0;
+        while (System.currentTimeMillis() < end) {
+            sink += System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.JnaDirectBackend;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ReadAllocationTest {
+    private static final int ITERATIONS = 100_000;
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private long sum;
+
+    @BeforeEach
+    public void setUp() {
+        PerfEvent.installBackend(new JnaDirectBackend());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        PerfEvent.installBackend(NativeBackends.select());
+    }
+
+    @Test
+    public void eventRead() {
+        PerfEvent taskClock = new PerfEvent("task-clock");
+        taskClock.start();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += taskClock.read();
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += taskClock.read();
+            }
+            assertEquals(0, allocatedBytes() - before);
+        } finally {
+            taskClock.shutdown();
+        }
+    }
+
+    @Test
+    public void userPageRead() {
+        PerfEvent instructions = new PerfEvent("instructions", PerfEvent.ReadMode.USER_PAGE);
+        instructions.start();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += instructions.read();
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += instructions.read();
+            }
+            assertEquals(0, allocatedBytes() - before);
+        } finally {
+            instructions.shutdown();
+        }
+    }
+
+    @Test
+    public void groupRead() {
+        PerfGroupEvent events = new PerfGroupEvent("task-clock,page-faults");
+        long[] values = new long[events.size()];
+        PerfGroupEvent.ValueConsumer consumer = (index, value) -> values[index] += value;
+        events.start();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                events.readIndexed(consumer);
+                events.read(values);
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                events.readIndexed(consumer);
+                events.read(values);
+            }
+            assertEquals(0, allocatedBytes() - before);
+        } finally {
+            events.shutdown();
+        }
+    }
+
+    @Test
+    public void metricEvaluation() {
+        MetricSet metrics = new MetricSet()
+                .add("faults per ms", "page\\-faults / (task\\-clock / 1e6)")
+                .add("faults per second", "page\\-faults / duration_time if task\\-clock > 0 else 0");
+        CounterSnapshot snapshot = new CounterSnapshot(metrics.getEventCount());
+        snapshot.set(0, 1000, 1_000_000, 1_000_000);
+        snapshot.set(1, 1_000_000, 1_000_000, 500_000);
+        for (int i = 0; i < ITERATIONS; i++) {
+            metrics.evaluate(snapshot);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            metrics.evaluate(snapshot);
+        }
+        assertEquals(0, allocatedBytes() - before);
+    }
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class StatAggregationTest {
+
+    @Test
+    public void global() {
+        StatAggregation aggregation = StatAggregation.create(StatAggregation.Mode.GLOBAL, new int[] {0, 1}, null);
+        CounterSnapshot perCpu = new CounterSnapshot(2);
+        perCpu.set(0, 100, 1000, 1000);
+        // multiplexed half of the time: scaled to 400
+        perCpu.set(1, 200, 1000, 500);
+        aggregation.aggregate(perCpu);
+        assertEquals(1, aggregation.getUnitCount());
+        assertNull(aggregation.getLabel(0));
+        assertEquals(300, aggregation.get(0, StatAggregation.VALUE));
+        assertEquals(500, aggregation.get(0, StatAggregation.SCALED_VALUE));
+        assertEquals(2000, aggregation.get(0, StatAggregation.TIME_ENABLED));
+        assertEquals(1500, aggregation.get(0, StatAggregation.TIME_RUNNING));
+    }
+
+    @Test
+    public void perSocketAndCore() throws IOException {
+        Path root = Files.createTempDirectory("sysfs");
+        try {
+            // socket 1 listed first in cpu order
+            writeCpu(root, 0, 1, 0);
+            writeCpu(root, 1, 0, 0);
+            writeCpu(root, 2, 1, 1);
+            writeCpu(root, 3, 0, 0);
+            CpuTopology topology = CpuTopology.read(root.resolve("cpu").toString(), root.resolve("node").toString());
+            CounterSnapshot perCpu = new CounterSnapshot(4);
+            for (int i = 0; i < 4; i++) {
+                perCpu.set(i, 10 * (i + 1), 100, 100);
+            }
+            int[] cpus = {0, 1, 2, 3};
+            StatAggregation sockets = StatAggregation.create(StatAggregation.Mode.SOCKET, cpus, topology);
+            sockets.aggregate(perCpu);
+            assertEquals(2, sockets.getUnitCount());
+            assertEquals("S0", sockets.getLabel(0));
+            assertEquals(2, sockets.getCpuCount(0));
+            assertEquals(20 + 40, sockets.get(0, StatAggregation.VALUE));
+            assertEquals("S1", sockets.getLabel(1));
+            assertEquals(10 + 30, sockets.get(1, StatAggregation.VALUE));
+            StatAggregation cores = StatAggregation.create(StatAggregation.Mode.CORE, cpus, topology);
+            cores.aggregate(perCpu);
+            assertEquals(3, cores.getUnitCount());
+            assertEquals("S0-D0-C0", cores.getLabel(0));
+            assertEquals(60, cores.get(0, StatAggregation.VALUE));
+            assertEquals("S1-D0-C1", cores.getLabel(2));
+            assertEquals(30, cores.get(2, StatAggregation.VALUE));
+        } finally {
+            TestFiles.deleteRecursively(root);
+        }
+    }
+
+    private static void writeCpu(Path root, int cpu, int socket, int core) throws IOException {
+        Path topologyDir = root.resolve("cpu/cpu" + cpu + "/topology");
+        Files.createDirectories(topologyDir);
+        Files.write(topologyDir.resolve("physical_package_id"), Collections.singletonList(String.valueOf(socket)));
+        Files.write(topologyDir.resolve("die_id"), Collections.singletonList("0"));
+        Files.write(topologyDir.resolve("core_id"), Collections.singletonList(String.valueOf(core)));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatCountersTest {
+
+    @Test
+    public void readDeltas() throws InterruptedException {
+        StatCounters counters = new StatCounters(Arrays.asList("task-clock", "context-switches"), 1);
+        counters.open(null, new int[] {0});
+        try {
+            counters.reset();
+            counters.enable();
+            counters.read();
+            Thread.sleep(50);
+            counters.read();
+            long delta = counters.getDeltas(0).getScaledValue(0);
+            assertTrue(delta > 0);
+            assertTrue(counters.getValues(0).getScaledValue(0) >= delta);
+            counters.disable();
+        } finally {
+            counters.close();
+        }
+    }
+
+    @Test
+    public void groupsPerPmu() {
+        GroupPlanner planner = new GroupPlanner(null, true, 2, 0, false);
+        List<List<String>> groups = StatCounters.planGroups(Arrays.asList("cpu-clock", "cycles", "context-switches",
+                "instructions", "page-faults", "branches", "task-clock"), planner);
+        assertEquals(Arrays.asList(
+                Collections.singletonList("cpu-clock"),
+                Arrays.asList("cycles", "instructions"),
+                Arrays.asList("context-switches", "page-faults"),
+                Collections.singletonList("branches"),
+                Collections.singletonList("task-clock")), groups);
+    }
+
+    @Test
+    public void eventsReadThroughPlannedGroups() throws InterruptedException {
+        // groups in another order than events, duplicated event
+        StatCounters counters = new StatCounters(Arrays.asList("task-clock", "page-faults", "task-clock"),
+                Arrays.asList(Collections.singletonList("page-faults"), Arrays.asList("task-clock", "task-clock")), 1);
+        counters.open(null, new int[] {0});
+        try {
+            counters.reset();
+            counters.enable();
+            Thread.sleep(20);
+            counters.read();
+            counters.disable();
+            assertTrue(counters.getValues(0).getValue(0) > 0);
+            assertTrue(counters.getValues(2).getValue(0) > 0);
+            // task-clock ticks in ns, page-faults are counted by unit
+            assertTrue(counters.getValues(0).getValue(0) > counters.getValues(1).getValue(0));
+        } finally {
+            counters.close();
+        }
+    }
+
+    @Test
+    public void hotplugKeepsTotals() throws InterruptedException {
+        StatCounters counters = new StatCounters(Collections.singletonList("task-clock"), 1);
+        counters.open(null, new int[] {0});
+        try {
+            counters.reset();
+            counters.enable();
+            Thread.sleep(20);
+            counters.read();
+            long before = counters.getValues(0).getValue(0);
+            assertTrue(before > 0);
+            // cpu 0 removed: values kept in totals, no more delta
+            assertTrue(counters.setCpus(new int[0]));
+            counters.read();
+            assertEquals(before, counters.getValues(0).getValue(0));
+            assertEquals(0, counters.getDeltas(0).getValue(0));
+            // cpu 0 back, cpu 1 beyond cpu slots ignored
+            assertTrue(counters.setCpus(new int[] {0, 1}));
+            assertFalse(counters.setCpus(new int[] {0}));
+            assertArrayEquals(new int[] {0}, counters.getCpus());
+            Thread.sleep(20);
+            counters.read();
+            assertTrue(counters.getDeltas(0).getValue(0) > 0);
+            assertTrue(counters.getValues(0).getValue(0) > before);
+            counters.disable();
+        } finally {
+            counters.close();
+        }
+    }
+}
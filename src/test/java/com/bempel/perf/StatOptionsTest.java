@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatOptionsTest {
+
+    @Test
+    public void defaultEvents() {
+        StatOptions options = StatOptions.parse(new String[] {"stat"});
+        assertEquals(StatOptions.DEFAULT_EVENTS, options.events);
+        assertNull(options.cgroup);
+    }
+
+    @Test
+    public void eventsAndCgroup() {
+        StatOptions options = StatOptions.parse(new String[] {"stat", "-e", "cycles,instructions", "-G", "system.slice", "-e", "cache-misses"});
+        assertEquals(Arrays.asList("cycles", "instructions", "cache-misses"), options.events);
+        assertEquals("system.slice", options.cgroup);
+    }
+
+    @Test
+    public void interval() {
+        StatOptions options = StatOptions.parse(new String[] {"stat", "-I", "1000", "--interval-count", "5"});
+        assertEquals(1000, options.intervalMs);
+        assertEquals(5, options.intervalCount);
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "-I", "0"}));
+    }
+
+    @Test
+    public void output() {
+        StatOptions options = StatOptions.parse(new String[] {"stat", "-A", "-x", ";"});
+        assertEquals(StatAggregation.Mode.CPU, options.aggregation);
+        assertEquals(";", options.csvSeparator);
+        assertTrue(StatOptions.parse(new String[] {"stat", "--json"}).json);
+        assertEquals(StatAggregation.Mode.SOCKET, StatOptions.parse(new String[] {"stat", "--per-socket"}).aggregation);
+    }
+
+    @Test
+    public void topdown() {
+        assertEquals(1, StatOptions.parse(new String[] {"stat", "--topdown"}).topdownLevel);
+        StatOptions options = StatOptions.parse(new String[] {"stat", "--topdown", "--td-level", "2", "-G", "system.slice"});
+        assertEquals(2, options.topdownLevel);
+        assertTrue(options.events.isEmpty());
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "--td-level", "3"}));
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "--topdown", "-I", "100"}));
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "--topdown", "-e", "cycles"}));
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "-z"}));
+        assertThrows(UnsupportedOperationException.class, () -> StatOptions.parse(new String[] {"stat", "-G"}));
+    }
+}
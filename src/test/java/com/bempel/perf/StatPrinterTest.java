@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StatPrinterTest {
+
+    @Test
+    public void csv() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StatPrinter printer = new StatPrinter.CsvPrinter(new AsciiBuffer(Channels.newChannel(out), 1024), ";");
+        printer.printCounter(1_500_000_000L, "CPU3", 1, "cycles", 100, 200, 1000, 500);
+        printer.printCounter(StatPrinter.NO_TIMESTAMP, null, 2, "instructions", 10, 10, 1000, 1000);
+        printer.flush();
+        assertEquals("1.500000000;CPU3;cycles;100;200;1000;500\n"
+                + ";;instructions;10;10;1000;1000\n", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void json() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StatPrinter printer = new StatPrinter.JsonPrinter(new AsciiBuffer(Channels.newChannel(out), 1024), "socket");
+        printer.printCounter(1_500_000_000L, "S1", 4, "cycles", 100, 200, 1000, 500);
+        printer.printReadStats(1_500_000_000L, 1234, 56, 0);
+        printer.flush();
+        assertEquals("{\"timestamp\":1.500000000,\"socket\":\"S1\",\"event\":\"cycles\",\"value\":100,\"scaled_value\":200,\"time_enabled\":1000,\"time_running\":500}\n"
+                + "{\"timestamp\":1.500000000,\"read_latency_ns\":1234,\"lag_ns\":56,\"missed_intervals\":0}\n",
+                new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf;
+
+import com.bempel.perf.jna.PerfEventAttr;
+import com.bempel.perf.jna.PerfEventConsts;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopdownTest {
+
+    @Test
+    public void level1() {
+        double[][] inputs = new double[1][Topdown.INPUT_COUNT];
+        double[] level1 = inputs[Topdown.LEVEL1_GROUP];
+        // 1000 cycles: 4000 slots
+        level1[Topdown.CYCLES] = 1000;
+        level1[Topdown.UOPS_NOT_DELIVERED] = 800;
+        level1[Topdown.UOPS_ISSUED] = 2200;
+        level1[Topdown.RETIRE_SLOTS] = 2000;
+        level1[Topdown.RECOVERY_CYCLES] = 50;
+        double[] values = new double[Topdown.Metric.values().length];
+        Topdown.compute(inputs, values);
+        assertEquals(0.2, get(values, Topdown.Metric.FRONTEND_BOUND), 1e-9);
+        assertEquals(0.1, get(values, Topdown.Metric.BAD_SPECULATION), 1e-9);
+        assertEquals(0.5, get(values, Topdown.Metric.RETIRING), 1e-9);
+        assertEquals(0.2, get(values, Topdown.Metric.BACKEND_BOUND), 1e-9);
+        assertTrue(Double.isNaN(get(values, Topdown.Metric.MEMORY_BOUND)));
+    }
+
+    @Test
+    public void level2() {
+        double[][] inputs = new double[5][Topdown.INPUT_COUNT];
+        double[] level1 = inputs[Topdown.LEVEL1_GROUP];
+        level1[Topdown.CYCLES] = 1000;
+        level1[Topdown.UOPS_NOT_DELIVERED] = 800;
+        level1[Topdown.UOPS_ISSUED] = 2200;
+        level1[Topdown.RETIRE_SLOTS] = 2000;
+        level1[Topdown.RECOVERY_CYCLES] = 50;
+        // groups counted on other time slices (multiplexing): only ratios matter
+        double[] frontend = inputs[Topdown.FRONTEND_GROUP];
+        frontend[Topdown.CYCLES] = 500;
+        frontend[Topdown.FRONTEND_LATENCY_CYCLES] = 75;
+        double[] badSpeculation = inputs[Topdown.BAD_SPECULATION_GROUP];
+        badSpeculation[Topdown.BRANCH_MISPREDICTS] = 30;
+        badSpeculation[Topdown.MACHINE_CLEARS] = 10;
+        double[] retiring = inputs[Topdown.RETIRING_GROUP];
+        retiring[Topdown.CYCLES] = 500;
+        retiring[Topdown.UOPS_ISSUED] = 1000;
+        retiring[Topdown.RETIRE_SLOTS] = 1000;
+        retiring[Topdown.MS_UOPS] = 200;
+        double[] backend = inputs[Topdown.BACKEND_GROUP];
+        backend[Topdown.STALLS_MEM] = 250;
+        backend[Topdown.BOUND_ON_STORES] = 50;
+        backend[Topdown.EXE_BOUND_0_PORTS] = 50;
+        backend[Topdown.PORTS_UTIL_1] = 50;
+        double[] values = new double[Topdown.Metric.values().length];
+        Topdown.compute(inputs, values);
+        assertEquals(0.15, get(values, Topdown.Metric.FRONTEND_LATENCY), 1e-9);
+        assertEquals(0.05, get(values, Topdown.Metric.FRONTEND_BANDWIDTH), 1e-9);
+        assertEquals(0.075, get(values, Topdown.Metric.BRANCH_MISPREDICTS), 1e-9);
+        assertEquals(0.025, get(values, Topdown.Metric.MACHINE_CLEARS), 1e-9);
+        assertEquals(0.1, get(values, Topdown.Metric.MICROCODE_SEQUENCER), 1e-9);
+        assertEquals(0.4, get(values, Topdown.Metric.BASE), 1e-9);
+        assertEquals(0.15, get(values, Topdown.Metric.MEMORY_BOUND), 1e-9);
+        assertEquals(0.05, get(values, Topdown.Metric.CORE_BOUND), 1e-9);
+    }
+
+    @Test
+    public void level1SmtOn() {
+        double[][] inputs = new double[1][Topdown.INPUT_COUNT];
+        double[] level1 = inputs[Topdown.LEVEL1_GROUP];
+        // 2000 cycles for both threads of the core: 1000 core cycles, 4000 slots
+        level1[Topdown.CYCLES] = 2000;
+        level1[Topdown.UOPS_NOT_DELIVERED] = 800;
+        level1[Topdown.UOPS_ISSUED] = 2200;
+        level1[Topdown.RETIRE_SLOTS] = 2000;
+        level1[Topdown.RECOVERY_CYCLES] = 100;
+        double[] values = new double[Topdown.Metric.values().length];
+        Topdown.compute(inputs, true, values);
+        assertEquals(0.2, get(values, Topdown.Metric.FRONTEND_BOUND), 1e-9);
+        assertEquals(0.1, get(values, Topdown.Metric.BAD_SPECULATION), 1e-9);
+        assertEquals(0.5, get(values, Topdown.Metric.RETIRING), 1e-9);
+        assertEquals(0.2, get(values, Topdown.Metric.BACKEND_BOUND), 1e-9);
+    }
+
+    @Test
+    public void noCycles() {
+        double[] values = new double[Topdown.Metric.values().length];
+        Topdown.compute(new double[1][Topdown.INPUT_COUNT], values);
+        assertTrue(Double.isNaN(get(values, Topdown.Metric.RETIRING)));
+    }
+
+    @Test
+    public void groupsPerArch() {
+        Topdown skylake = new Topdown(Topdown.Arch.SKYLAKE, 2);
+        assertEquals(12, skylake.getMetrics().size());
+        String[] groups = skylake.getGroupEventNames();
+        assertEquals(5, groups.length);
+        assertEquals("cycles,r019c,r010e,r02c2,r010d", groups[Topdown.LEVEL1_GROUP]);
+        for (String group : groups) {
+            // cycles on the fixed counter + at most 4 general purpose counters
+            assertTrue(group.split(",").length <= 5);
+        }
+        Topdown haswell = new Topdown(Topdown.Arch.CORE, 2);
+        assertEquals(4, haswell.getGroupEventNames().length);
+        assertFalse(haswell.getMetrics().contains(Topdown.Metric.MEMORY_BOUND));
+        assertEquals(Arrays.asList(Topdown.Metric.FRONTEND_BOUND, Topdown.Metric.BAD_SPECULATION,
+                Topdown.Metric.BACKEND_BOUND, Topdown.Metric.RETIRING), new Topdown(Topdown.Arch.CORE, 1).getMetrics());
+        assertThrows(IllegalArgumentException.class, () -> new Topdown(Topdown.Arch.CORE, 3));
+        // SMT on: any thread cycles on the fixed counter & recovery cycles
+        assertEquals("r20003c,r019c,r010e,r02c2,r20010d", new Topdown(Topdown.Arch.SKYLAKE, 1, true).getGroupEventNames()[Topdown.LEVEL1_GROUP]);
+        assertEquals("r20003c,r019c,r010e,r02c2,r0120030d", new Topdown(Topdown.Arch.CORE, 1, true).getGroupEventNames()[Topdown.LEVEL1_GROUP]);
+        assertThrows(UnsupportedOperationException.class, () -> Topdown.getArch(null));
+    }
+
+    @Test
+    public void rawEvent() {
+        PerfEventAttr attr = new PerfEventAttr();
+        PerfEvent.EventInfo.initPerfEventByName(attr, "r0400019c");
+        assertEquals(PerfEventConsts.PERF_TYPE_RAW, attr.type);
+        assertEquals(0x0400019cL, attr.config);
+    }
+
+    private static double get(double[] values, Topdown.Metric metric) {
+        return values[metric.ordinal()];
+    }
+}
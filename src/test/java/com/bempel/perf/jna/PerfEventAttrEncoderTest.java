@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import com.sun.jna.Memory;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class PerfEventAttrEncoderTest {
+
+    @Test
+    public void sameLayoutAsStructure() {
+        PerfEventAttr attr = new PerfEventAttr();
+        attr.type = PerfEventConsts.PERF_TYPE_RAW;
+        attr.config = 0x1234;
+        attr.sample_period = 10_000;
+        attr.sample_type = 0x7;
+        attr.read_format = PerfEventConsts.PERF_FORMAT_GROUP | PerfEventConsts.PERF_FORMAT_ID;
+        attr.flags = PerfEventAttr.DISABLED | PerfEventAttr.EXCLUDE_KERNEL;
+        attr.wakeup_events = 3;
+        attr.bp_type = 4;
+        attr.bp_addr = 5;
+        attr.bp_len = 6;
+        attr.branch_sample_type = 7;
+        attr.sample_regs_user = 8;
+        attr.sample_stack_user = 9;
+        attr.clockid = 10;
+        attr.sample_regs_intr = 11;
+        attr.aux_watermark = 12;
+        attr.reserved_2 = 13;
+        attr.write();
+        Memory memory = new Memory(PerfEventAttrEncoder.SIZE);
+        memory.clear();
+        PerfEventAttrEncoder.encode(attr, memory);
+        assertArrayEquals(attr.getPointer().getByteArray(0, attr.size()), memory.getByteArray(0, PerfEventAttrEncoder.SIZE));
+    }
+}
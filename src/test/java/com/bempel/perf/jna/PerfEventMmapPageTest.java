@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.jna;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PerfEventMmapPageTest {
+
+    @Test
+    public void signExtend() {
+        assertEquals(42, PerfEventMmapPage.signExtend(42, 48));
+        // 48 bits counter wrapped around: negative delta from offset
+        assertEquals(-1, PerfEventMmapPage.signExtend(0xFFFF_FFFF_FFFFL, 48));
+        assertEquals(-2, PerfEventMmapPage.signExtend(0xFFFF_FFFF_FFFEL, 48));
+        assertEquals(0x7FFF_FFFF_FFFFL, PerfEventMmapPage.signExtend(0x7FFF_FFFF_FFFFL, 48));
+        // upper bits beyond width are ignored
+        assertEquals(1, PerfEventMmapPage.signExtend(0xFFFF_0000_0000_0001L, 48));
+        assertEquals(-1, PerfEventMmapPage.signExtend(-1, 64));
+    }
+
+    @Test
+    public void timeDelta() {
+        // 1 cycle = 0.5ns: mult = 1 << 31, shift = 32
+        assertEquals(500, PerfEventMmapPage.timeDelta(1000, 0, 1L << 31, 32));
+        assertEquals(400, PerfEventMmapPage.timeDelta(1000, -100, 1L << 31, 32));
+        // quot * mult would overflow if computed as cycles * mult
+        long cycles = 1L << 40;
+        assertEquals(cycles / 2, PerfEventMmapPage.timeDelta(cycles, 0, 1L << 31, 32));
+        assertEquals(3 * (cycles + 1) / 4, PerfEventMmapPage.timeDelta(cycles + 1, 0, 0xC000_0000L, 32));
+    }
+
+    @Test
+    public void rdtsc() {
+        String arch = System.getProperty("os.arch");
+        if (!"amd64".equals(arch) && !"x86_64".equals(arch)) {
+            return;
+        }
+        assertTrue(Rdpmc.isAvailable());
+        long previous = Rdpmc.rdtsc();
+        assertTrue(Rdpmc.rdtsc() > previous);
+    }
+}
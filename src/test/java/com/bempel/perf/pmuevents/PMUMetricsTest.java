@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Jean-Philippe Bempel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bempel.perf.pmuevents;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PMUMetricsTest {
+
+    @Test
+    public void parse() throws IOException {
+        String json = "[{\"BriefDescription\": \"Instructions Per Cycle (per logical thread)\", \"MetricExpr\": \"INST_RETIRED.ANY / CPU_CLK_UNHALTED.THREAD\","
+                + " \"MetricGroup\": \"TopDownL1\", \"MetricName\": \"IPC\"},"
+                + " {\"MetricName\": \"Kernel_Utilization\", \"MetricExpr\": \"CPU_CLK_UNHALTED.REF_TSC:k / CPU_CLK_UNHALTED.REF_TSC\", \"ScaleUnit\": \"100%\", \"Unknown\": 1},"
+                + " {\"MetricName\": \"no expression\"}]";
+        List<PMUMetric> metrics = PMUMetrics.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, metrics.size());
+        assertEquals("IPC", metrics.get(0).metricName);
+        assertEquals("TopDownL1", metrics.get(0).metricGroup);
+        assertNull(metrics.get(0).scaleUnit);
+        assertEquals("100%", metrics.get(1).scaleUnit);
+    }
+
+    @Test
+    public void missingResource() {
+        assertTrue(PMUMetrics.load("NoSuchModel").isEmpty());
+    }
+}